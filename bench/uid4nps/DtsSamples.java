@@ -0,0 +1,73 @@
+package uid4nps;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Builds realistic NPS DTS-compliant accounting records for benchmarks and load tests
+ *
+ */
+public class DtsSamples {
+
+	private static final String TIMESTAMP_FORMAT = "MM/dd/yyyy HH:mm:ss.SSS";
+
+	private DtsSamples() {
+	}
+
+	/**
+	 * Builds one DTS accounting record as NPS writes it in a single log line
+	 *
+	 * @param acctStatusType	"1" (start), "2" (stop) or "3" (interim)
+	 * @param userName			User-Name attribute (i.e. "jdoe@corppro", "corppro\jdoe" or "host/pc01.corppro.local")
+	 * @param framedIp			Framed-IP-Address attribute
+	 * @param nasIdentifier		NAS-Identifier attribute
+	 * @param sessionId			Acct-Session-Id attribute
+	 * @param timestamp			Event time in milliseconds since the epoch
+	 * @return					The DTS record
+	 */
+	public static String accountingRecord(String acctStatusType, String userName, String framedIp, String nasIdentifier,
+			String sessionId, long timestamp) {
+		return "<Event><Timestamp data_type=\"4\">"+new SimpleDateFormat(TIMESTAMP_FORMAT).format(new Date(timestamp))+"</Timestamp>"
+				+"<Computer-Name data_type=\"1\">NPS01</Computer-Name><Event-Source data_type=\"1\">IAS</Event-Source>"
+				+"<Acct-Status-Type data_type=\"0\">"+acctStatusType+"</Acct-Status-Type>"
+				+"<User-Name data_type=\"1\">"+userName+"</User-Name>"
+				+"<Framed-IP-Address data_type=\"3\">"+framedIp+"</Framed-IP-Address>"
+				+"<NAS-Identifier data_type=\"1\">"+nasIdentifier+"</NAS-Identifier>"
+				+"<NAS-IP-Address data_type=\"3\">172.16.1.10</NAS-IP-Address><NAS-Port data_type=\"0\">13</NAS-Port>"
+				+"<Called-Station-Id data_type=\"1\">00-11-22-33-44-55:CORP</Called-Station-Id>"
+				+"<Calling-Station-Id data_type=\"1\">66-77-88-99-AA-BB</Calling-Station-Id>"
+				+"<Acct-Session-Id data_type=\"1\">"+sessionId+"</Acct-Session-Id>"
+				+"<Acct-Delay-Time data_type=\"0\">0</Acct-Delay-Time><Acct-Authentic data_type=\"0\">1</Acct-Authentic>"
+				+"<Client-IP-Address data_type=\"3\">172.16.1.10</Client-IP-Address><Client-Vendor data_type=\"0\">9</Client-Vendor>"
+				+"<Client-Friendly-Name data_type=\"1\">"+nasIdentifier+"</Client-Friendly-Name>"
+				+"<Provider-Type data_type=\"0\">1</Provider-Type><Packet-Type data_type=\"0\">4</Packet-Type>"
+				+"<Reason-Code data_type=\"0\">0</Reason-Code></Event>";
+	}
+
+	/**
+	 * Builds one DTS authentication record (Access-Request). These are logged by NPS in the same file and must be rejected
+	 *
+	 * @param userName			User-Name attribute
+	 * @param nasIdentifier		NAS-Identifier attribute
+	 * @param timestamp			Event time in milliseconds since the epoch
+	 * @return					The DTS record
+	 */
+	public static String accessRequestRecord(String userName, String nasIdentifier, long timestamp) {
+		return "<Event><Timestamp data_type=\"4\">"+new SimpleDateFormat(TIMESTAMP_FORMAT).format(new Date(timestamp))+"</Timestamp>"
+				+"<Computer-Name data_type=\"1\">NPS01</Computer-Name><Event-Source data_type=\"1\">IAS</Event-Source>"
+				+"<User-Name data_type=\"1\">"+userName+"</User-Name>"
+				+"<NAS-Identifier data_type=\"1\">"+nasIdentifier+"</NAS-Identifier>"
+				+"<NAS-IP-Address data_type=\"3\">172.16.1.10</NAS-IP-Address>"
+				+"<Called-Station-Id data_type=\"1\">00-11-22-33-44-55:CORP</Called-Station-Id>"
+				+"<Client-IP-Address data_type=\"3\">172.16.1.10</Client-IP-Address>"
+				+"<Packet-Type data_type=\"0\">1</Packet-Type><Reason-Code data_type=\"0\">0</Reason-Code></Event>";
+	}
+
+	/**
+	 * @param index		Sequence number
+	 * @return			A deterministic IPv4 address inside 10.0.0.0/8 for the given index
+	 */
+	public static String ipFor(int index) {
+		return "10."+((index >> 16) & 0xff)+"."+((index >> 8) & 0xff)+"."+(index & 0xff);
+	}
+}
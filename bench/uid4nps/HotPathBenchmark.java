@@ -0,0 +1,187 @@
+package uid4nps;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Microbenchmarks for the hot paths of the pipeline:
+ * <ul>
+ * <li>{@link UseridNpsDtsParser#IMIParser} with accepted and rejected DTS records</li>
+ * <li>The "includePattern" regular expression</li>
+ * <li>{@link UseridPanosInterface#addEntry} and {@link UseridPanosInterface#removeDuplicateEntries} at several buffer sizes</li>
+ * <li>The uid-message serialization done by {@link UseridPanosInterface#buildUidMessage}</li>
+ * </ul>
+ * Each benchmark is warmed up and then measured in several iterations. The report shows the average time per
+ * operation and the allocation rate (bytes per operation) measured with the per-thread allocation counter of the JVM.
+ * <p>
+ * Usage: java -cp &lt;classes&gt; uid4nps.HotPathBenchmark [filter]
+ *
+ */
+public class HotPathBenchmark {
+
+	/**
+	 * One benchmarked operation. The returned value is consumed so the JIT can't remove the work
+	 */
+	protected static abstract class Operation {
+		protected String name;
+
+		protected Operation(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @param i		Invocation number
+		 * @return		Any value derived from the work done
+		 */
+		protected abstract Object run(int i) throws Exception;
+	}
+
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int MEASURE_ITERATIONS = 5;
+	private static final long ITERATION_NANOS = 1000000000L;
+	private static final int[] BUFFER_SIZES = { 10, 100, 1000, 5000 };
+
+	private static com.sun.management.ThreadMXBean threadBean =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	private static long sink;
+
+	/**
+	 * @param args		Optional substring to select the benchmarks to run
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		Logger.getLogger("userid4nps").setLevel(Level.WARNING);
+		String filter = args.length > 0 ? args[0] : "";
+		System.out.println(String.format("%-45s %14s %14s %12s", "Benchmark", "ns/op", "ops/s", "B/op"));
+		for (Operation op : operations())
+			if (op.name.contains(filter))
+				measure(op);
+		if (sink == 42)
+			System.out.println();
+	}
+
+	/**
+	 * @return	All the benchmarks
+	 * @throws Exception
+	 */
+	protected static List<Operation> operations() throws Exception {
+		List<Operation> ops = new ArrayList<Operation>();
+		long now = System.currentTimeMillis();
+		final String accepted = DtsSamples.accountingRecord("3", "jdoe@corppro", "10.1.2.3", "CG-WISMB", "4F2A0001", now);
+		final String rejectedType = DtsSamples.accessRequestRecord("jdoe@corppro", "CG-WISMB", now);
+		final String rejectedHost = DtsSamples.accountingRecord("1", "host/pc01.corppro.local", "10.1.2.4", "CG-WISMB", "4F2A0002", now);
+		final String rejectedNas = DtsSamples.accountingRecord("1", "jdoe@corppro", "10.1.2.3", "CG-OTHER", "4F2A0003", now);
+		final UseridNpsDtsParser parser = new UseridNpsDtsParser("corppro", ".*CG-WISMB.*");
+		final Pattern includePat = Pattern.compile(".*CG-WISMB.*");
+
+		ops.add(new Operation("IMIParser accepted interim") {
+			protected Object run(int i) throws Exception {
+				return parser.IMIParser(accepted);
+			}
+		});
+		ops.add(new Operation("IMIParser rejected access-request") {
+			protected Object run(int i) throws Exception {
+				return parser.IMIParser(rejectedType);
+			}
+		});
+		ops.add(new Operation("IMIParser rejected host/") {
+			protected Object run(int i) throws Exception {
+				return parser.IMIParser(rejectedHost);
+			}
+		});
+		ops.add(new Operation("IMIParser rejected by includePattern") {
+			protected Object run(int i) throws Exception {
+				return parser.IMIParser(rejectedNas);
+			}
+		});
+		ops.add(new Operation("includePattern match") {
+			protected Object run(int i) {
+				return includePat.matcher(accepted).matches();
+			}
+		});
+		ops.add(new Operation("includePattern miss") {
+			protected Object run(int i) {
+				return includePat.matcher(rejectedNas).matches();
+			}
+		});
+		for (final int size : BUFFER_SIZES) {
+			final UseridPanosInterface buffer = filledBuffer(size);
+			final UseridEntry[] entries = new UseridEntry[size];
+			for (int a = 0; a < size; a++)
+				entries[a] = new UseridEntry("corppro\\user"+a, DtsSamples.ipFor(a), "CG-WISMB", 0);
+			ops.add(new Operation("addEntry duplicate, buffer="+size) {
+				protected Object run(int i) throws Exception {
+					UseridEntry entry = entries[i % size];
+					buffer.addEntry("3", entry.userName, entry.ip, entry.nasIdentifier);
+					return buffer.pendingEntries();
+				}
+			});
+			ops.add(new Operation("removeDuplicateEntries miss, buffer="+size) {
+				private UseridEntry missing = new UseridEntry("corppro\\nobody", "192.168.0.1", null, 0);
+
+				protected Object run(int i) {
+					buffer.removeDuplicateEntries(missing);
+					return buffer.pendingEntries();
+				}
+			});
+			final UseridPanosInterface serializer = filledBuffer(size);
+			serializer.dynAddressFeature = true;
+			ops.add(new Operation("buildUidMessage serialization, batch="+size) {
+				protected Object run(int i) {
+					return serializer.buildUidMessage(serializer.pendLoginEntries, serializer.pendLogoutEntries).length();
+				}
+			});
+		}
+		return ops;
+	}
+
+	/**
+	 * Builds a {@link UseridPanosInterface} that never flushes by size, with the given number of buffered logins
+	 */
+	private static UseridPanosInterface filledBuffer(int size) throws Exception {
+		UseridPanosInterface buffer = new UseridPanosInterface(Integer.MAX_VALUE, 1440, 2000, false);
+		for (int a = 0; a < size; a++)
+			buffer.addEntry("1", "corppro\\user"+a, DtsSamples.ipFor(a), "CG-WISMB");
+		return buffer;
+	}
+
+	private static void measure(Operation op) throws Exception {
+		for (int a = 0; a < WARMUP_ITERATIONS; a++)
+			iteration(op);
+		double nanos = 0;
+		double ops = 0;
+		double bytes = 0;
+		for (int a = 0; a < MEASURE_ITERATIONS; a++) {
+			double[] result = iteration(op);
+			nanos += result[0];
+			ops += result[1];
+			bytes += result[2];
+		}
+		System.out.println(String.format("%-45s %14.1f %14.0f %12.1f", op.name, nanos / ops, ops * 1e9 / nanos, bytes / ops));
+	}
+
+	/**
+	 * Runs the operation for {@link HotPathBenchmark#ITERATION_NANOS}
+	 *
+	 * @return	Elapsed nanoseconds, operations done and bytes allocated
+	 */
+	private static double[] iteration(Operation op) throws Exception {
+		long threadId = Thread.currentThread().getId();
+		long allocatedStart = threadBean.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		long end = start + ITERATION_NANOS;
+		int count = 0;
+		long now;
+		do {
+			for (int a = 0; a < 64; a++)
+				sink += op.run(count++).hashCode();
+			now = System.nanoTime();
+		} while (now < end);
+		long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedStart;
+		return new double[] { now - start, count, allocated };
+	}
+}
@@ -0,0 +1,412 @@
+package uid4nps;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded stand-in for the PANOS "/api/" resource, to be used as the target of {@link PANOSApiConnector}
+ * in load and failover tests. It answers "type=user-id" calls and the "check pending-changes" operational command.
+ * <p>
+ * The behaviour can be scripted at runtime: response latency (base + uniform jitter + random spikes), whole request
+ * errors, dropped connections, per-entry errors and a down state to emulate a failed cluster member.
+ * Every mapping received is recorded so callers can assert on them or be notified with a {@link MappingListener}
+ *
+ */
+public class PanosApiSimulator implements HttpHandler {
+
+	/**
+	 * Callback interface to be notified of every user-id entry accepted by the simulator
+	 */
+	public interface MappingListener {
+		/**
+		 * @param user		Username of the entry
+		 * @param ip		IP address of the entry
+		 * @param login		TRUE for login entries, FALSE for logout entries
+		 * @param nanoTime	{@link System#nanoTime} when the entry was accepted
+		 */
+		void mappingReceived(String user, String ip, boolean login, long nanoTime);
+	}
+
+	private HttpServer server;
+	private ExecutorService workers;
+	private String apiKey;
+	private volatile long latencyBaseMs;
+	private volatile long latencyJitterMs;
+	private volatile double latencySpikeRate;
+	private volatile long latencySpikeMs;
+	private volatile double errorRate;
+	private volatile double dropRate;
+	private volatile double entryErrorRate;
+	private volatile boolean down;
+	private List<MappingListener> listeners;
+	private SAXParserFactory spf;
+
+	/**
+	 * Current user per IP address as seen by this simulated device
+	 */
+	protected ConcurrentHashMap<String, String> mappings;
+	/**
+	 * Registered dynamic address tags per IP address
+	 */
+	protected ConcurrentHashMap<String, Set<String>> tags;
+	/**
+	 * Group membership received in "groups" payloads
+	 */
+	protected ConcurrentHashMap<String, Set<String>> groups;
+	/**
+	 * Counters of received calls, accepted entries and injected failures
+	 */
+	public final AtomicLong requests = new AtomicLong();
+	public final AtomicLong logins = new AtomicLong();
+	public final AtomicLong logouts = new AtomicLong();
+	public final AtomicLong injectedErrors = new AtomicLong();
+	public final AtomicLong droppedConnections = new AtomicLong();
+	public final AtomicLong entryErrors = new AtomicLong();
+
+	/**
+	 * Creates the simulator bound to the loopback interface
+	 *
+	 * @param port		TCP port to listen on. Use 0 to get an ephemeral one (see {@link PanosApiSimulator#getUrl})
+	 * @param apiKey	API key expected in the calls. NULL accepts any key
+	 * @throws IOException
+	 */
+	public PanosApiSimulator(int port, String apiKey) throws IOException {
+		this.apiKey = apiKey;
+		mappings = new ConcurrentHashMap<String, String>();
+		tags = new ConcurrentHashMap<String, Set<String>>();
+		groups = new ConcurrentHashMap<String, Set<String>>();
+		listeners = new CopyOnWriteArrayList<MappingListener>();
+		spf = SAXParserFactory.newInstance();
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 128);
+		server.createContext("/api/", this);
+		workers = Executors.newFixedThreadPool(16);
+		server.setExecutor(workers);
+	}
+
+	/**
+	 * Starts serving requests
+	 */
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stops serving requests and releases the listening port
+	 */
+	public void stop() {
+		server.stop(0);
+		workers.shutdownNow();
+	}
+
+	/**
+	 * @return	The URL to be used as "fwUrl" in the configuration file (without the tailing "/api")
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:"+server.getAddress().getPort();
+	}
+
+	/**
+	 * Sets the response latency distribution
+	 *
+	 * @param baseMs		Fixed latency added to every response
+	 * @param jitterMs		Uniformly distributed extra latency between 0 and this value
+	 * @param spikeRate		Probability (0..1) of a latency spike
+	 * @param spikeMs		Extra latency added on a spike
+	 */
+	public void setLatency(long baseMs, long jitterMs, double spikeRate, long spikeMs) {
+		latencyBaseMs = baseMs;
+		latencyJitterMs = jitterMs;
+		latencySpikeRate = spikeRate;
+		latencySpikeMs = spikeMs;
+	}
+
+	/**
+	 * @param errorRate		Probability (0..1) of answering a whole request with an error response
+	 */
+	public void setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * @param dropRate		Probability (0..1) of closing the connection without any response
+	 */
+	public void setDropRate(double dropRate) {
+		this.dropRate = dropRate;
+	}
+
+	/**
+	 * @param entryErrorRate	Probability (0..1) of rejecting each individual login entry
+	 */
+	public void setEntryErrorRate(double entryErrorRate) {
+		this.entryErrorRate = entryErrorRate;
+	}
+
+	/**
+	 * @param down		TRUE to drop every connection, emulating a device that is not reachable
+	 */
+	public void setDown(boolean down) {
+		this.down = down;
+	}
+
+	/**
+	 * @param listener	Listener to be notified of every accepted entry
+	 */
+	public void addMappingListener(MappingListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * @param ip	IP address
+	 * @return		The user currently mapped to the IP address or NULL
+	 */
+	public String getUser(String ip) {
+		return mappings.get(ip);
+	}
+
+	/**
+	 * @return	A copy of the current IP address to user mappings
+	 */
+	public Map<String, String> getMappings() {
+		return new HashMap<String, String>(mappings);
+	}
+
+	/**
+	 * Clears the recorded state and counters, emulating a device reboot
+	 */
+	public void reset() {
+		mappings.clear();
+		tags.clear();
+		groups.clear();
+		requests.set(0);
+		logins.set(0);
+		logouts.set(0);
+		injectedErrors.set(0);
+		droppedConnections.set(0);
+		entryErrors.set(0);
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		Map<String, String> params = readParameters(exchange);
+		requests.incrementAndGet();
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long latency = latencyBaseMs;
+		if (latencyJitterMs > 0)
+			latency += random.nextLong(latencyJitterMs + 1);
+		if (latencySpikeRate > 0 && random.nextDouble() < latencySpikeRate)
+			latency += latencySpikeMs;
+		if (latency > 0)
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		if (down || (dropRate > 0 && random.nextDouble() < dropRate)) {
+			droppedConnections.incrementAndGet();
+			exchange.close();
+			return;
+		}
+		if (apiKey != null && !apiKey.equals(params.get("key"))) {
+			respond(exchange, "<response status=\"error\" code=\"403\"><result><msg>Invalid credentials.</msg></result></response>");
+			return;
+		}
+		if (errorRate > 0 && random.nextDouble() < errorRate) {
+			injectedErrors.incrementAndGet();
+			respond(exchange, "<response status=\"error\"><msg><line>Simulated error</line></msg></response>");
+			return;
+		}
+		String type = params.get("type");
+		String cmd = params.get("cmd");
+		if ("op".equals(type) && cmd != null && cmd.contains("pending-changes"))
+			respond(exchange, "<response status=\"success\"><result>no</result></response>");
+		else if ("user-id".equals(type) && cmd != null)
+			respond(exchange, processUidMessage(cmd));
+		else
+			respond(exchange, "<response status=\"error\" code=\"400\"><result><msg>Unsupported request</msg></result></response>");
+	}
+
+	private Map<String, String> readParameters(HttpExchange exchange) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		InputStream body = exchange.getRequestBody();
+		String query = new String(body.readAllBytes(), "utf-8");
+		body.close();
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0)
+				params.put(pair.substring(0, eq), URLDecoder.decode(pair.substring(eq + 1), "utf-8"));
+		}
+		return params;
+	}
+
+	private void respond(HttpExchange exchange, String message) throws IOException {
+		byte[] payload = message.getBytes("utf-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/xml");
+		exchange.sendResponseHeaders(200, payload.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(payload);
+		out.close();
+	}
+
+	/**
+	 * Applies a uid-message to the recorded state
+	 *
+	 * @param cmd	The uid-message received
+	 * @return		The XML response to be sent back
+	 */
+	protected String processUidMessage(String cmd) {
+		UidMessageHandler handler = new UidMessageHandler();
+		try {
+			SAXParser parser = spf.newSAXParser();
+			XMLReader reader = parser.getXMLReader();
+			reader.setContentHandler(handler);
+			reader.parse(new InputSource(new StringReader(cmd)));
+		} catch (ParserConfigurationException e) {
+			return "<response status=\"error\"><msg><line>Simulator parser error</line></msg></response>";
+		} catch (SAXException e) {
+			return "<response status=\"error\" code=\"400\"><msg><line>Malformed uid-message</line></msg></response>";
+		} catch (IOException e) {
+			return "<response status=\"error\"><msg><line>Simulator IO error</line></msg></response>";
+		}
+		if (handler.failed.isEmpty())
+			return "<response status=\"success\"><result><uid-response><version>2.0</version><payload/></uid-response></result></response>";
+		String message = "<response status=\"error\"><msg>";
+		for (String ip : handler.failed)
+			message += "<line>Failed to add mapping for "+ip+"</line>";
+		return message+"</msg></response>";
+	}
+
+	/**
+	 * SAX handler applying the login, logout, register, unregister and groups sections of a uid-message
+	 */
+	private class UidMessageHandler extends DefaultHandler {
+
+		private List<String> failed = new ArrayList<String>();
+		private String section;
+		private String currentIp;
+		private boolean currentIpHasTags;
+		private String currentGroup;
+		private StringBuilder text = new StringBuilder();
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+			text.setLength(0);
+			if (qName.equals("login") || qName.equals("logout") || qName.equals("register")
+					|| qName.equals("unregister") || qName.equals("groups")) {
+				section = qName;
+				return;
+			}
+			if (qName.equals("tag"))
+				currentIpHasTags = true;
+			if (!qName.equals("entry") || section == null)
+				return;
+			String ip = atts.getValue("ip");
+			String name = atts.getValue("name");
+			if (section.equals("login")) {
+				if (entryErrorRate > 0 && ThreadLocalRandom.current().nextDouble() < entryErrorRate) {
+					entryErrors.incrementAndGet();
+					failed.add(ip);
+					return;
+				}
+				mappings.put(ip, name);
+				logins.incrementAndGet();
+				notifyListeners(name, ip, true);
+			}
+			else if (section.equals("logout")) {
+				mappings.remove(ip, name);
+				logouts.incrementAndGet();
+				notifyListeners(name, ip, false);
+			}
+			else if (section.equals("register") || section.equals("unregister")) {
+				currentIp = ip;
+				currentIpHasTags = false;
+			}
+			else if (currentGroup == null) {
+				currentGroup = name;
+				groups.put(currentGroup, ConcurrentHashMap.<String>newKeySet());
+			}
+			else
+				groups.get(currentGroup).add(name);
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) throws SAXException {
+			text.append(ch, start, length);
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			if (qName.equals("member") && currentIp != null) {
+				String tag = text.toString().trim();
+				if (section.equals("register")) {
+					tags.putIfAbsent(currentIp, ConcurrentHashMap.<String>newKeySet());
+					tags.get(currentIp).add(tag);
+				}
+				else if (tags.containsKey(currentIp))
+					tags.get(currentIp).remove(tag);
+			}
+			else if (qName.equals("entry") && currentIp != null) {
+				if (section.equals("unregister") && !currentIpHasTags)
+					tags.remove(currentIp);
+				currentIp = null;
+			}
+			else if (qName.equals("members"))
+				currentGroup = null;
+			else if (qName.equals(section))
+				section = null;
+		}
+
+		private void notifyListeners(String user, String ip, boolean login) {
+			long now = System.nanoTime();
+			for (MappingListener listener : listeners)
+				listener.mappingReceived(user, ip, login, now);
+		}
+	}
+
+	/**
+	 * Runs the simulator as a standalone process, printing its counters every 10 seconds
+	 *
+	 * @param args		Optional TCP port (defaults to 8443)
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int port = args.length > 0 ? Integer.valueOf(args[0]) : 8443;
+		PanosApiSimulator simulator = new PanosApiSimulator(port, null);
+		simulator.start();
+		System.out.println("PANOS API simulator listening at "+simulator.getUrl()+"/api/");
+		while (true) {
+			Thread.sleep(10000);
+			System.out.println("requests="+simulator.requests.get()+" logins="+simulator.logins.get()+" logouts="+simulator.logouts.get()
+					+" mappings="+simulator.mappings.size()+" errors="+simulator.injectedErrors.get()+" drops="+simulator.droppedConnections.get());
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package uid4nps;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * End-to-end throughput and latency harness. It writes synthetic NPS DTS log lines into a temporary "npsLogDir"
+ * at a configurable rate, runs the real {@link userid4nps} pipeline against a local {@link PanosApiSimulator}
+ * and reports the sustained throughput plus the p50/p99/p999 lag from log write to firewall acceptance.
+ * <p>
+ * The traffic mix includes logins, interim refreshes, logouts, "host/" entries, records from a NAS that doesn't
+ * match the include pattern, access-request records and periodic log file rotation.
+ * <p>
+ * Usage: java -cp &lt;classes&gt; uid4nps.ThroughputHarness [rate=2000] [duration=30] [rotateEvery=0] [users=5000]
+ * [latencyMs=5] [&lt;configKey&gt;=&lt;value&gt; ...]
+ * <br>
+ * Any other key=value argument is written as is into the userid4nps configuration file
+ *
+ */
+public class ThroughputHarness implements PanosApiSimulator.MappingListener {
+
+	private static final String NAS = "CG-WISMB";
+	private static final String OTHER_NAS = "CG-OTHER";
+
+	private int rate = 2000;
+	private int duration = 30;
+	private int rotateEvery = 0;
+	private int users = 5000;
+	private long latencyMs = 5;
+	private Properties config = new Properties();
+
+	private ConcurrentHashMap<String, Long> writeTimes = new ConcurrentHashMap<String, Long>();
+	private long[] lags = new long[1 << 16];
+	private int lagCount;
+	private long accepted;
+	private Path logDir;
+	private int fileIndex;
+	private BufferedWriter out;
+	private boolean[] loggedIn;
+
+	/**
+	 * @param args		key=value arguments, see the class description
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		ThroughputHarness harness = new ThroughputHarness();
+		for (String arg : args) {
+			String parts[] = arg.split("=", 2);
+			if (parts.length != 2)
+				continue;
+			if (parts[0].equals("rate"))
+				harness.rate = Integer.valueOf(parts[1]);
+			else if (parts[0].equals("duration"))
+				harness.duration = Integer.valueOf(parts[1]);
+			else if (parts[0].equals("rotateEvery"))
+				harness.rotateEvery = Integer.valueOf(parts[1]);
+			else if (parts[0].equals("users"))
+				harness.users = Integer.valueOf(parts[1]);
+			else if (parts[0].equals("latencyMs"))
+				harness.latencyMs = Long.valueOf(parts[1]);
+			else
+				harness.config.setProperty(parts[0], parts[1]);
+		}
+		harness.run();
+	}
+
+	@Override
+	public void mappingReceived(String user, String ip, boolean login, long nanoTime) {
+		Long written = writeTimes.remove(key(user, ip, login));
+		if (written == null)
+			return;
+		synchronized (this) {
+			accepted++;
+			if (lagCount == lags.length)
+				lags = Arrays.copyOf(lags, lags.length * 2);
+			lags[lagCount++] = nanoTime - written;
+		}
+	}
+
+	private static String key(String user, String ip, boolean login) {
+		return (login ? "1|" : "2|")+user+"|"+ip;
+	}
+
+	/**
+	 * Runs the whole scenario and prints the report
+	 *
+	 * @throws Exception
+	 */
+	public void run() throws Exception {
+		Path workDir = Files.createTempDirectory("uid4nps-harness");
+		logDir = Files.createDirectory(workDir.resolve("logs"));
+		PanosApiSimulator simulator = new PanosApiSimulator(0, null);
+		simulator.setLatency(latencyMs, latencyMs, 0.001, 200);
+		simulator.addMappingListener(this);
+		simulator.start();
+
+		Properties props = new Properties();
+		props.setProperty("fw1Url", simulator.getUrl());
+		props.setProperty("fw2Url", simulator.getUrl());
+		props.setProperty("npsLogDir", logDir.toString());
+		props.setProperty("outputLogFile", workDir.resolve("userid4nps.log").toString());
+		props.setProperty("logLevel", "WARNING");
+		props.setProperty("includePattern", ".*"+NAS+".*");
+		props.putAll(config);
+		File configFile = workDir.resolve("userid4nps.cfg").toFile();
+		FileOutputStream configOs = new FileOutputStream(configFile);
+		props.store(configOs, "ThroughputHarness");
+		configOs.close();
+
+		loggedIn = new boolean[users];
+		rotate();
+		final String[] startArgs = { "-config="+configFile.getPath() };
+		Thread pipeline = new Thread(new Runnable() {
+			public void run() {
+				try {
+					userid4nps.start(startArgs);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, "uid4nps-pipeline");
+		pipeline.start();
+		Thread.sleep(2000);
+
+		Random random = new Random(1);
+		long written = 0;
+		long matching = 0;
+		long start = System.nanoTime();
+		long end = start + duration * 1000000000L;
+		long tickNanos = 10000000L;
+		long next = start;
+		while (next < end) {
+			long target = (System.nanoTime() - start) * rate / 1000000000L;
+			while (written < target) {
+				if (writeEvent(random))
+					matching++;
+				written++;
+				if (rotateEvery > 0 && written % rotateEvery == 0)
+					rotate();
+			}
+			out.flush();
+			next += tickNanos;
+			long sleep = next - System.nanoTime();
+			if (sleep > 0)
+				Thread.sleep(sleep / 1000000L, (int) (sleep % 1000000L));
+		}
+		long elapsed = System.nanoTime() - start;
+		long drainUntil = System.currentTimeMillis() + 15000;
+		while (!writeTimes.isEmpty() && System.currentTimeMillis() < drainUntil)
+			Thread.sleep(100);
+		userid4nps.stop(null);
+		pipeline.join(60000);
+		simulator.stop();
+		out.close();
+		report(written, matching, elapsed, simulator);
+	}
+
+	/**
+	 * Writes one random event to the current log file
+	 *
+	 * @return	TRUE if the event must reach the firewall
+	 */
+	private boolean writeEvent(Random random) throws IOException {
+		int u = random.nextInt(users);
+		String user = "user"+u;
+		String ip = DtsSamples.ipFor(u);
+		long now = System.currentTimeMillis();
+		String session = Integer.toHexString(u);
+		int dice = random.nextInt(100);
+		String line;
+		boolean expected = true;
+		String acctStatusType;
+		if (dice < 5) {
+			line = DtsSamples.accountingRecord("1", "host/pc"+u+".corppro.local", ip, NAS, session, now);
+			expected = false;
+		}
+		else if (dice < 10) {
+			line = DtsSamples.accountingRecord("3", user+"@corppro", ip, OTHER_NAS, session, now);
+			expected = false;
+		}
+		else if (dice < 20) {
+			line = DtsSamples.accessRequestRecord(user+"@corppro", NAS, now);
+			expected = false;
+		}
+		else {
+			if (!loggedIn[u])
+				acctStatusType = "1";
+			else if (dice < 30)
+				acctStatusType = "2";
+			else
+				acctStatusType = "3";
+			loggedIn[u] = !acctStatusType.equals("2");
+			line = DtsSamples.accountingRecord(acctStatusType, user+"@corppro", ip, NAS, session, now);
+			String normalized = "corppro\\"+user;
+			writeTimes.put(key(normalized, ip, !acctStatusType.equals("2")), System.nanoTime());
+			writeTimes.remove(key(normalized, ip, acctStatusType.equals("2")));
+		}
+		out.write(line);
+		out.write("\r\n");
+		return expected;
+	}
+
+	/**
+	 * Closes the current log file and starts a new one, like NPS does on a daily or size based rollover
+	 */
+	private void rotate() throws IOException {
+		if (out != null)
+			out.close();
+		fileIndex++;
+		Path file = logDir.resolve(String.format("IN%06d.log", fileIndex));
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file.toFile()), "UTF-8"));
+		out.write(DtsSamples.accessRequestRecord("init@corppro", NAS, System.currentTimeMillis()));
+		out.write("\r\n");
+		out.flush();
+	}
+
+	private synchronized void report(long written, long matching, long elapsedNanos, PanosApiSimulator simulator) {
+		double seconds = elapsedNanos / 1e9;
+		long[] sorted = Arrays.copyOf(lags, lagCount);
+		Arrays.sort(sorted);
+		System.out.println("Events written:        "+written+" ("+String.format("%.0f", written / seconds)+"/s)");
+		System.out.println("Events to firewall:    "+matching);
+		System.out.println("Entries accepted:      "+accepted+" ("+String.format("%.0f", accepted / seconds)+"/s sustained)");
+		System.out.println("Entries never seen:    "+writeTimes.size()+" (coalesced by the buffer or still pending)");
+		System.out.println("API requests:          "+simulator.requests.get());
+		System.out.println("Lag p50:               "+percentile(sorted, 0.50)+" ms");
+		System.out.println("Lag p99:               "+percentile(sorted, 0.99)+" ms");
+		System.out.println("Lag p999:              "+percentile(sorted, 0.999)+" ms");
+		System.out.println("Lag max:               "+(sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1000000.0)+" ms");
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+		return sorted[Math.max(0, index)] / 1000000.0;
+	}
+}
@@ -4,13 +4,13 @@
 package uid4nps;
 
 import java.net.ProtocolException;
-import java.util.TimerTask;
 
 /**
- * Convenience TimerTask extension to avoid using anonymous classes inside {@link PANOSApiConnector} and {@link UseridPanosInterface}
+ * Convenience Runnable implementation to avoid using anonymous classes inside {@link PANOSApiConnector} and {@link UseridPanosInterface}.
+ * Instances are scheduled in the {@link SharedScheduler}
  * 
  */
-public class CallbackHelper extends TimerTask {
+public class CallbackHelper implements Runnable {
 	
 	/**
 	 * {@link PANOSApiConnector} pointer in case we've been created to call back such a class type
@@ -40,7 +40,7 @@ public class CallbackHelper extends TimerTask {
 	}
 
 	/* (non-Javadoc)
-	 * @see java.util.TimerTask#run()
+	 * @see java.lang.Runnable#run()
 	 */
 	@Override
 	public void run() {
@@ -0,0 +1,233 @@
+package uid4nps;
+
+/**
+ * Per IP address index of the last event accepted into the {@link UseridPanosInterface} buffer: its event time,
+ * its Acct-Session-Id and whether it was a login or a logout. With several sources (NPS servers, log files, syslog,
+ * RADIUS) events for the same address may arrive out of order, and a delayed old logout must not remove the mapping
+ * of a newer login. Events older than the last accepted one are reported as stale so they never reach a batch.
+ * <p>
+ * An event of the session the address is currently logged in with is always in order: interim updates and the
+ * logout of the current session are accepted even if the clocks of the NPS servers logging them are slightly skewed.
+ * Sources don't share a time resolution (RADIUS Event-Timestamp has whole seconds, DTS records and ingest times have
+ * milliseconds), so events less than {@link EventOrder#TIME_RESOLUTION_MS} apart are never stale: they are taken in
+ * arrival order, except a logout of a different session than the current login and a login or interim update of
+ * a session that has already ended.
+ * <p>
+ * Rows live in open addressing tables like the {@link MappingStore} ones: IPv4 addresses in a table keyed by the address
+ * (around 17 bytes per address), IPv6 addresses in a second one keyed by a hash and holding the 128 bits of the address
+ * (around 16 bytes more per address), created with the first IPv6 event.
+ * The index is not thread safe: callers must hold the buffer semaphore
+ *
+ */
+public class EventOrder {
+
+	private static final float LOAD_FACTOR = 0.6f;
+	/**
+	 * Largest number of slots of a table. Bigger sizes are clamped to it, so the sizing can't overflow
+	 */
+	private static final int MAX_CAPACITY = 1 << 30;
+	/**
+	 * Coarsest time resolution of the sources in milliseconds. An event must be at least this much older than the last
+	 * accepted one to be stale
+	 */
+	protected static final long TIME_RESOLUTION_MS = 1000;
+
+	private final boolean wide;
+	private int[] keys;
+	private long[] highs;
+	private long[] lows;
+	private long[] times;
+	private int[] sessions;
+	private boolean[] logins;
+	private int mask;
+	private int size;
+	private int resizeAt;
+	/**
+	 * Index of the IPv6 addresses. NULL until the first IPv6 event
+	 */
+	private EventOrder v6;
+
+	/**
+	 * @param expectedAddresses	Number of IPv4 addresses the table is sized for. It grows if needed
+	 */
+	public EventOrder(int expectedAddresses) {
+		this(expectedAddresses, false);
+	}
+
+	/**
+	 * @param expectedAddresses	Number of addresses the table is sized for. It grows if needed
+	 * @param wide				TRUE for the IPv6 index, whose keys are hashes and must be checked against the full address
+	 */
+	private EventOrder(int expectedAddresses, boolean wide) {
+		this.wide = wide;
+		int capacity = 16;
+		while (capacity < MAX_CAPACITY && capacity * LOAD_FACTOR < expectedAddresses)
+			capacity <<= 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		if (wide) {
+			highs = new long[capacity];
+			lows = new long[capacity];
+		}
+		times = new long[capacity];
+		sessions = new int[capacity];
+		logins = new boolean[capacity];
+		mask = capacity - 1;
+		resizeAt = (int) (capacity * LOAD_FACTOR);
+	}
+
+	/**
+	 * Checks an event against the last accepted one for its IP address and, if it is in order, records it as the last one
+	 *
+	 * @param entry		The entry of the event
+	 * @param login		TRUE for logins and interim updates, FALSE for logouts
+	 * @return			FALSE if the event is older than the state already accepted for the address
+	 */
+	public boolean accept(UseridEntry entry, boolean login) {
+		long high = entry.ipHigh;
+		long low = entry.ipLow;
+		if (IpAddress.isV4(high, low))
+			return accept((int) low, high, low, entry, login);
+		if (high == 0 && low == 0)
+			return true;
+		if (v6 == null)
+			v6 = new EventOrder(0, true);
+		return v6.accept(IpAddress.hash(high, low), high, low, entry, login);
+	}
+
+	private boolean accept(int key, long high, long low, UseridEntry entry, boolean login) {
+		if (key == 0)
+			return true;
+		int session = sessionHash(entry.sessionId);
+		int slot = slot(key, high, low);
+		if (keys[slot] != 0) {
+			boolean currentSession = session != 0 && session == sessions[slot] && logins[slot];
+			if (!currentSession) {
+				long age = times[slot] - entry.eventTime;
+				if (age >= TIME_RESOLUTION_MS)
+					return false;
+				if (age > -TIME_RESOLUTION_MS && !login && logins[slot] && session != 0 && sessions[slot] != 0)
+					return false;
+				if (age > -TIME_RESOLUTION_MS && login && !logins[slot] && session != 0 && session == sessions[slot])
+					return false;	// the session has already ended
+			}
+			if (entry.eventTime > times[slot])
+				times[slot] = entry.eventTime;
+		}
+		else {
+			if (size >= resizeAt && keys.length < MAX_CAPACITY) {
+				rehash(keys.length << 1);
+				slot = slot(key, high, low);
+			}
+			keys[slot] = key;
+			if (wide) {
+				highs[slot] = high;
+				lows[slot] = low;
+			}
+			times[slot] = entry.eventTime;
+			size++;
+		}
+		sessions[slot] = session;
+		logins[slot] = login;
+		return true;
+	}
+
+	/**
+	 * Forgets the addresses whose last event is older than the given time. Called periodically from the {@link SharedScheduler}
+	 *
+	 * @param olderThan		Time in milliseconds since the epoch
+	 */
+	public void purge(long olderThan) {
+		if (v6 != null)
+			v6.purge(olderThan);
+		int a = 0;
+		while (a < keys.length) {
+			if (keys[a] != 0 && times[a] < olderThan)
+				delete(a);	// a following row may have been shifted into this slot
+			else
+				a++;
+		}
+	}
+
+	/**
+	 * @return	Number of addresses in the index
+	 */
+	public int size() {
+		return v6 == null ? size : size + v6.size;
+	}
+
+	/**
+	 * @return	A non zero hash of the session id. 0 if there is no session id
+	 */
+	private static int sessionHash(String sessionId) {
+		if (sessionId == null || sessionId.isEmpty())
+			return 0;
+		int h = sessionId.hashCode();
+		return h == 0 ? 1 : h;
+	}
+
+	/**
+	 * Backward shift deletion, see {@link MappingStore}
+	 */
+	private void delete(int slot) {
+		size--;
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (keys[next] != 0) {
+			int home = hash(keys[next]) & mask;
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				if (wide) {
+					highs[hole] = highs[next];
+					lows[hole] = lows[next];
+				}
+				times[hole] = times[next];
+				sessions[hole] = sessions[next];
+				logins[hole] = logins[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		keys[hole] = 0;
+	}
+
+	private void rehash(int capacity) {
+		int[] oldKeys = keys;
+		long[] oldHighs = highs;
+		long[] oldLows = lows;
+		long[] oldTimes = times;
+		int[] oldSessions = sessions;
+		boolean[] oldLogins = logins;
+		allocate(capacity);
+		for (int a = 0; a < oldKeys.length; a++)
+			if (oldKeys[a] != 0) {
+				int slot = wide ? slot(oldKeys[a], oldHighs[a], oldLows[a]) : slot(oldKeys[a], 0, 0);
+				keys[slot] = oldKeys[a];
+				if (wide) {
+					highs[slot] = oldHighs[a];
+					lows[slot] = oldLows[a];
+				}
+				times[slot] = oldTimes[a];
+				sessions[slot] = oldSessions[a];
+				logins[slot] = oldLogins[a];
+			}
+	}
+
+	/**
+	 * @return	The slot holding the address or the empty slot where it should be inserted
+	 */
+	private int slot(int key, long high, long low) {
+		int slot = hash(key) & mask;
+		while (keys[slot] != 0 && (keys[slot] != key || (wide && (lows[slot] != low || highs[slot] != high))))
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
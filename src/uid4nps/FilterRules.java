@@ -0,0 +1,438 @@
+package uid4nps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Include and exclude rules over the RADIUS attributes of the accounting records, checked after the "includePattern"
+ * regular expression. Every rule is configured as "filterRule.N=action,attribute,operator,value[,value...]" (N = 1, 2, ...):
+ * <ul>
+ * <li>action: "include" or "exclude"</li>
+ * <li>operator "in": the value is one of the listed values</li>
+ * <li>operator "within": the value is an IPv4 or IPv6 address inside one of the listed subnets (i.e. 10.0.0.0/8)</li>
+ * <li>operator "like": the value matches one of the listed patterns: "svc_*" (prefix), "*-admin" (suffix), "*test*" (contains) or a literal value</li>
+ * </ul>
+ * i.e. "filterRule.1=include,NAS-Identifier,in,VPN1,VPN2", "filterRule.2=include,Framed-IP-Address,within,10.0.0.0/8",
+ * "filterRule.3=exclude,Framed-IP-Address,within,10.9.0.0/16" and "filterRule.4=exclude,User-Name,like,svc_*".
+ * <p>
+ * A record is dropped if any attribute matches an exclude rule or if an attribute with include rules (missing or not)
+ * matches none of them. Subnets are decided by the longest matching prefix, so an exclude of 10.9.0.0/16 carves a hole in
+ * an include of 10.0.0.0/8 and the other way round. "in" and "like" are case insensitive.
+ * <p>
+ * The rules are compiled per attribute into hash sets (exact values), a binary trie (subnets) and literal automata
+ * (prefixes, suffixes and an Aho-Corasick automaton for the contained literals), so checking a record costs one lookup per
+ * filtered attribute, linear in the length of its value, whatever the number of rules.
+ * The rules are shared by all the sources, so they are kept in a static field like the {@link TagRules}
+ *
+ */
+public class FilterRules {
+
+	private static final byte NONE = 0;
+	private static final byte INCLUDE = 1;
+	private static final byte EXCLUDE = 2;
+
+	private static AttributeFilter[] filters = new AttributeFilter[0];
+	private static Logger logHandler = Logger.getLogger("userid4nps");
+
+	private FilterRules() {
+	}
+
+	/**
+	 * Loads and compiles the "filterRule.N" properties. Without any of them every record is accepted
+	 *
+	 * @param properties	The running configuration
+	 */
+	public static synchronized void configure(Properties properties) {
+		LinkedHashMap<String, AttributeFilter> compiled = new LinkedHashMap<String, AttributeFilter>();
+		int rules = 0;
+		for (int n = 1; properties.getProperty("filterRule."+n) != null; n++) {
+			String[] rule = properties.getProperty("filterRule."+n).split(",");
+			if (rule.length < 4 || !(rule[0].trim().equals("include") || rule[0].trim().equals("exclude"))) {
+				logHandler.warning("Ignoring filterRule."+n+". Expected format is include|exclude,attribute,operator,value[,value...]");
+				continue;
+			}
+			byte decision = rule[0].trim().equals("include") ? INCLUDE : EXCLUDE;
+			String attribute = rule[1].trim();
+			String operator = rule[2].trim();
+			String invalid = null;
+			for (int a = 3; a < rule.length && invalid == null; a++)
+				if (!valid(operator, rule[a].trim()))
+					invalid = rule[a].trim();
+			if (invalid != null) {
+				logHandler.warning("Ignoring filterRule."+n+". Invalid operator '"+operator+"' or value '"+invalid+"'");
+				continue;
+			}
+			AttributeFilter filter = compiled.get(attribute);
+			if (filter == null) {
+				filter = new AttributeFilter(attribute);
+				compiled.put(attribute, filter);
+			}
+			for (int a = 3; a < rule.length; a++) {
+				String value = rule[a].trim();
+				if (operator.equals("in"))
+					filter.addValue(value, decision);
+				else if (operator.equals("within"))
+					filter.addSubnet(value, decision);
+				else
+					filter.addPattern(value, decision);
+			}
+			rules++;
+		}
+		for (AttributeFilter filter : compiled.values())
+			filter.build();
+		filters = compiled.values().toArray(new AttributeFilter[compiled.size()]);
+		if (rules > 0)
+			logHandler.info("Loaded "+rules+" filter rules over "+filters.length+" attributes");
+	}
+
+	/**
+	 * @return	TRUE if the value can be used with the operator
+	 */
+	private static boolean valid(String operator, String value) {
+		if (operator.equals("in"))
+			return true;
+		if (operator.equals("like")) {
+			int start = value.startsWith("*") ? 1 : 0;
+			int end = value.length() > 1 && value.endsWith("*") ? value.length() - 1 : value.length();
+			return value.substring(start, Math.max(start, end)).indexOf('*') < 0;
+		}
+		if (operator.equals("within"))
+			return subnetLength(value) >= 0;
+		return false;
+	}
+
+	/**
+	 * @param subnet	IPv4 or IPv6 subnet ("10.0.0.0/8", "2001:db8::/32"). A single address is a /32 or /128
+	 * @return			The prefix length, counted over the IPv4-mapped address for IPv4 subnets. -1 if the subnet is not valid
+	 */
+	private static int subnetLength(String subnet) {
+		int slash = subnet.indexOf('/');
+		long[] address = IpAddress.parse(slash < 0 ? subnet : subnet.substring(0, slash));
+		if (address == null)
+			return -1;
+		boolean v4 = IpAddress.isV4(address[0], address[1]);
+		int length;
+		try {
+			length = slash < 0 ? (v4 ? 32 : 128) : Integer.parseInt(subnet.substring(slash + 1));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+		if (length < 0 || length > (v4 ? 32 : 128))
+			return -1;
+		return v4 ? 96 + length : length;
+	}
+
+	/**
+	 * @return	TRUE if there is any filter rule
+	 */
+	public static boolean active() {
+		return filters.length > 0;
+	}
+
+	/**
+	 * @param attributes	RADIUS attributes of the record, by name
+	 * @return				FALSE if the record is dropped by the rules
+	 */
+	public static boolean accepts(Map<String, String> attributes) {
+		AttributeFilter[] current = filters;
+		for (AttributeFilter filter : current) {
+			String value = attributes.get(filter.attribute);
+			byte decision = value == null ? NONE : filter.decide(value);
+			if (decision == EXCLUDE || (decision != INCLUDE && filter.hasIncludes))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Compiled rules of one attribute
+	 */
+	private static class AttributeFilter {
+		private final String attribute;
+		private boolean hasIncludes = false;
+		private HashSet<String> includeValues = new HashSet<String>();
+		private HashSet<String> excludeValues = new HashSet<String>();
+		private PatternSet includePatterns = new PatternSet();
+		private PatternSet excludePatterns = new PatternSet();
+		private SubnetTrie subnets;
+
+		private AttributeFilter(String attribute) {
+			this.attribute = attribute;
+		}
+
+		private void addValue(String value, byte decision) {
+			(decision == INCLUDE ? includeValues : excludeValues).add(value.toLowerCase());
+			hasIncludes |= decision == INCLUDE;
+		}
+
+		private void addPattern(String pattern, byte decision) {
+			(decision == INCLUDE ? includePatterns : excludePatterns).add(pattern.toLowerCase());
+			hasIncludes |= decision == INCLUDE;
+		}
+
+		private void addSubnet(String subnet, byte decision) {
+			int slash = subnet.indexOf('/');
+			long[] address = IpAddress.parse(slash < 0 ? subnet : subnet.substring(0, slash));
+			if (subnets == null)
+				subnets = new SubnetTrie();
+			subnets.add(address[0], address[1], subnetLength(subnet), decision);
+			hasIncludes |= decision == INCLUDE;
+		}
+
+		private void build() {
+			includePatterns.build();
+			excludePatterns.build();
+		}
+
+		private byte decide(String value) {
+			String lower = value.toLowerCase();
+			if (excludeValues.contains(lower) || excludePatterns.matches(lower))
+				return EXCLUDE;
+			if (subnets != null) {
+				long[] address = IpAddress.parse(value.trim());
+				byte decision = address == null ? NONE : subnets.lookup(address[0], address[1]);
+				if (decision != NONE)
+					return decision;
+			}
+			if (includeValues.contains(lower) || includePatterns.matches(lower))
+				return INCLUDE;
+			return NONE;
+		}
+	}
+
+	/**
+	 * Literal patterns: exact values, prefixes ("abc*"), suffixes ("*abc") and contained literals ("*abc*")
+	 */
+	private static class PatternSet {
+		private HashSet<String> exact = new HashSet<String>();
+		private LiteralAutomaton prefixes;
+		private LiteralAutomaton suffixes;
+		private LiteralAutomaton contained;
+
+		/**
+		 * @param pattern	The pattern. A '*' is only allowed at its beginning and end
+		 */
+		private void add(String pattern) {
+			boolean leading = pattern.startsWith("*");
+			boolean trailing = pattern.length() > 1 && pattern.endsWith("*");
+			String literal = pattern.substring(leading ? 1 : 0, pattern.length() - (trailing ? 1 : 0));
+			if (leading && trailing) {
+				if (contained == null)
+					contained = new LiteralAutomaton();
+				contained.add(literal);
+			}
+			else if (trailing) {
+				if (prefixes == null)
+					prefixes = new LiteralAutomaton();
+				prefixes.add(literal);
+			}
+			else if (leading) {
+				if (suffixes == null)
+					suffixes = new LiteralAutomaton();
+				suffixes.add(new StringBuilder(literal).reverse().toString());
+			}
+			else
+				exact.add(literal);
+		}
+
+		private void build() {
+			if (contained != null)
+				contained.buildFailureLinks();
+		}
+
+		private boolean matches(String value) {
+			return exact.contains(value)
+					|| (prefixes != null && prefixes.matchesPrefix(value, false))
+					|| (suffixes != null && suffixes.matchesPrefix(value, true))
+					|| (contained != null && contained.matchesContained(value));
+		}
+	}
+
+	/**
+	 * Trie of literals. Used as is to match prefixes (or suffixes, with the literals and the value reversed) or, once the
+	 * failure links are built, as an Aho-Corasick automaton finding any literal contained in a value.
+	 * ASCII transitions are kept in per node arrays, the rest in a shared map
+	 */
+	private static class LiteralAutomaton {
+		private int[][] next = new int[16][];
+		private HashMap<Long, Integer> other = new HashMap<Long, Integer>();
+		private boolean[] terminal = new boolean[16];
+		private int[] fail;
+		private int nodes = 1;
+
+		private void add(String literal) {
+			int node = 0;
+			for (int a = 0; a < literal.length(); a++) {
+				int child = child(node, literal.charAt(a));
+				if (child == 0) {
+					child = newNode();
+					setChild(node, literal.charAt(a), child);
+				}
+				node = child;
+			}
+			terminal[node] = true;
+		}
+
+		private int newNode() {
+			if (nodes == next.length) {
+				next = Arrays.copyOf(next, nodes * 2);
+				terminal = Arrays.copyOf(terminal, nodes * 2);
+			}
+			return nodes++;
+		}
+
+		/**
+		 * @return	The child of the node for the character. 0 if there is none (the root is never a child)
+		 */
+		private int child(int node, char c) {
+			if (c < 128)
+				return next[node] == null ? 0 : next[node][c];
+			Integer child = other.get(((long) node << 16) | c);
+			return child == null ? 0 : child;
+		}
+
+		private void setChild(int node, char c, int child) {
+			if (c < 128) {
+				if (next[node] == null)
+					next[node] = new int[128];
+				next[node][c] = child;
+			}
+			else
+				other.put(((long) node << 16) | c, child);
+		}
+
+		/**
+		 * @param reversed	TRUE to walk the value from its end
+		 * @return			TRUE if the value starts with any of the literals
+		 */
+		private boolean matchesPrefix(String value, boolean reversed) {
+			int node = 0;
+			if (terminal[node])
+				return true;
+			int length = value.length();
+			for (int a = 0; a < length; a++) {
+				node = child(node, value.charAt(reversed ? length - 1 - a : a));
+				if (node == 0)
+					return false;
+				if (terminal[node])
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Computes the failure links breadth first. A node is terminal if any literal ending at it, or at one of its
+		 * failure links, ends there. Missing ASCII transitions are resolved through the failure links in advance
+		 */
+		private void buildFailureLinks() {
+			fail = new int[nodes];
+			int[] queue = new int[nodes];
+			int head = 0;
+			int tail = 0;
+			queue[tail++] = 0;
+			ArrayList<Map.Entry<Long, Integer>> others = new ArrayList<Map.Entry<Long, Integer>>(other.entrySet());
+			while (head < tail) {
+				int node = queue[head++];
+				terminal[node] |= terminal[fail[node]];
+				if (next[node] == null)
+					next[node] = new int[128];
+				for (char c = 0; c < 128; c++) {
+					int child = next[node][c];
+					if (child != 0) {
+						fail[child] = node == 0 ? 0 : next[fail[node]][c];
+						queue[tail++] = child;
+					}
+					else
+						next[node][c] = node == 0 ? 0 : next[fail[node]][c];
+				}
+				for (Map.Entry<Long, Integer> transition : others)
+					if ((int) (transition.getKey() >>> 16) == node) {
+						char c = (char) (transition.getKey() & 0xffff);
+						fail[transition.getValue()] = node == 0 ? 0 : nonAsciiStep(fail[node], c);
+						queue[tail++] = transition.getValue();
+					}
+			}
+		}
+
+		private int nonAsciiStep(int node, char c) {
+			while (true) {
+				Integer child = other.get(((long) node << 16) | c);
+				if (child != null)
+					return child;
+				if (node == 0)
+					return 0;
+				node = fail[node];
+			}
+		}
+
+		/**
+		 * @return	TRUE if the value contains any of the literals
+		 */
+		private boolean matchesContained(String value) {
+			int node = 0;
+			if (terminal[node])
+				return true;
+			for (int a = 0; a < value.length(); a++) {
+				char c = value.charAt(a);
+				node = c < 128 ? next[node][c] : nonAsciiStep(node, c);
+				if (terminal[node])
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Binary trie of IPv6 prefixes (IPv4 subnets as IPv4-mapped prefixes) with the decision of every prefix.
+	 * The lookup returns the decision of the longest prefix containing the address
+	 */
+	private static class SubnetTrie {
+		private int[] zero = new int[64];
+		private int[] one = new int[64];
+		private byte[] decisions = new byte[64];
+		private int nodes = 1;
+
+		private void add(long high, long low, int length, byte decision) {
+			int node = 0;
+			for (int bit = 0; bit < length; bit++) {
+				int[] children = bit(high, low, bit) ? one : zero;
+				if (children[node] == 0) {
+					if (nodes == zero.length) {
+						zero = Arrays.copyOf(zero, nodes * 2);
+						one = Arrays.copyOf(one, nodes * 2);
+						decisions = Arrays.copyOf(decisions, nodes * 2);
+						children = bit(high, low, bit) ? one : zero;
+					}
+					children[node] = nodes++;
+				}
+				node = children[node];
+			}
+//			An exclude wins over an include of the same prefix
+			if (decisions[node] != EXCLUDE)
+				decisions[node] = decision;
+		}
+
+		private byte lookup(long high, long low) {
+			int node = 0;
+			byte decision = decisions[0];
+			for (int bit = 0; bit < 128; bit++) {
+				node = bit(high, low, bit) ? one[node] : zero[node];
+				if (node == 0)
+					break;
+				if (decisions[node] != NONE)
+					decision = decisions[node];
+			}
+			return decision;
+		}
+
+		private static boolean bit(long high, long low, int bit) {
+			return bit < 64 ? (high >>> (63 - bit) & 1) != 0 : (low >>> (127 - bit) & 1) != 0;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package uid4nps;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for one PANOS device: API calls, errors, request latency and the {@link PANOSApiConnector#ready} state.
+ * Latencies are recorded in microseconds
+ *
+ */
+public class FirewallMetrics implements FirewallMetricsMBean {
+
+	/**
+	 * The connector these counters belong to
+	 */
+	protected PANOSApiConnector connector;
+	/**
+	 * Sequence number telling apart devices configured with the same URL
+	 */
+	protected int id;
+	/**
+	 * User-id API calls sent to the device
+	 */
+	public final LongAdder requests = new LongAdder();
+	/**
+	 * Communication errors and error responses received from the device
+	 */
+	public final LongAdder errors = new LongAdder();
+	/**
+	 * Round trip time of the user-id API calls, in microseconds
+	 */
+	public final Histogram latency = new Histogram();
+	/**
+	 * Lag from the NPS event time to the acknowledge by this device, in milliseconds
+	 */
+	public final Histogram freshness = new Histogram();
+	/**
+	 * Acknowledged batches whose freshness lag exceeded the alert threshold
+	 */
+	public final LongAdder freshnessAlerts = new LongAdder();
+
+	/**
+	 * @param connector		The connector these counters belong to
+	 * @param id			Sequence number of the device
+	 */
+	public FirewallMetrics(PANOSApiConnector connector, int id) {
+		this.connector = connector;
+		this.id = id;
+	}
+
+	@Override
+	public String getUrl() {
+		return connector.getUrl();
+	}
+
+	@Override
+	public boolean isReady() {
+		return Boolean.TRUE.equals(connector.ready);
+	}
+
+	@Override
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	@Override
+	public double getLatencyMeanMillis() {
+		long count = latency.getCount();
+		return count == 0 ? 0 : latency.getSum() / (count * 1000.0);
+	}
+
+	@Override
+	public double getLatencyP50Millis() {
+		return latency.getValueAtPercentile(50) / 1000.0;
+	}
+
+	@Override
+	public double getLatencyP99Millis() {
+		return latency.getValueAtPercentile(99) / 1000.0;
+	}
+
+	@Override
+	public double getLatencyMaxMillis() {
+		return latency.getMax() / 1000.0;
+	}
+
+	@Override
+	public long getFreshnessP50Millis() {
+		return freshness.getValueAtPercentile(50);
+	}
+
+	@Override
+	public long getFreshnessP99Millis() {
+		return freshness.getValueAtPercentile(99);
+	}
+
+	@Override
+	public long getFreshnessMaxMillis() {
+		return freshness.getMax();
+	}
+
+	@Override
+	public long getFreshnessAlerts() {
+		return freshnessAlerts.sum();
+	}
+}
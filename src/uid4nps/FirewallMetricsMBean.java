@@ -0,0 +1,20 @@
+package uid4nps;
+
+/**
+ * JMX management interface for the per PANOS device counters kept in {@link FirewallMetrics}
+ *
+ */
+public interface FirewallMetricsMBean {
+	public String getUrl();
+	public boolean isReady();
+	public long getRequests();
+	public long getErrors();
+	public double getLatencyMeanMillis();
+	public double getLatencyP50Millis();
+	public double getLatencyP99Millis();
+	public double getLatencyMaxMillis();
+	public long getFreshnessP50Millis();
+	public long getFreshnessP99Millis();
+	public long getFreshnessMaxMillis();
+	public long getFreshnessAlerts();
+}
@@ -0,0 +1,121 @@
+package uid4nps;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events for every phase of the pipeline: DTS parsing, buffer semaphore waits,
+ * uid-message building, the API round trip and the {@link NpsLogTailer} FSM states.
+ * <p>
+ * They are duration events without stack traces so they can stay enabled in production.
+ * Record them with the standard tooling, i.e. "jcmd &lt;pid&gt; JFR.start settings=profile" and filter by the "userid4nps" category
+ *
+ */
+public class FlightEvents {
+
+	private FlightEvents() {
+	}
+
+	@Name("uid4nps.Parse")
+	@Label("DTS Parse")
+	@Description("Include pattern match and SAX parse of one NPS log line")
+	@Category("userid4nps")
+	@StackTrace(false)
+	public static class ParseEvent extends Event {
+		@Label("Line Length")
+		public int lineLength;
+		@Label("Accepted")
+		public boolean accepted;
+	}
+
+	@Name("uid4nps.BufferWait")
+	@Label("Buffer Wait")
+	@Description("Time waiting for the UseridPanosInterface buffer semaphore")
+	@Category("userid4nps")
+	@StackTrace(false)
+	public static class BufferWaitEvent extends Event {
+		@Label("Operation")
+		public String operation;
+		@Label("Batch Size")
+		public int batchSize;
+	}
+
+	@Name("uid4nps.Flush")
+	@Label("Flush")
+	@Description("Building the uid-message for the buffered entries")
+	@Category("userid4nps")
+	@StackTrace(false)
+	public static class FlushEvent extends Event {
+		@Label("Batch Size")
+		public int batchSize;
+		@Label("Target")
+		public String target;
+		@Label("Message Length")
+		public int messageLength;
+	}
+
+	@Name("uid4nps.Http")
+	@Label("API Call")
+	@Description("Round trip of a user-id API call to a PANOS device")
+	@Category("userid4nps")
+	@StackTrace(false)
+	public static class HttpEvent extends Event {
+		@Label("Batch Size")
+		public int batchSize;
+		@Label("Target")
+		public String target;
+		@Label("Success")
+		public boolean success;
+	}
+
+	@Name("uid4nps.FsmState")
+	@Label("FSM State")
+	@Description("Time spent by the log reader FSM in one state")
+	@Category("userid4nps")
+	@StackTrace(false)
+	public static class FsmStateEvent extends Event {
+		@Label("Source")
+		public String source;
+		@Label("State")
+		public String state;
+		@Label("Transition")
+		public String transition;
+	}
+
+	/**
+	 * @param state		A {@link Const} FSM state value
+	 * @return			The name of the state
+	 */
+	public static String stateName(int state) {
+		switch (state) {
+		case Const.INIT: return "INIT";
+		case Const.CALCMONTH: return "CALCMONTH";
+		case Const.TRYREADLINE: return "TRYREADLINE";
+		case Const.LINEPROC: return "LINEPROC";
+		case Const.SLEEP05: return "SLEEP05";
+		case Const.SLEEP10: return "SLEEP10";
+		case Const.SLEEP30: return "SLEEP30";
+		case Const.TRYNEWFILE: return "TRYNEWFILE";
+		default: return String.valueOf(state);
+		}
+	}
+
+	/**
+	 * @param trans		A {@link Const} FSM transition value
+	 * @return			The name of the transition
+	 */
+	public static String transitionName(int trans) {
+		switch (trans) {
+		case Const.OK: return "OK";
+		case Const.NOK: return "NOK";
+		case Const.MONTHCHANGE: return "MONTHCHANGE";
+		case Const.POLL: return "POLL";
+		case Const.SLEEP: return "SLEEP";
+		default: return String.valueOf(trans);
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package uid4nps;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * User to group membership index built from the NPS policy attributes of the accounting records, so the PANOS
+ * devices get the group mapping without a separate group mapping agent.
+ * <p>
+ * The groups of a user are the values of the configured attributes ("groupAttributes", NP-Policy-Name by default)
+ * in its last accounting record carrying any of them. Attributes with a per-session value, like the Class token NPS
+ * adds to every session, must not be used: every session would create a group of its own. Every change marks the affected groups as dirty and only
+ * the dirty groups, with their full member list as PANOS expects it, are pushed by {@link UseridPanosInterface#flushGroups}.
+ * A user leaves its groups once its last mapping is gone from the {@link MappingStore} (logout or expiry), so the
+ * membership only holds users with an active session.
+ * <p>
+ * The attribute list is shared by all the sources, so it is kept in a static field like the {@link TagRules}
+ *
+ */
+public class GroupMembership {
+
+	/**
+	 * Group set of users without groups
+	 */
+	public static final String[] NONE = new String[0];
+
+	private static String[] attributes = { "NP-Policy-Name" };
+
+	private HashMap<String, String[]> userGroups = new HashMap<String, String[]>();
+	private HashMap<String, LinkedHashSet<String>> groupMembers = new HashMap<String, LinkedHashSet<String>>();
+	/**
+	 * Dirty groups with the number of the change that made them dirty
+	 */
+	private LinkedHashMap<String, Long> dirtyGroups = new LinkedHashMap<String, Long>();
+	/**
+	 * Change number of the dirty groups when they were taken by {@link GroupMembership#dirty}
+	 */
+	private HashMap<String, Long> taken = new HashMap<String, Long>();
+	private long changes = 0;
+
+	/**
+	 * Loads the "groupAttributes" property (comma separated attribute names, empty disables the feature)
+	 *
+	 * @param properties	The running configuration
+	 */
+	public static synchronized void configure(Properties properties) {
+		String value = properties.getProperty("groupAttributes");
+		if (value == null)
+			return;
+		ArrayList<String> names = new ArrayList<String>();
+		for (String name : value.split(","))
+			if (!name.trim().isEmpty())
+				names.add(name.trim());
+		attributes = names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * @param elementData	RADIUS attributes of the entry, by name
+	 * @return				The groups found in the configured attributes (no duplicates). {@link GroupMembership#NONE} if there is none
+	 */
+	public static String[] derive(Map<String, String> elementData) {
+		String[] names = attributes;
+		String[] groups = NONE;
+		for (String name : names) {
+			String group = elementData.get(name);
+			if (group == null || group.isEmpty() || TagRules.contains(groups, group))
+				continue;
+			String[] more = new String[groups.length + 1];
+			System.arraycopy(groups, 0, more, 0, groups.length);
+			more[groups.length] = group;
+			groups = more;
+		}
+		return groups;
+	}
+
+	/**
+	 * Sets the groups of a user, marking as dirty the groups the user joins or leaves
+	 *
+	 * @param userName	The user ("domain\\user")
+	 * @param groups	Its groups. An empty array doesn't change the membership
+	 * @return			TRUE if the membership has changed
+	 */
+	public synchronized boolean update(String userName, String[] groups) {
+		if (groups == null || groups.length == 0)
+			return false;
+		String[] previous = userGroups.get(userName);
+		if (previous == null)
+			previous = NONE;
+		boolean changed = false;
+		for (String group : previous)
+			if (!TagRules.contains(groups, group)) {
+				LinkedHashSet<String> members = groupMembers.get(group);
+				members.remove(userName);
+				dirtyGroups.put(group, ++changes);
+				changed = true;
+			}
+		for (String group : groups)
+			if (!TagRules.contains(previous, group)) {
+				LinkedHashSet<String> members = groupMembers.get(group);
+				if (members == null) {
+					members = new LinkedHashSet<String>();
+					groupMembers.put(group, members);
+				}
+				members.add(userName);
+				dirtyGroups.put(group, ++changes);
+				changed = true;
+			}
+		if (changed)
+			userGroups.put(userName, groups.clone());
+		return changed;
+	}
+
+	/**
+	 * Removes a user from all its groups, marking them as dirty
+	 *
+	 * @param userName	The user ("domain\\user")
+	 * @return			TRUE if the user was a member of any group
+	 */
+	public synchronized boolean remove(String userName) {
+		String[] previous = userGroups.remove(userName);
+		if (previous == null)
+			return false;
+		for (String group : previous) {
+			LinkedHashSet<String> members = groupMembers.get(group);
+			if (members != null)
+				members.remove(userName);
+			dirtyGroups.put(group, ++changes);
+		}
+		return true;
+	}
+
+	/**
+	 * Takes up to "max" dirty groups with a copy of their members. The groups stay dirty until {@link GroupMembership#markClean}
+	 * is called, so they are sent again if the push fails
+	 *
+	 * @param max		Maximum number of groups to return
+	 * @param groups	List receiving the group names
+	 * @param members	List receiving the members of every group
+	 */
+	public synchronized void dirty(int max, List<String> groups, List<String[]> members) {
+		taken.clear();
+		for (Map.Entry<String, Long> dirty : dirtyGroups.entrySet()) {
+			if (groups.size() >= max)
+				break;
+			String group = dirty.getKey();
+			LinkedHashSet<String> current = groupMembers.get(group);
+			taken.put(group, dirty.getValue());
+			groups.add(group);
+			members.add(current.toArray(new String[current.size()]));
+		}
+	}
+
+	/**
+	 * Clears the dirty flag of the groups pushed successfully. Groups modified again after {@link GroupMembership#dirty}
+	 * was called stay dirty
+	 *
+	 * @param groups	The groups pushed
+	 */
+	public synchronized void markClean(List<String> groups) {
+		for (String group : groups) {
+			Long change = dirtyGroups.get(group);
+			if (change == null || !change.equals(taken.get(group)))
+				continue;
+			dirtyGroups.remove(group);
+			LinkedHashSet<String> members = groupMembers.get(group);
+			if (members != null && members.isEmpty())
+				groupMembers.remove(group);
+		}
+	}
+
+	/**
+	 * Marks all the groups as dirty. Used when a PANOS device becomes ready
+	 */
+	public synchronized void markAllDirty() {
+		for (String group : groupMembers.keySet())
+			dirtyGroups.put(group, ++changes);
+	}
+
+	/**
+	 * @return	Number of groups with members
+	 */
+	public synchronized int groups() {
+		return groupMembers.size();
+	}
+}
@@ -0,0 +1,127 @@
+package uid4nps;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free HDR-style histogram of positive long values (latencies, batch sizes, ...).
+ * Values are stored in log-linear buckets: each power of two is split in {@link Histogram#SUB_COUNT} linear
+ * sub-buckets, so any recorded value is known with a relative error below 1/{@link Histogram#SUB_COUNT}.
+ * <p>
+ * Recording is a couple of atomic increments, so it can be used from the hot path by any number of threads.
+ * Percentiles are computed on demand from the live counters
+ *
+ */
+public class Histogram {
+
+	/**
+	 * Bits of precision kept for every value
+	 */
+	protected static final int SUB_BITS = 5;
+	/**
+	 * Linear sub-buckets per power of two
+	 */
+	protected static final int SUB_COUNT = 1 << SUB_BITS;
+	/**
+	 * Values above 2^MAX_BITS are recorded in the highest bucket
+	 */
+	protected static final int MAX_BITS = 48;
+	private static final int BUCKETS = SUB_COUNT + (MAX_BITS - SUB_BITS) * SUB_COUNT;
+
+	private AtomicLongArray counts;
+	private LongAdder count;
+	private LongAdder sum;
+	private LongAccumulator max;
+
+	public Histogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		count = new LongAdder();
+		sum = new LongAdder();
+		max = new LongAccumulator(Math::max, 0);
+	}
+
+	/**
+	 * @param value		Value to be recorded. Negative values are recorded as 0
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * @return	Number of recorded values
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return	Sum of all recorded values
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * @return	The highest recorded value
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile	Percentile between 0 and 100
+	 * @return				The highest value of the bucket holding the given percentile (0 if empty)
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = 0;
+		for (int a = 0; a < BUCKETS; a++)
+			total += counts.get(a);
+		if (total == 0)
+			return 0;
+		long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+		long highest = max.get();
+		long seen = 0;
+		for (int a = 0; a < BUCKETS; a++) {
+			seen += counts.get(a);
+			if (seen >= target)
+				return Math.min(highestValue(a), highest);
+		}
+		return highest;
+	}
+
+	/**
+	 * Clears all the counters
+	 */
+	public void reset() {
+		for (int a = 0; a < BUCKETS; a++)
+			counts.set(a, 0);
+		count.reset();
+		sum.reset();
+		max.reset();
+	}
+
+	private static int index(long value) {
+		if (value < SUB_COUNT)
+			return (int) value;
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		if (msb >= MAX_BITS)
+			return BUCKETS - 1;
+		int mantissa = (int) (value >>> (msb - SUB_BITS)) & (SUB_COUNT - 1);
+		return SUB_COUNT + (msb - SUB_BITS) * SUB_COUNT + mantissa;
+	}
+
+	private static long highestValue(int index) {
+		if (index < SUB_COUNT)
+			return index;
+		int msb = (index - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+		long mantissa = (index - SUB_COUNT) % SUB_COUNT;
+		long lowest = (1L << msb) | (mantissa << (msb - SUB_BITS));
+		return lowest + (1L << (msb - SUB_BITS)) - 1;
+	}
+}
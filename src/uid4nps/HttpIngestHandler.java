@@ -0,0 +1,373 @@
+package uid4nps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * "/ingest" endpoint of the {@link LocalHttpServer} that lets other identity sources (VPN concentrators,
+ * wireless controllers, ...) push user-id events into the {@link UseridPanosInterface} buffer, so they get
+ * the same deduplication and rate limiting as the NPS events.
+ * <p>
+ * The body of a POST request is either a JSON array of events or newline delimited JSON (one event per line):
+ * <pre>
+ * {"type":"login","user":"jdoe@corppro","ip":"10.1.2.3","tag":"VPN","time":1700000000000,"session":"8F2A01"}
+ * </pre>
+ * "ip" is an IPv4 or an IPv6 address. Dual-stack clients are sent as two events, one per address.
+ * "type" is "login", "logout" or an Acct-Status-Type value ("1", "2" or "3"). "tag" (the NAS identifier
+ * used for dynamic address objects), "groups" (comma separated groups of the user, see {@link GroupMembership}),
+ * "time" (event time in milliseconds since the epoch) and "session" (session id, see {@link EventOrder}) are optional.
+ * <p>
+ * Every batch is answered with its own acknowledge, i.e. {"accepted":2,"rejected":1,"errors":[{"index":1,"reason":"invalid ip"}]}.
+ * When the buffer is saturated (too many pending entries, the buffer over its memory budget or busy for too long)
+ * the whole batch is refused with a 429 status code and the source is expected to retry it
+ *
+ */
+public class HttpIngestHandler implements HttpHandler {
+
+	/**
+	 * Largest request body we accept (bytes)
+	 */
+	protected static final int MAX_BODY = 4 * 1024 * 1024;
+	/**
+	 * Maximum time in milliseconds we wait for the buffer before answering 429
+	 */
+	protected static final long BUFFER_TIMEOUT_MS = 500;
+
+	private UseridPanosInterface paInterface;
+	private String defaultDomain;
+	private String token;
+	private int maxBatch;
+	private long maxPending;
+	private Logger logHandler;
+
+	/**
+	 * @param paInterface		The buffer that will receive the events
+	 * @param defaultDomain		The default Domain Name to be used for users without an explicit domain
+	 * @param token				If not empty, requests must include an "Authorization: Bearer &lt;token&gt;" header
+	 * @param maxBatch			Maximum number of events per request
+	 * @param maxPending		Buffered entries above which new batches are refused with a 429 status code
+	 */
+	public HttpIngestHandler(UseridPanosInterface paInterface, String defaultDomain, String token, int maxBatch, long maxPending) {
+		this.paInterface = paInterface;
+		this.defaultDomain = defaultDomain;
+		this.token = token;
+		this.maxBatch = maxBatch;
+		this.maxPending = maxPending;
+		logHandler = Logger.getLogger("userid4nps");
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				exchange.getResponseHeaders().set("Allow", "POST");
+				LocalHttpServer.respond(exchange, 405, "application/json", error("method not allowed"));
+				return;
+			}
+			if (token != null && !token.isEmpty() && !("Bearer "+token).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+				LocalHttpServer.respond(exchange, 401, "application/json", error("unauthorized"));
+				return;
+			}
+			if (Metrics.bufferDepth.get() >= maxPending || paInterface.isSaturated()) {
+				throttle(exchange);
+				return;
+			}
+			String body = readBody(exchange.getRequestBody());
+			if (body == null) {
+				LocalHttpServer.respond(exchange, 413, "application/json", error("body larger than "+MAX_BODY+" bytes"));
+				return;
+			}
+			ingest(exchange, body);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Parses and validates the events of a batch and hands the valid ones to the buffer
+	 */
+	private void ingest(HttpExchange exchange, String body) throws IOException {
+		JsonReader reader = new JsonReader(body);
+		String[] types = new String[Math.min(maxBatch, 1024)];
+		UseridEntry[] entries = new UseridEntry[types.length];
+		String[][] groups = new String[types.length][];
+		StringBuilder errors = new StringBuilder();
+		int count = 0;
+		int rejected = 0;
+		int index = 0;
+		long now = System.currentTimeMillis();
+		Map<String, String> event = new HashMap<String, String>();
+		try {
+			while (reader.nextObject(event)) {
+				if (index >= maxBatch) {
+					LocalHttpServer.respond(exchange, 413, "application/json", error("more than "+maxBatch+" events in the batch"));
+					return;
+				}
+				String reason = validate(event);
+				if (reason != null) {
+					rejected++;
+					if (errors.length() > 0)
+						errors.append(',');
+					errors.append("{\"index\":").append(index).append(",\"reason\":\"").append(reason).append("\"}");
+				}
+				else {
+					if (count == types.length) {
+						types = Arrays.copyOf(types, Math.min(maxBatch, count * 2));
+						entries = Arrays.copyOf(entries, types.length);
+						groups = Arrays.copyOf(groups, types.length);
+					}
+					String time = event.get("time");
+					types[count] = acctStatusType(event.get("type"));
+					entries[count] = new UseridEntry(UseridNpsDtsParser.normalizeUserName(event.get("user"), defaultDomain),
+							event.get("ip"), event.get("tag"), time == null ? now : Long.parseLong(time));
+					entries[count].sessionId = event.get("session");
+					if (event.get("tag") != null)
+						entries[count].tags = new String[] { event.get("tag") };
+					groups[count] = event.get("groups") == null ? null : event.get("groups").split(",");
+					count++;
+				}
+				index++;
+			}
+		} catch (IllegalArgumentException e) {
+			Metrics.ingestRejected.add(index + 1);
+			LocalHttpServer.respond(exchange, 400, "application/json", error("malformed JSON at event "+index+": "+e.getMessage()));
+			return;
+		}
+		if (count > 0 && !paInterface.tryAddEntries(types, entries, count, BUFFER_TIMEOUT_MS)) {
+			throttle(exchange);
+			return;
+		}
+		for (int a = 0; a < count; a++)
+			paInterface.updateGroups(entries[a].userName, groups[a]);
+		Metrics.ingestEvents.add(count);
+		Metrics.ingestRejected.add(rejected);
+		logHandler.fine("Ingested a batch of "+count+" events ("+rejected+" rejected) from "+exchange.getRemoteAddress());
+		LocalHttpServer.respond(exchange, 200, "application/json",
+				"{\"accepted\":"+count+",\"rejected\":"+rejected+",\"errors\":["+errors+"]}");
+	}
+
+	/**
+	 * @param event		The decoded event
+	 * @return			NULL if the event is valid. The reason why it is not otherwise
+	 */
+	private static String validate(Map<String, String> event) {
+		if (acctStatusType(event.get("type")) == null)
+			return "invalid type";
+		String user = event.get("user");
+		if (user == null || user.isEmpty())
+			return "missing user";
+		if (user.toLowerCase().startsWith("host/"))
+			return "host based user";
+		for (int a = 0; a < user.length(); a++) {
+			char c = user.charAt(a);
+			if (c < 0x20 || c == 0x7f || c == '<' || c == '>' || c == '&' || c == '"')
+				return "invalid character in user";
+		}
+		if (!validIp(event.get("ip")))
+			return "invalid ip";
+		String time = event.get("time");
+		if (time != null)
+			try {
+				Long.parseLong(time);
+			} catch (NumberFormatException e) {
+				return "invalid time";
+			}
+		return null;
+	}
+
+	/**
+	 * @param type	The "type" of the event
+	 * @return		The matching Acct-Status-Type value or NULL if it is not a known type
+	 */
+	private static String acctStatusType(String type) {
+		if (type == null)
+			return null;
+		if (type.equals("login") || type.equals("1") || type.equals("3"))
+			return type.equals("3") ? "3" : "1";
+		if (type.equals("logout") || type.equals("2"))
+			return "2";
+		return null;
+	}
+
+	/**
+	 * @return	TRUE if the value is a dotted decimal IPv4 address or an IPv6 address
+	 */
+	protected static boolean validIp(String ip) {
+		if (ip == null)
+			return false;
+		if (ip.indexOf(':') >= 0)
+			return IpAddress.parseIPv6(ip) != null;
+		int octets = 0;
+		int value = -1;
+		for (int a = 0; a < ip.length(); a++) {
+			char c = ip.charAt(a);
+			if (c >= '0' && c <= '9') {
+				value = (value < 0 ? 0 : value * 10) + (c - '0');
+				if (value > 255)
+					return false;
+			}
+			else if (c == '.' && value >= 0 && octets < 3) {
+				octets++;
+				value = -1;
+			}
+			else
+				return false;
+		}
+		return octets == 3 && value >= 0;
+	}
+
+	private void throttle(HttpExchange exchange) throws IOException {
+		Metrics.ingestThrottled.increment();
+		exchange.getResponseHeaders().set("Retry-After", "1");
+		LocalHttpServer.respond(exchange, 429, "application/json", error("buffer saturated, retry later"));
+	}
+
+	private static String error(String message) {
+		return "{\"error\":\""+message.replace("\\", "\\\\").replace("\"", "\\\"")+"\"}";
+	}
+
+	/**
+	 * @return	The request body or NULL if it is larger than {@link HttpIngestHandler#MAX_BODY}
+	 */
+	private static String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(8192);
+		byte[] chunk = new byte[8192];
+		int read;
+		while ((read = in.read(chunk)) > 0) {
+			if (body.size() + read > MAX_BODY)
+				return null;
+			body.write(chunk, 0, read);
+		}
+		return body.toString("utf-8");
+	}
+
+	/**
+	 * Minimal reader for a stream of flat JSON objects, either inside a top level array or one after the other
+	 * (newline delimited). Values must be strings, numbers, booleans or null
+	 */
+	protected static class JsonReader {
+		private String text;
+		private int pos;
+
+		protected JsonReader(String text) {
+			this.text = text;
+		}
+
+		/**
+		 * Decodes the next object
+		 *
+		 * @param object	Map that receives the members of the object. Values are kept as strings
+		 * @return			FALSE if there are no more objects
+		 * @throws IllegalArgumentException if the text is not valid
+		 */
+		protected boolean nextObject(Map<String, String> object) {
+			object.clear();
+			while (pos < text.length()) {
+				char c = text.charAt(pos);
+				if (c == '[' || c == ']' || c == ',' || Character.isWhitespace(c))
+					pos++;
+				else
+					break;
+			}
+			if (pos >= text.length())
+				return false;
+			expect('{');
+			skipBlanks();
+			if (peek() == '}') {
+				pos++;
+				return true;
+			}
+			while (true) {
+				skipBlanks();
+				String key = readString();
+				skipBlanks();
+				expect(':');
+				skipBlanks();
+				object.put(key, readValue());
+				skipBlanks();
+				char c = next();
+				if (c == '}')
+					return true;
+				if (c != ',')
+					throw new IllegalArgumentException("expected ',' or '}'");
+			}
+		}
+
+		private String readValue() {
+			char c = peek();
+			if (c == '"')
+				return readString();
+			if (c == '{' || c == '[')
+				throw new IllegalArgumentException("nested values are not supported");
+			int start = pos;
+			while (pos < text.length() && ",}] \t\r\n".indexOf(text.charAt(pos)) < 0)
+				pos++;
+			String value = text.substring(start, pos);
+			if (value.isEmpty())
+				throw new IllegalArgumentException("missing value");
+			return value.equals("null") ? null : value;
+		}
+
+		private String readString() {
+			expect('"');
+			StringBuilder value = null;
+			int start = pos;
+			while (true) {
+				char c = next();
+				if (c == '"')
+					return value == null ? text.substring(start, pos - 1) : value.toString();
+				if (c == '\\') {
+					if (value == null)
+						value = new StringBuilder(text.substring(start, pos - 1));
+					char e = next();
+					switch (e) {
+					case 'n': value.append('\n'); break;
+					case 't': value.append('\t'); break;
+					case 'r': value.append('\r'); break;
+					case 'b': value.append('\b'); break;
+					case 'f': value.append('\f'); break;
+					case 'u':
+						if (pos + 4 > text.length())
+							throw new IllegalArgumentException("truncated escape");
+						value.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+						pos += 4;
+						break;
+					default: value.append(e);
+					}
+				}
+				else if (value != null)
+					value.append(c);
+			}
+		}
+
+		private void skipBlanks() {
+			while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+				pos++;
+		}
+
+		private char peek() {
+			if (pos >= text.length())
+				throw new IllegalArgumentException("unexpected end of input");
+			return text.charAt(pos);
+		}
+
+		private char next() {
+			char c = peek();
+			pos++;
+			return c;
+		}
+
+		private void expect(char c) {
+			if (next() != c)
+				throw new IllegalArgumentException("expected '"+c+"'");
+		}
+	}
+}
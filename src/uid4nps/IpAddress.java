@@ -0,0 +1,216 @@
+package uid4nps;
+
+/**
+ * IPv4 and IPv6 addresses as two longs: the high and low 64 bits of the IPv6 address. IPv4 addresses are kept as
+ * IPv4-mapped IPv6 addresses (::ffff:a.b.c.d), so both families share one representation and comparing two addresses
+ * costs two long comparisons whatever the text they were written with ("2001:DB8:0::1" and "2001:db8::1" are the same).
+ * <p>
+ * The all zeros address (0.0.0.0 or ::) is never a valid mapping and is used to mean "no address"
+ *
+ */
+public final class IpAddress {
+
+	/**
+	 * Low 64 bits of an IPv4-mapped address, without the IPv4 address
+	 */
+	public static final long V4_MAPPED = 0xffff00000000L;
+
+	private IpAddress() {
+	}
+
+	/**
+	 * @return	TRUE if the address is an IPv4-mapped address
+	 */
+	public static boolean isV4(long high, long low) {
+		return high == 0 && (low >>> 32) == 0xffff;
+	}
+
+	/**
+	 * @param ip	IPv4 address in dotted decimal format or IPv6 address in any RFC 4291 text format
+	 * @return		The high and low 64 bits of the address. NULL if it is not a valid address
+	 */
+	public static long[] parse(String ip) {
+		int v4 = parseIPv4(ip);
+		if (v4 != 0)
+			return new long[] { 0, V4_MAPPED | (v4 & 0xffffffffL) };
+		return parseIPv6(ip);
+	}
+
+	/**
+	 * @param ip	IPv4 address in dotted decimal format
+	 * @return		The address as an int. 0 if it is not a valid address (0.0.0.0 is never a valid mapping)
+	 */
+	public static int parseIPv4(String ip) {
+		if (ip == null)
+			return 0;
+		int result = 0;
+		int octets = 0;
+		int value = -1;
+		for (int a = 0; a < ip.length(); a++) {
+			char c = ip.charAt(a);
+			if (c >= '0' && c <= '9') {
+				value = (value < 0 ? 0 : value * 10) + (c - '0');
+				if (value > 255)
+					return 0;
+			}
+			else if (c == '.' && value >= 0 && octets < 3) {
+				result = (result << 8) | value;
+				octets++;
+				value = -1;
+			}
+			else
+				return 0;
+		}
+		if (octets != 3 || value < 0)
+			return 0;
+		return (result << 8) | value;
+	}
+
+	/**
+	 * @param ip	IPv6 address in any RFC 4291 text format: full, compressed ("::") or with a trailing dotted IPv4 address.
+	 * 				Zone ids ("%eth0") are not accepted
+	 * @return		The high and low 64 bits of the address. NULL if it is not a valid address or it is ::
+	 */
+	public static long[] parseIPv6(String ip) {
+		if (ip == null || ip.length() < 2 || ip.indexOf(':') < 0)
+			return null;
+		int[] groups = new int[8];
+		int count = 0;
+		int gap = -1;
+		int length = ip.length();
+		int a = 0;
+		if (ip.charAt(0) == ':') {
+			if (ip.charAt(1) != ':')
+				return null;
+			gap = 0;
+			a = 2;
+		}
+		while (a < length) {
+			if (count == 8)
+				return null;
+			int start = a;
+			int value = 0;
+			while (a < length && a - start <= 4) {
+				int digit = hexDigit(ip.charAt(a));
+				if (digit < 0)
+					break;
+				value = (value << 4) | digit;
+				a++;
+			}
+			if (a < length && ip.charAt(a) == '.') {
+//				Trailing dotted IPv4 address: it takes the last two groups
+				int v4 = parseIPv4(ip.substring(start));
+				if (v4 == 0 || count > 6)
+					return null;
+				groups[count++] = v4 >>> 16;
+				groups[count++] = v4 & 0xffff;
+				break;
+			}
+			if (a == start || a - start > 4)
+				return null;
+			groups[count++] = value;
+			if (a == length)
+				break;
+			if (ip.charAt(a++) != ':' || a == length)
+				return null;
+			if (ip.charAt(a) == ':') {
+				if (gap >= 0)
+					return null;
+				gap = count;
+				a++;
+			}
+		}
+		if (gap < 0 ? count != 8 : count > 7)
+			return null;
+		long high = 0;
+		long low = 0;
+		for (int g = 0; g < 8; g++) {
+			long value;
+			if (gap < 0 || g < gap)
+				value = groups[g];
+			else if (g < gap + 8 - count)
+				value = 0;
+			else
+				value = groups[g - (8 - count)];
+			if (g < 4)
+				high = (high << 16) | value;
+			else
+				low = (low << 16) | value;
+		}
+		if (high == 0 && low == 0)
+			return null;
+		return new long[] { high, low };
+	}
+
+	private static int hexDigit(char c) {
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		if (c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		if (c >= 'A' && c <= 'F')
+			return c - 'A' + 10;
+		return -1;
+	}
+
+	/**
+	 * @return	The text format of the address: dotted decimal for IPv4-mapped addresses, RFC 5952 for the rest
+	 */
+	public static String format(long high, long low) {
+		if (isV4(high, low))
+			return formatIPv4((int) low);
+		return formatIPv6(high, low);
+	}
+
+	/**
+	 * @return	The dotted decimal format of the address
+	 */
+	public static String formatIPv4(int ip) {
+		return (ip >>> 24)+"."+((ip >>> 16) & 0xff)+"."+((ip >>> 8) & 0xff)+"."+(ip & 0xff);
+	}
+
+	/**
+	 * @return	The RFC 5952 format of the address: lower case, no leading zeros and the longest run of two or more
+	 * 			zero groups (the first one if there is a tie) compressed as "::"
+	 */
+	public static String formatIPv6(long high, long low) {
+		int[] groups = new int[8];
+		for (int g = 0; g < 4; g++) {
+			groups[g] = (int) (high >>> (48 - 16 * g)) & 0xffff;
+			groups[g + 4] = (int) (low >>> (48 - 16 * g)) & 0xffff;
+		}
+		int bestStart = -1;
+		int bestLength = 1;
+		for (int g = 0; g < 8; g++) {
+			int run = 0;
+			while (g + run < 8 && groups[g + run] == 0)
+				run++;
+			if (run > bestLength) {
+				bestStart = g;
+				bestLength = run;
+			}
+			g += run;
+		}
+		StringBuilder out = new StringBuilder(39);
+		for (int g = 0; g < 8; g++) {
+			if (g == bestStart) {
+				out.append("::");
+				g += bestLength - 1;
+				continue;
+			}
+			if (out.length() > 0 && out.charAt(out.length() - 1) != ':')
+				out.append(':');
+			out.append(Integer.toHexString(groups[g]));
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @return	A non zero 32 bit hash of the address, used as the key of the IPv6 rows of the open addressing tables
+	 */
+	public static int hash(long high, long low) {
+		long h = (high * 0x9E3779B97F4A7C15L) ^ low;
+		h *= 0xC2B2AE3D27D4EB4FL;
+		int result = (int) (h ^ (h >>> 32));
+		return result == 0 ? 1 : result;
+	}
+}
@@ -0,0 +1,106 @@
+package uid4nps;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Lightweight embedded HTTP server shared by all the local endpoints of the application (metrics scrape, ...).
+ * It is disabled when the configured port is 0, in which case {@link LocalHttpServer#addContext} does nothing
+ *
+ */
+public class LocalHttpServer {
+
+	private static HttpServer server;
+	private static ExecutorService executor;
+	private static Logger logHandler = Logger.getLogger("userid4nps");
+
+	private LocalHttpServer() {
+	}
+
+	/**
+	 * Starts the server
+	 *
+	 * @param bindAddress	Local address to listen on (i.e. "127.0.0.1")
+	 * @param port			TCP port. 0 disables the server
+	 * @throws IOException
+	 */
+	public static synchronized void start(String bindAddress, int port) throws IOException {
+		if (port <= 0 || server != null)
+			return;
+		server = HttpServer.create(new InetSocketAddress(bindAddress, port), 64);
+		executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+
+			private AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "uid4nps-http-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+		logHandler.info("Local HTTP server listening at "+bindAddress+":"+port);
+	}
+
+	/**
+	 * Publishes a handler in the server
+	 *
+	 * @param path		Context path (i.e. "/metrics")
+	 * @param handler	The handler serving the requests
+	 */
+	public static synchronized void addContext(String path, HttpHandler handler) {
+		if (server != null)
+			server.createContext(path, handler);
+	}
+
+	/**
+	 * @return	TRUE if the server is running
+	 */
+	public static synchronized boolean isRunning() {
+		return server != null;
+	}
+
+	/**
+	 * Stops the server and its handler threads. For graceful shutdown procedures
+	 */
+	public static synchronized void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Convenience method to send a complete response
+	 *
+	 * @param exchange		The exchange to answer
+	 * @param status		HTTP status code
+	 * @param contentType	Value of the Content-Type header
+	 * @param body			Response body
+	 * @throws IOException
+	 */
+	public static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+		byte[] payload = body.getBytes("utf-8");
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, payload.length == 0 ? -1 : payload.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(payload);
+		out.close();
+	}
+}
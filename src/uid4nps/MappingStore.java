@@ -0,0 +1,979 @@
+package uid4nps;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.StampedLock;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * In-process copy of the IP to user mappings acknowledged by the PANOS devices, so local questions like
+ * "who is on 10.1.2.3" don't need to reach the firewall.
+ * <p>
+ * Rows live in open addressing tables (linear probing, backward shift deletion), one per address family. IPv4 rows are
+ * keyed by the address as a primitive int. IPv6 rows are keyed by a hash of the address and also keep its 128 bits as two
+ * longs, in arrays only the IPv6 table allocates. User names and NAS identifiers are kept once in a {@link Dictionary} and
+ * the rows only hold their ids.
+ * <p>
+ * Every slot of a table costs 36 bytes (16 more in the IPv6 one) whether it is used or not, and a table doubles once it
+ * is 60% full, so 500.000 IPv4 sessions sit in 2^20 slots: about 36 MB, 75 bytes per session. Each distinct user name
+ * adds its UTF-8 bytes and around 27 bytes more to the {@link Dictionary} (measured with 15 character names: 500.000
+ * sessions of 5.000 users take about 36 MB, of 500.000 users about 56 MB). While a table doubles, the old and the new
+ * arrays are both allocated.
+ * <p>
+ * Writers (the flush of every batch) take the write lock once per batch. Lookups use optimistic reads of the
+ * {@link StampedLock} so they never block, nor are blocked by, the ingest path.
+ * <p>
+ * If the {@link LocalHttpServer} is enabled the store is published at "/lookup?ip=10.1.2.3" (or "?ip=2001:db8::1", "/lookup?user=corppro\\jdoe")
+ * <p>
+ * The rows can be saved to a compact binary snapshot ({@link MappingStore#writeSnapshot}) and memory mapped back on the
+ * next start ({@link MappingStore#loadSnapshot}), so a restarted process doesn't start with an empty store
+ *
+ */
+public class MappingStore implements HttpHandler {
+
+	/**
+	 * Interned strings referenced by id from the rows. Ids are reference counted and reused once released.
+	 * <p>
+	 * The strings are kept as UTF-8 bytes in a single shared arena, indexed by an open addressing table of ids keyed by
+	 * their hash, so a name costs its bytes and a few primitive array slots instead of a String, a HashMap node and
+	 * an Integer. The space of released strings is reclaimed by compacting the arena once it is half garbage
+	 */
+	protected static class Dictionary {
+		private static final int MIN_ARENA = 16384;
+		private byte[] arena = new byte[MIN_ARENA];
+		private int arenaEnd = 0;
+		/**
+		 * Bytes of the arena taken by released strings
+		 */
+		private int garbage = 0;
+		private int[] offsets = new int[1024];
+		/**
+		 * Length in bytes of every string. -1 if the id is free
+		 */
+		private int[] lengths = new int[1024];
+		private int[] hashes = new int[1024];
+		private int[] refs = new int[1024];
+		/**
+		 * Ids by hash (linear probing, backward shift deletion). 0 is an empty slot
+		 */
+		private int[] index = new int[2048];
+		private int[] free = new int[64];
+		private int freeCount = 0;
+		private int next = 1;
+		private int count = 0;
+
+		/**
+		 * @param value		String to be referenced (NULL is id 0)
+		 * @return			Its id, with one more reference
+		 */
+		protected int acquire(String value) {
+			if (value == null)
+				return 0;
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			int hash = hash(bytes);
+			int slot = find(bytes, hash);
+			int id = index[slot];
+			if (id == 0) {
+				id = freeCount > 0 ? free[--freeCount] : next++;
+				if (id >= lengths.length) {
+					offsets = Arrays.copyOf(offsets, offsets.length * 2);
+					lengths = Arrays.copyOf(lengths, lengths.length * 2);
+					hashes = Arrays.copyOf(hashes, hashes.length * 2);
+					refs = Arrays.copyOf(refs, refs.length * 2);
+				}
+				if (arenaEnd + bytes.length > arena.length)
+					arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaEnd + bytes.length));
+				System.arraycopy(bytes, 0, arena, arenaEnd, bytes.length);
+				offsets[id] = arenaEnd;
+				lengths[id] = bytes.length;
+				hashes[id] = hash;
+				arenaEnd += bytes.length;
+				index[slot] = id;
+				if (++count * 2 > index.length)
+					reindex(index.length * 2);
+			}
+			refs[id]++;
+			return id;
+		}
+
+		/**
+		 * Adds one reference to an id already acquired
+		 */
+		protected void retain(int id) {
+			if (id != 0)
+				refs[id]++;
+		}
+
+		/**
+		 * Drops one reference to the id, releasing it when no row uses it
+		 *
+		 * @return	TRUE if the id has been released
+		 */
+		protected boolean release(int id) {
+			if (id == 0 || --refs[id] > 0)
+				return false;
+			int mask = index.length - 1;
+			int slot = hashes[id] & mask;
+			while (index[slot] != id)
+				slot = (slot + 1) & mask;
+			int hole = slot;
+			for (slot = (slot + 1) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+				int home = hashes[index[slot]] & mask;
+				if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+					index[hole] = index[slot];
+					hole = slot;
+				}
+			}
+			index[hole] = 0;
+			garbage += lengths[id];
+			lengths[id] = -1;
+			count--;
+			if (freeCount == free.length)
+				free = Arrays.copyOf(free, free.length * 2);
+			free[freeCount++] = id;
+			if (arenaEnd > MIN_ARENA && garbage * 2 > arenaEnd)
+				compact();
+			return true;
+		}
+
+		/**
+		 * @return	The id of the string, 0 if it is not in the dictionary. It doesn't add a reference
+		 */
+		protected int id(String value) {
+			if (value == null)
+				return 0;
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			return index[find(bytes, hash(bytes))];
+		}
+
+		/**
+		 * @return	The string for the id. It may be NULL or wrong if the id is stale (optimistic readers must validate)
+		 */
+		protected String get(int id) {
+			byte[] currentArena = arena;
+			int[] currentOffsets = offsets;
+			int[] currentLengths = lengths;
+			if (id <= 0 || id >= currentOffsets.length || id >= currentLengths.length)
+				return null;
+			int offset = currentOffsets[id];
+			int length = currentLengths[id];
+			if (length < 0 || offset < 0 || offset + length > currentArena.length)
+				return null;
+			return new String(currentArena, offset, length, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * @return	The UTF-8 bytes of the string of the id. The id must be in use
+		 */
+		protected byte[] bytes(int id) {
+			return Arrays.copyOfRange(arena, offsets[id], offsets[id] + lengths[id]);
+		}
+
+		/**
+		 * @return	A copy for the snapshot writer
+		 */
+		protected Dictionary copy() {
+			Dictionary copy = new Dictionary();
+			copy.arena = Arrays.copyOf(arena, arenaEnd);
+			copy.offsets = offsets.clone();
+			copy.lengths = lengths.clone();
+			return copy;
+		}
+
+		protected int size() {
+			return count;
+		}
+
+		/**
+		 * @return	The slot of the index holding the string, or the empty slot where it would go
+		 */
+		private int find(byte[] bytes, int hash) {
+			int mask = index.length - 1;
+			int slot = hash & mask;
+			for (int id = index[slot]; id != 0; id = index[slot]) {
+				if (hashes[id] == hash && lengths[id] == bytes.length && equals(id, bytes))
+					return slot;
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		private boolean equals(int id, byte[] bytes) {
+			int offset = offsets[id];
+			for (int a = 0; a < bytes.length; a++)
+				if (arena[offset + a] != bytes[a])
+					return false;
+			return true;
+		}
+
+		private void reindex(int capacity) {
+			int[] newIndex = new int[capacity];
+			int mask = capacity - 1;
+			for (int id = 1; id < next; id++)
+				if (lengths[id] >= 0) {
+					int slot = hashes[id] & mask;
+					while (newIndex[slot] != 0)
+						slot = (slot + 1) & mask;
+					newIndex[slot] = id;
+				}
+			index = newIndex;
+		}
+
+		/**
+		 * Moves the strings in use to a new arena, dropping the space of the released ones. Ids don't change
+		 */
+		private void compact() {
+			int used = arenaEnd - garbage;
+			byte[] compacted = new byte[Math.max(MIN_ARENA, used * 2)];
+			int[] newOffsets = new int[offsets.length];
+			int end = 0;
+			for (int id = 1; id < next; id++)
+				if (lengths[id] > 0) {
+					System.arraycopy(arena, offsets[id], compacted, end, lengths[id]);
+					newOffsets[id] = end;
+					end += lengths[id];
+				}
+			arena = compacted;
+			offsets = newOffsets;
+			arenaEnd = end;
+			garbage = 0;
+		}
+
+		private static int hash(byte[] bytes) {
+			int h = 0;
+			for (byte b : bytes)
+				h = 31 * h + b;
+			h *= 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+
+	/**
+	 * A copy of a row returned by the lookups
+	 */
+	public static class Mapping {
+		public final String ip;
+		public final String userName;
+		public final String nasIdentifier;
+		/**
+		 * Time of the originating event in milliseconds since the epoch
+		 */
+		public final long eventTime;
+		/**
+		 * Time in milliseconds since the epoch when the PANOS device will expire the mapping
+		 */
+		public final long expires;
+		/**
+		 * Time in milliseconds since the epoch when the mapping was last acknowledged by a PANOS device
+		 */
+		public final long sent;
+
+		public Mapping(String ip, String userName, String nasIdentifier, long eventTime, long expires, long sent) {
+			this.ip = ip;
+			this.userName = userName;
+			this.nasIdentifier = nasIdentifier;
+			this.eventTime = eventTime;
+			this.expires = expires;
+			this.sent = sent;
+		}
+	}
+
+	private static final float LOAD_FACTOR = 0.6f;
+	/**
+	 * Largest number of slots of a table. Bigger sizes are clamped to it, so the sizing can't overflow
+	 */
+	private static final int MAX_CAPACITY = 1 << 30;
+	/**
+	 * First bytes of a snapshot file ("U4NS")
+	 */
+	private static final int SNAPSHOT_MAGIC = 0x55344E53;
+	/**
+	 * Version 2 adds the IPv6 rows. Version 1 files are still loaded
+	 */
+	private static final int SNAPSHOT_VERSION = 2;
+	/**
+	 * Bytes of every IPv4 row in a snapshot file: IP address, user id, NAS id, event time, expiry and last sent time
+	 */
+	private static final int SNAPSHOT_ROW = 4 + 4 + 4 + 8 + 8 + 8;
+	/**
+	 * Bytes of every IPv6 row in a snapshot file: same as {@link MappingStore#SNAPSHOT_ROW} with the 128 bit address
+	 */
+	private static final int SNAPSHOT_ROW6 = 16 + 4 + 4 + 8 + 8 + 8;
+	/**
+	 * Flag of the {@link MappingStore#collect} cursors walking the IPv6 table
+	 */
+	private static final int V6_CURSOR = 1 << 30;
+
+	/**
+	 * Open addressing table of one address family. The caller must hold the lock of the store
+	 */
+	private class Table {
+		private final boolean wide;
+		private int[] keys;
+		private long[] highs;
+		private long[] lows;
+		private int[] users;
+		private int[] nas;
+		private long[] eventTimes;
+		private long[] expires;
+		private long[] sent;
+		private int mask;
+		private int size;
+		private int resizeAt;
+
+		/**
+		 * @param expectedMappings	Number of mappings the table is sized for. It grows if needed
+		 * @param wide				TRUE for the IPv6 table, whose keys are hashes and must be checked against the full address
+		 */
+		private Table(int expectedMappings, boolean wide) {
+			this.wide = wide;
+			int capacity = 16;
+			while (capacity < MAX_CAPACITY && capacity * LOAD_FACTOR < expectedMappings)
+				capacity <<= 1;
+			allocate(capacity);
+		}
+
+		/**
+		 * @return	A copy of the rows, for the snapshot writer
+		 */
+		private Table copy() {
+			Table copy = new Table(0, wide);
+			copy.keys = keys.clone();
+			copy.highs = wide ? highs.clone() : null;
+			copy.lows = wide ? lows.clone() : null;
+			copy.users = users.clone();
+			copy.nas = nas.clone();
+			copy.eventTimes = eventTimes.clone();
+			copy.expires = expires.clone();
+			copy.sent = sent.clone();
+			return copy;
+		}
+
+		private void allocate(int capacity) {
+			keys = new int[capacity];
+			if (wide) {
+				highs = new long[capacity];
+				lows = new long[capacity];
+			}
+			users = new int[capacity];
+			nas = new int[capacity];
+			eventTimes = new long[capacity];
+			expires = new long[capacity];
+			sent = new long[capacity];
+			mask = capacity - 1;
+			resizeAt = (int) (capacity * LOAD_FACTOR);
+		}
+
+		/**
+		 * Adds or replaces the row of an address. The dictionary ids must be already acquired for this row
+		 */
+		private void put(int key, long high, long low, int userId, int nasId, long eventTime, long expiry, long sentTime) {
+			int slot = slot(key, high, low);
+			if (keys[slot] != 0) {
+				releaseUser(users[slot]);
+				nasIdentifiers.release(nas[slot]);
+			}
+			else {
+				if (size >= resizeAt && keys.length < MAX_CAPACITY) {
+					rehash(keys.length << 1);
+					slot = slot(key, high, low);
+				}
+				keys[slot] = key;
+				if (wide) {
+					highs[slot] = high;
+					lows[slot] = low;
+				}
+				size++;
+			}
+			users[slot] = userId;
+			nas[slot] = nasId;
+			eventTimes[slot] = eventTime;
+			expires[slot] = expiry;
+			sent[slot] = sentTime;
+		}
+
+		/**
+		 * Removes the mapping of the IP address. If a user name is given the row is only removed if it belongs to that user
+		 */
+		private void remove(int key, long high, long low, String userName) {
+			int slot = slot(key, high, low);
+			if (keys[slot] == 0)
+				return;
+			if (userName != null && users[slot] != userNames.id(userName))
+				return;
+			delete(slot);
+		}
+
+		/**
+		 * Backward shift deletion: moves up the following rows of the probe chain so no tombstones are needed
+		 */
+		private void delete(int slot) {
+			releaseUser(users[slot]);
+			nasIdentifiers.release(nas[slot]);
+			size--;
+			int hole = slot;
+			int next = (hole + 1) & mask;
+			while (keys[next] != 0) {
+				int home = hash(keys[next]) & mask;
+				if (((next - home) & mask) >= ((next - hole) & mask)) {
+					keys[hole] = keys[next];
+					if (wide) {
+						highs[hole] = highs[next];
+						lows[hole] = lows[next];
+					}
+					users[hole] = users[next];
+					nas[hole] = nas[next];
+					eventTimes[hole] = eventTimes[next];
+					expires[hole] = expires[next];
+					sent[hole] = sent[next];
+					hole = next;
+				}
+				next = (next + 1) & mask;
+			}
+			keys[hole] = 0;
+			users[hole] = 0;
+			nas[hole] = 0;
+		}
+
+		private void rehash(int capacity) {
+			int[] oldKeys = keys;
+			long[] oldHighs = highs;
+			long[] oldLows = lows;
+			int[] oldUsers = users;
+			int[] oldNas = nas;
+			long[] oldEventTimes = eventTimes;
+			long[] oldExpires = expires;
+			long[] oldSent = sent;
+			allocate(capacity);
+			for (int a = 0; a < oldKeys.length; a++)
+				if (oldKeys[a] != 0) {
+					int slot = wide ? slot(oldKeys[a], oldHighs[a], oldLows[a]) : slot(oldKeys[a], 0, 0);
+					keys[slot] = oldKeys[a];
+					if (wide) {
+						highs[slot] = oldHighs[a];
+						lows[slot] = oldLows[a];
+					}
+					users[slot] = oldUsers[a];
+					nas[slot] = oldNas[a];
+					eventTimes[slot] = oldEventTimes[a];
+					expires[slot] = oldExpires[a];
+					sent[slot] = oldSent[a];
+				}
+		}
+
+		/**
+		 * @return	The slot holding the address or the empty slot where it should be inserted
+		 */
+		private int slot(int key, long high, long low) {
+			int slot = hash(key) & mask;
+			while (keys[slot] != 0 && (keys[slot] != key || (wide && (lows[slot] != low || highs[slot] != high))))
+				slot = (slot + 1) & mask;
+			return slot;
+		}
+
+		private void purge(long now) {
+			int a = 0;
+			while (a < keys.length) {
+				if (keys[a] != 0 && expires[a] <= now)
+					delete(a);	// a following row may have been shifted into this slot
+				else
+					a++;
+			}
+		}
+
+		/**
+		 * Reads a row. Under an optimistic read the arrays may be replaced or modified at any time, so every access is
+		 * bounded and the result is discarded by the caller if the stamp doesn't validate
+		 */
+		private Mapping read(int key, long high, long low) {
+			int[] k = keys;
+			long[] hi = highs;
+			long[] lo = lows;
+			int[] u = users;
+			int[] n = nas;
+			long[] t = eventTimes;
+			long[] e = expires;
+			long[] s = sent;
+			int m = k.length - 1;
+			if (u.length != k.length || n.length != k.length || t.length != k.length || e.length != k.length || s.length != k.length)
+				return null;
+			if (wide && (hi == null || lo == null || hi.length != k.length || lo.length != k.length))
+				return null;
+			int slot = hash(key) & m;
+			for (int probes = 0; probes <= m; probes++) {
+				int current = k[slot];
+				if (current == 0)
+					return null;
+				if (current == key && (!wide || (lo[slot] == low && hi[slot] == high)))
+					return new Mapping(IpAddress.format(high, low), userNames.get(u[slot]), nasIdentifiers.get(n[slot]), t[slot], e[slot], s[slot]);
+				slot = (slot + 1) & m;
+			}
+			return null;
+		}
+
+		/**
+		 * @return	The text format of the address of a row
+		 */
+		private String ip(int slot) {
+			return wide ? IpAddress.formatIPv6(highs[slot], lows[slot]) : IpAddress.formatIPv4(keys[slot]);
+		}
+
+		/**
+		 * @return	The row as a {@link UseridEntry}
+		 */
+		private UseridEntry entry(int slot) {
+			long high = wide ? highs[slot] : 0;
+			long low = wide ? lows[slot] : IpAddress.V4_MAPPED | (keys[slot] & 0xffffffffL);
+			return new UseridEntry(userNames.get(users[slot]), high, low, nasIdentifiers.get(nas[slot]), eventTimes[slot]);
+		}
+	}
+
+	private final StampedLock lock = new StampedLock();
+	private Table v4;
+	private Table v6;
+	private Dictionary userNames = new Dictionary();
+	private Dictionary nasIdentifiers = new Dictionary();
+	/**
+	 * Users whose last mapping has been removed, while {@link MappingStore#setTrackDepartures} is enabled
+	 */
+	private final ConcurrentLinkedQueue<String> departedUsers = new ConcurrentLinkedQueue<String>();
+	private volatile boolean trackDepartures = false;
+
+	/**
+	 * @param expectedMappings	Number of IPv4 mappings the table is sized for. It grows if needed, like the IPv6 one
+	 */
+	public MappingStore(int expectedMappings) {
+		v4 = new Table(expectedMappings, false);
+		v6 = new Table(0, true);
+	}
+
+	/**
+	 * Enables the tracking of the users left without any mapping (logged out or expired), see {@link MappingStore#pollDepartedUser}
+	 *
+	 * @param enabled	TRUE to track them
+	 */
+	public void setTrackDepartures(boolean enabled) {
+		trackDepartures = enabled;
+		if (!enabled)
+			departedUsers.clear();
+	}
+
+	/**
+	 * @return	The next user whose last mapping has been removed. NULL if there is none
+	 */
+	public String pollDepartedUser() {
+		return departedUsers.poll();
+	}
+
+	/**
+	 * @param userName	The user ("domain\\user")
+	 * @return			TRUE if the user has any mapping, expired ones included until the next purge
+	 */
+	public boolean hasUser(String userName) {
+		long stamp = lock.readLock();
+		try {
+			return userNames.id(userName) != 0;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Drops one reference of a row to its user, recording the user as departed if it was its last row. The caller must
+	 * hold the write lock
+	 */
+	private void releaseUser(int id) {
+		String userName = trackDepartures ? userNames.get(id) : null;
+		if (userNames.release(id) && userName != null)
+			departedUsers.add(userName);
+	}
+
+	/**
+	 * @return	The table of the address family
+	 */
+	private Table table(long high, long low) {
+		return IpAddress.isV4(high, low) ? v4 : v6;
+	}
+
+	/**
+	 * @return	The key of the address in its table: the address itself for IPv4, a hash for IPv6. 0 if it is not a valid address
+	 */
+	private static int key(long high, long low) {
+		if (IpAddress.isV4(high, low))
+			return (int) low;
+		if (high == 0 && low == 0)
+			return 0;
+		return IpAddress.hash(high, low);
+	}
+
+	/**
+	 * Applies a batch of entries acknowledged by a PANOS device
+	 *
+	 * @param batch			The entries. Logins first, logouts after them
+	 * @param loginCount	Number of logins at the beginning of the batch
+	 * @param timeoutMs		The user-id timeout of the logins (milliseconds)
+	 */
+	public void update(List<UseridEntry> batch, int loginCount, long timeoutMs) {
+		long now = System.currentTimeMillis();
+		long stamp = lock.writeLock();
+		try {
+			for (int a = 0; a < batch.size(); a++) {
+				UseridEntry entry = batch.get(a);
+				int key = key(entry.ipHigh, entry.ipLow);
+				if (key == 0)
+					continue;
+				Table table = table(entry.ipHigh, entry.ipLow);
+				if (a < loginCount)
+					table.put(key, entry.ipHigh, entry.ipLow, userNames.acquire(entry.userName), nasIdentifiers.acquire(entry.nasIdentifier),
+							entry.eventTime, now + timeoutMs, now);
+				else
+					table.remove(key, entry.ipHigh, entry.ipLow, entry.userName);
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		Metrics.mappings.set(size());
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Removes the expired mappings. Called periodically from the {@link SharedScheduler}
+	 */
+	public void purgeExpired() {
+		long now = System.currentTimeMillis();
+		long stamp = lock.writeLock();
+		try {
+			v4.purge(now);
+			v6.purge(now);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		Metrics.mappings.set(size());
+	}
+
+	/**
+	 * @param ip	IPv4 address in dotted decimal format or IPv6 address
+	 * @return		The current mapping for the address or NULL if there is none (or it has expired)
+	 */
+	public Mapping lookup(String ip) {
+		long[] address = IpAddress.parse(ip);
+		if (address == null)
+			return null;
+		return lookup(address[0], address[1]);
+	}
+
+	/**
+	 * @param high	High 64 bits of the address (see {@link IpAddress})
+	 * @param low	Low 64 bits of the address
+	 * @return		The current mapping for the address or NULL if there is none (or it has expired)
+	 */
+	public Mapping lookup(long high, long low) {
+		int key = key(high, low);
+		if (key == 0)
+			return null;
+		long stamp = lock.tryOptimisticRead();
+		Mapping mapping = table(high, low).read(key, high, low);
+		if (!lock.validate(stamp)) {
+			stamp = lock.readLock();
+			try {
+				mapping = table(high, low).read(key, high, low);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		if (mapping != null && mapping.expires <= System.currentTimeMillis())
+			return null;
+		return mapping;
+	}
+
+	/**
+	 * Copies a range of active mappings as {@link UseridEntry} objects. Used to walk the whole store in chunks
+	 * (i.e. to resync a PANOS device) without holding the lock for long. The IPv4 rows come first, then the IPv6 ones.
+	 * Rows moved by concurrent updates between two calls may be skipped or returned twice
+	 *
+	 * @param from	The cursor to start from (0 for the first call)
+	 * @param max	Maximum number of entries to copy
+	 * @param out	List receiving the entries
+	 * @return		The cursor to continue from in the next call or -1 if the end of the store has been reached
+	 */
+	public int collect(int from, int max, List<UseridEntry> out) {
+		long now = System.currentTimeMillis();
+		long stamp = lock.readLock();
+		try {
+			boolean six = (from & V6_CURSOR) != 0;
+			int a = from & ~V6_CURSOR;
+			int copied = 0;
+			while (true) {
+				Table table = six ? v6 : v4;
+				while (a < table.keys.length && copied < max) {
+					if (table.keys[a] != 0 && table.expires[a] > now) {
+						out.add(table.entry(a));
+						copied++;
+					}
+					a++;
+				}
+				if (a < table.keys.length)
+					return six ? a | V6_CURSOR : a;
+				if (six)
+					return -1;
+				six = true;
+				a = 0;
+			}
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return	All the current mappings of a user. It scans the whole store so it is meant for troubleshooting only
+	 */
+	public List<Mapping> lookupUser(String userName) {
+		List<Mapping> result = new ArrayList<Mapping>();
+		long now = System.currentTimeMillis();
+		long stamp = lock.readLock();
+		try {
+			int user = userNames.id(userName);
+			if (user == 0)
+				return result;
+			for (Table table : new Table[] { v4, v6 })
+				for (int a = 0; a < table.keys.length; a++)
+					if (table.keys[a] != 0 && table.expires[a] > now && table.users[a] == user)
+						result.add(new Mapping(table.ip(a), userNames.get(table.users[a]), nasIdentifiers.get(table.nas[a]),
+								table.eventTimes[a], table.expires[a], table.sent[a]));
+		} finally {
+			lock.unlockRead(stamp);
+		}
+		return result;
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		String ip = queryParameter(exchange, "ip");
+		String user = queryParameter(exchange, "user");
+		if (ip != null) {
+			Mapping mapping = lookup(ip);
+			if (mapping == null)
+				LocalHttpServer.respond(exchange, 404, "application/json", "{\"ip\":"+quote(ip)+",\"user\":null}");
+			else
+				LocalHttpServer.respond(exchange, 200, "application/json", toJson(mapping));
+		}
+		else if (user != null) {
+			StringBuilder out = new StringBuilder("[");
+			for (Mapping mapping : lookupUser(user.toLowerCase())) {
+				if (out.length() > 1)
+					out.append(',');
+				out.append(toJson(mapping));
+			}
+			LocalHttpServer.respond(exchange, 200, "application/json", out.append(']').toString());
+		}
+		else
+			LocalHttpServer.respond(exchange, 400, "application/json", "{\"error\":\"use ?ip=address or ?user=name\"}");
+	}
+
+	private static String queryParameter(HttpExchange exchange, String name) throws IOException {
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null)
+			return null;
+		for (String parameter : query.split("&"))
+			if (parameter.startsWith(name+"="))
+				return URLDecoder.decode(parameter.substring(name.length() + 1), "utf-8");
+		return null;
+	}
+
+	private static String toJson(Mapping mapping) {
+		return "{\"ip\":"+quote(mapping.ip)+",\"user\":"+quote(mapping.userName)+",\"tag\":"+quote(mapping.nasIdentifier)
+				+",\"eventTime\":"+mapping.eventTime+",\"expires\":"+mapping.expires+",\"sent\":"+mapping.sent+"}";
+	}
+
+	private static String quote(String value) {
+		if (value == null)
+			return "null";
+		return "\""+value.replace("\\", "\\\\").replace("\"", "\\\"")+"\"";
+	}
+
+	/**
+	 * Saves the active mappings to a snapshot file. The rows are copied under the read lock (a few array copies, so the
+	 * flushes are barely delayed) and the file is written from the copy, to a temporary file renamed over the previous snapshot.
+	 * <p>
+	 * Layout (big endian): magic, version, creation time, number of user names, number of NAS identifiers, number of IPv4 rows,
+	 * number of IPv6 rows, the user names and the NAS identifiers (length prefixed UTF-8, ids start at 1), the IPv4 rows
+	 * (see {@link MappingStore#SNAPSHOT_ROW}) and the IPv6 rows (see {@link MappingStore#SNAPSHOT_ROW6})
+	 *
+	 * @param file	The snapshot file
+	 * @return		Number of mappings saved
+	 * @throws IOException
+	 */
+	public int writeSnapshot(Path file) throws IOException {
+		Table[] tables;
+		Dictionary userValues, nasValues;
+		long stamp = lock.readLock();
+		try {
+			tables = new Table[] { v4.copy(), v6.copy() };
+			userValues = userNames.copy();
+			nasValues = nasIdentifiers.copy();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+		long now = System.currentTimeMillis();
+		int[] userIds = new int[userValues.lengths.length];
+		int[] nasIds = new int[nasValues.lengths.length];
+		ArrayList<byte[]> userBytes = new ArrayList<byte[]>();
+		ArrayList<byte[]> nasBytes = new ArrayList<byte[]>();
+		int[] rows = new int[tables.length];
+		long length = 4 + 4 + 8 + 4 + 4 + 4 + 4;
+		for (int f = 0; f < tables.length; f++) {
+			Table table = tables[f];
+			for (int a = 0; a < table.keys.length; a++) {
+				if (table.keys[a] == 0 || table.expires[a] <= now)
+					continue;
+				rows[f]++;
+				int u = table.users[a];
+				int n = table.nas[a];
+				if (u != 0 && userIds[u] == 0) {
+					byte[] value = userValues.bytes(u);
+					userBytes.add(value);
+					userIds[u] = userBytes.size();
+					length += 2 + value.length;
+				}
+				if (n != 0 && nasIds[n] == 0) {
+					byte[] value = nasValues.bytes(n);
+					nasBytes.add(value);
+					nasIds[n] = nasBytes.size();
+					length += 2 + value.length;
+				}
+			}
+		}
+		length += (long) rows[0] * SNAPSHOT_ROW + (long) rows[1] * SNAPSHOT_ROW6;
+		ByteBuffer out = ByteBuffer.allocate((int) length);
+		out.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putLong(now);
+		out.putInt(userBytes.size()).putInt(nasBytes.size()).putInt(rows[0]).putInt(rows[1]);
+		for (byte[] value : userBytes)
+			out.putShort((short) value.length).put(value);
+		for (byte[] value : nasBytes)
+			out.putShort((short) value.length).put(value);
+		for (Table table : tables)
+			for (int a = 0; a < table.keys.length; a++) {
+				if (table.keys[a] == 0 || table.expires[a] <= now)
+					continue;
+				if (table.wide)
+					out.putLong(table.highs[a]).putLong(table.lows[a]);
+				else
+					out.putInt(table.keys[a]);
+				out.putInt(table.users[a] == 0 ? 0 : userIds[table.users[a]]).putInt(table.nas[a] == 0 ? 0 : nasIds[table.nas[a]]);
+				out.putLong(table.eventTimes[a]).putLong(table.expires[a]).putLong(table.sent[a]);
+			}
+		out.flip();
+		Path temporary = file.resolveSibling(file.getFileName()+".tmp");
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (out.hasRemaining())
+				channel.write(out);
+			channel.force(false);
+		}
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return rows[0] + rows[1];
+	}
+
+	/**
+	 * Memory maps a snapshot file written by {@link MappingStore#writeSnapshot} and adds its mappings that haven't expired yet
+	 *
+	 * @param file	The snapshot file
+	 * @return		Number of mappings loaded. 0 if the file doesn't exist
+	 * @throws IOException if the file is not a valid snapshot
+	 */
+	public int loadSnapshot(Path file) throws IOException {
+		if (!Files.exists(file))
+			return 0;
+		long now = System.currentTimeMillis();
+		int loaded = 0;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			int version = in.remaining() < 28 || in.getInt() != SNAPSHOT_MAGIC ? 0 : in.getInt();
+			if (version < 1 || version > SNAPSHOT_VERSION)
+				throw new IOException("'"+file+"' is not a mapping snapshot");
+			in.getLong();
+			int[] userIds = new int[in.getInt() + 1];
+			int[] nasIds = new int[in.getInt() + 1];
+			int rows = in.getInt();
+			int rows6 = version >= 2 ? in.getInt() : 0;
+			String[] userValues = new String[userIds.length];
+			String[] nasValues = new String[nasIds.length];
+			for (int a = 1; a < userValues.length; a++)
+				userValues[a] = readString(in);
+			for (int a = 1; a < nasValues.length; a++)
+				nasValues[a] = readString(in);
+			if (in.remaining() < (long) rows * SNAPSHOT_ROW + (long) rows6 * SNAPSHOT_ROW6)
+				throw new IOException("'"+file+"' is truncated");
+			long stamp = lock.writeLock();
+			try {
+//				Every string is looked up once. Rows only add references to the ids
+				for (int a = 1; a < userIds.length; a++)
+					userIds[a] = userNames.acquire(userValues[a]);
+				for (int a = 1; a < nasIds.length; a++)
+					nasIds[a] = nasIdentifiers.acquire(nasValues[a]);
+				for (int a = 0; a < rows + rows6; a++) {
+					long high = 0;
+					long low;
+					if (a < rows)
+						low = IpAddress.V4_MAPPED | (in.getInt() & 0xffffffffL);
+					else {
+						high = in.getLong();
+						low = in.getLong();
+					}
+					int user = in.getInt();
+					int nasId = in.getInt();
+					long eventTime = in.getLong();
+					long expiry = in.getLong();
+					long sentTime = in.getLong();
+					int key = key(high, low);
+					if (key == 0 || expiry <= now || user <= 0 || user >= userIds.length || nasId < 0 || nasId >= nasIds.length)
+						continue;
+					userNames.retain(userIds[user]);
+					nasIdentifiers.retain(nasIds[nasId]);
+					table(high, low).put(key, high, low, userIds[user], nasIds[nasId], eventTime, expiry, sentTime);
+					loaded++;
+				}
+				for (int a = 1; a < userIds.length; a++)
+					userNames.release(userIds[a]);
+				for (int a = 1; a < nasIds.length; a++)
+					nasIdentifiers.release(nasIds[a]);
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		} catch (RuntimeException e) {
+			throw new IOException("'"+file+"' is not a valid mapping snapshot: "+e);
+		}
+		Metrics.mappings.set(size());
+		return loaded;
+	}
+
+	private static String readString(ByteBuffer in) {
+		byte[] value = new byte[in.getShort() & 0xffff];
+		in.get(value);
+		return new String(value, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return	Number of mappings in the store (expired ones may be included until the next purge)
+	 */
+	public int size() {
+		return v4.size + v6.size;
+	}
+}
@@ -0,0 +1,435 @@
+package uid4nps;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Application wide operational counters. All of them are lock-free ({@link LongAdder}, {@link AtomicLong}
+ * or {@link Histogram}) so they can be updated from the hot path.
+ * <p>
+ * They are published as MBeans under the "uid4nps" domain and, if the {@link LocalHttpServer} is enabled,
+ * in Prometheus text format at "/metrics"
+ *
+ */
+public class Metrics implements MetricsMBean, HttpHandler {
+
+	/**
+	 * Lines read from the NPS log files
+	 */
+	public static final LongAdder linesRead = new LongAdder();
+	/**
+	 * Lines matching the include pattern
+	 */
+	public static final LongAdder linesMatched = new LongAdder();
+	/**
+	 * Lines accepted by {@link UseridNpsDtsParser#IMIParser} as valid user-id entries
+	 */
+	public static final LongAdder linesAccepted = new LongAdder();
+	/**
+	 * Valid accounting records dropped by the {@link FilterRules}
+	 */
+	public static final LongAdder filteredRecords = new LongAdder();
+	/**
+	 * Entries currently waiting in the {@link UseridPanosInterface} buffers
+	 */
+	public static final AtomicLong bufferDepth = new AtomicLong();
+	/**
+	 * Estimated heap, in bytes, used by the {@link UseridPanosInterface} buffers. Only kept if there is a memory budget
+	 */
+	public static final AtomicLong bufferBytes = new AtomicLong();
+	/**
+	 * Times the buffers went over their memory budget, pausing the sources
+	 */
+	public static final LongAdder saturations = new LongAdder();
+	/**
+	 * Milliseconds the {@link NpsLogTailer} threads spent paused because the buffers were over their memory budget
+	 */
+	public static final LongAdder tailerPausedMillis = new LongAdder();
+	/**
+	 * Mappings held by the {@link MappingStore}
+	 */
+	public static final AtomicLong mappings = new AtomicLong();
+	/**
+	 * Number of entries of every user-id message sent
+	 */
+	public static final Histogram batchSizes = new Histogram();
+	/**
+	 * Entries discarded because no PANOS device was available
+	 */
+	public static final LongAdder droppedEntries = new LongAdder();
+	/**
+	 * Buffered entries superseded by a later event for the same IP address (coalesceByIp mode)
+	 */
+	public static final LongAdder coalescedEntries = new LongAdder();
+	/**
+	 * Events dropped because a newer event for the same IP address was already accepted (see {@link EventOrder})
+	 */
+	public static final LongAdder staleEvents = new LongAdder();
+	/**
+	 * Entries persisted to disk because they couldn't be sent
+	 */
+	public static final LongAdder spooledEntries = new LongAdder();
+	/**
+	 * Entries sent to PANOS devices by the resync done when they become ready
+	 */
+	public static final LongAdder resyncEntries = new LongAdder();
+	/**
+	 * Dynamic address object entries registered
+	 */
+	public static final LongAdder tagRegisters = new LongAdder();
+	/**
+	 * Dynamic address object entries unregistered
+	 */
+	public static final LongAdder tagUnregisters = new LongAdder();
+	/**
+	 * Tag updates not sent because the registered tags were already the right ones
+	 */
+	public static final LongAdder tagsUnchanged = new LongAdder();
+	/**
+	 * Groups pushed to the PANOS devices because their membership changed
+	 */
+	public static final LongAdder groupUpdates = new LongAdder();
+	/**
+	 * Packets received by the {@link RadiusAccountingListener}
+	 */
+	public static final LongAdder radiusPackets = new LongAdder();
+	/**
+	 * Packets discarded by the {@link RadiusAccountingListener} (malformed or wrong authenticator)
+	 */
+	public static final LongAdder radiusInvalid = new LongAdder();
+	/**
+	 * Valid RADIUS packets left without an Accounting-Response, so the NAS retries them, because the buffers were busy or over their memory budget
+	 */
+	public static final LongAdder radiusWithheld = new LongAdder();
+	/**
+	 * Messages received by the {@link SyslogReceiver}
+	 */
+	public static final LongAdder syslogMessages = new LongAdder();
+	/**
+	 * Messages or TCP frames discarded by the {@link SyslogReceiver} as malformed
+	 */
+	public static final LongAdder syslogInvalid = new LongAdder();
+	/**
+	 * Events accepted by the {@link HttpIngestHandler}
+	 */
+	public static final LongAdder ingestEvents = new LongAdder();
+	/**
+	 * Events refused by the {@link HttpIngestHandler} because they were not valid
+	 */
+	public static final LongAdder ingestRejected = new LongAdder();
+	/**
+	 * Batches refused by the {@link HttpIngestHandler} because the buffer was saturated
+	 */
+	public static final LongAdder ingestThrottled = new LongAdder();
+
+	private static final CopyOnWriteArrayList<FirewallMetrics> firewalls = new CopyOnWriteArrayList<FirewallMetrics>();
+	private static Logger logHandler = Logger.getLogger("userid4nps");
+	private static boolean registered = false;
+	private static int firewallCount = 0;
+
+	/**
+	 * Registers the MBeans and the "/metrics" endpoint of the {@link LocalHttpServer}
+	 */
+	public static synchronized void register() {
+		if (registered)
+			return;
+		registered = true;
+		Metrics metrics = new Metrics();
+		registerMBean(metrics, "uid4nps:type=Metrics");
+		LocalHttpServer.addContext("/metrics", metrics);
+		for (FirewallMetrics firewall : firewalls)
+			registerMBean(firewall, firewallObjectName(firewall));
+	}
+
+	/**
+	 * Creates and registers the counters for a PANOS device
+	 *
+	 * @param connector		The {@link PANOSApiConnector} of the device
+	 * @return				The counters for the device
+	 */
+	public static synchronized FirewallMetrics firewall(PANOSApiConnector connector) {
+		FirewallMetrics firewall = new FirewallMetrics(connector, ++firewallCount);
+		firewalls.add(firewall);
+		if (registered)
+			registerMBean(firewall, firewallObjectName(firewall));
+		return firewall;
+	}
+
+	/**
+	 * Unregisters the counters of a PANOS device that is no longer used
+	 *
+	 * @param firewall	The counters to be removed
+	 */
+	public static synchronized void removeFirewall(FirewallMetrics firewall) {
+		firewalls.remove(firewall);
+		if (registered)
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(firewallObjectName(firewall)));
+			} catch (JMException e) {
+				logHandler.fine("Unable to unregister MBean for "+firewall.getUrl());
+			}
+	}
+
+	private static String firewallObjectName(FirewallMetrics firewall) {
+		return "uid4nps:type=Firewall,name="+ObjectName.quote(firewall.getUrl())+",id="+firewall.id;
+	}
+
+	static void registerMBean(Object mbean, String name) {
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		try {
+			mbs.registerMBean(mbean, new ObjectName(name));
+		} catch (JMException e) {
+			logHandler.warning("Unable to register MBean "+name);
+		}
+	}
+
+	@Override
+	public long getLinesRead() {
+		return linesRead.sum();
+	}
+
+	@Override
+	public long getLinesMatched() {
+		return linesMatched.sum();
+	}
+
+	@Override
+	public long getLinesAccepted() {
+		return linesAccepted.sum();
+	}
+
+	@Override
+	public long getFilteredRecords() {
+		return filteredRecords.sum();
+	}
+
+	@Override
+	public long getBufferDepth() {
+		return bufferDepth.get();
+	}
+
+	@Override
+	public long getBufferBytes() {
+		return bufferBytes.get();
+	}
+
+	@Override
+	public long getSaturations() {
+		return saturations.sum();
+	}
+
+	@Override
+	public long getTailerPausedMillis() {
+		return tailerPausedMillis.sum();
+	}
+
+	@Override
+	public long getMappings() {
+		return mappings.get();
+	}
+
+	@Override
+	public long getBatches() {
+		return batchSizes.getCount();
+	}
+
+	@Override
+	public double getBatchSizeMean() {
+		long count = batchSizes.getCount();
+		return count == 0 ? 0 : (double) batchSizes.getSum() / count;
+	}
+
+	@Override
+	public long getBatchSizeP99() {
+		return batchSizes.getValueAtPercentile(99);
+	}
+
+	@Override
+	public long getDroppedEntries() {
+		return droppedEntries.sum();
+	}
+
+	@Override
+	public long getCoalescedEntries() {
+		return coalescedEntries.sum();
+	}
+
+	@Override
+	public long getStaleEvents() {
+		return staleEvents.sum();
+	}
+
+	@Override
+	public long getSpooledEntries() {
+		return spooledEntries.sum();
+	}
+
+	@Override
+	public long getResyncEntries() {
+		return resyncEntries.sum();
+	}
+
+	@Override
+	public long getTagRegisters() {
+		return tagRegisters.sum();
+	}
+
+	@Override
+	public long getTagUnregisters() {
+		return tagUnregisters.sum();
+	}
+
+	@Override
+	public long getTagsUnchanged() {
+		return tagsUnchanged.sum();
+	}
+
+	@Override
+	public long getGroupUpdates() {
+		return groupUpdates.sum();
+	}
+
+	@Override
+	public long getRadiusPackets() {
+		return radiusPackets.sum();
+	}
+
+	@Override
+	public long getRadiusInvalid() {
+		return radiusInvalid.sum();
+	}
+
+	@Override
+	public long getRadiusWithheld() {
+		return radiusWithheld.sum();
+	}
+
+	@Override
+	public long getSyslogMessages() {
+		return syslogMessages.sum();
+	}
+
+	@Override
+	public long getSyslogInvalid() {
+		return syslogInvalid.sum();
+	}
+
+	@Override
+	public long getIngestEvents() {
+		return ingestEvents.sum();
+	}
+
+	@Override
+	public long getIngestRejected() {
+		return ingestRejected.sum();
+	}
+
+	@Override
+	public long getIngestThrottled() {
+		return ingestThrottled.sum();
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		LocalHttpServer.respond(exchange, 200, "text/plain; version=0.0.4", prometheus());
+	}
+
+	/**
+	 * @return	All the counters in Prometheus text exposition format
+	 */
+	public static String prometheus() {
+		StringBuilder out = new StringBuilder(2048);
+		counter(out, "uid4nps_lines_read_total", "Lines read from the NPS log files", linesRead.sum());
+		counter(out, "uid4nps_lines_matched_total", "Lines matching the include pattern", linesMatched.sum());
+		counter(out, "uid4nps_lines_accepted_total", "Lines accepted as valid user-id entries", linesAccepted.sum());
+		counter(out, "uid4nps_filtered_records_total", "Valid accounting records dropped by the filter rules", filteredRecords.sum());
+		out.append("# HELP uid4nps_buffer_depth Entries waiting in the buffer\n# TYPE uid4nps_buffer_depth gauge\n");
+		out.append("uid4nps_buffer_depth ").append(bufferDepth.get()).append('\n');
+		out.append("# HELP uid4nps_buffer_bytes Estimated heap used by the buffer\n# TYPE uid4nps_buffer_bytes gauge\n");
+		out.append("uid4nps_buffer_bytes ").append(bufferBytes.get()).append('\n');
+		counter(out, "uid4nps_saturations_total", "Times the buffer went over its memory budget", saturations.sum());
+		counter(out, "uid4nps_tailer_paused_seconds_total", "Time the log tailers spent paused by the memory budget", tailerPausedMillis.sum() / 1000.0);
+		out.append("# HELP uid4nps_mappings IP to user mappings held in the local mapping store\n# TYPE uid4nps_mappings gauge\n");
+		out.append("uid4nps_mappings ").append(mappings.get()).append('\n');
+		out.append("# HELP uid4nps_batch_size Entries per user-id message\n# TYPE uid4nps_batch_size summary\n");
+		summary(out, "uid4nps_batch_size", "", batchSizes, 1);
+		counter(out, "uid4nps_dropped_entries_total", "Entries discarded because no PANOS device was available", droppedEntries.sum());
+		counter(out, "uid4nps_coalesced_entries_total", "Buffered entries superseded by a later event for the same IP address", coalescedEntries.sum());
+		counter(out, "uid4nps_stale_events_total", "Events dropped because a newer event for the same IP address was already accepted", staleEvents.sum());
+		counter(out, "uid4nps_spooled_entries_total", "Entries persisted to disk because they couldn't be sent", spooledEntries.sum());
+		counter(out, "uid4nps_resync_entries_total", "Entries sent by the resync of devices becoming ready", resyncEntries.sum());
+		counter(out, "uid4nps_tag_registers_total", "Dynamic address object entries registered", tagRegisters.sum());
+		counter(out, "uid4nps_tag_unregisters_total", "Dynamic address object entries unregistered", tagUnregisters.sum());
+		counter(out, "uid4nps_tags_unchanged_total", "Tag updates suppressed because nothing changed", tagsUnchanged.sum());
+		counter(out, "uid4nps_group_updates_total", "Groups pushed because their membership changed", groupUpdates.sum());
+		counter(out, "uid4nps_radius_packets_total", "Packets received by the RADIUS accounting listener", radiusPackets.sum());
+		counter(out, "uid4nps_radius_invalid_total", "RADIUS packets discarded (malformed or wrong authenticator)", radiusInvalid.sum());
+		counter(out, "uid4nps_radius_withheld_total", "RADIUS packets left unanswered, for the NAS to retry, while the buffer was over its memory budget", radiusWithheld.sum());
+		counter(out, "uid4nps_syslog_messages_total", "Messages received by the syslog receiver", syslogMessages.sum());
+		counter(out, "uid4nps_syslog_invalid_total", "Syslog messages or frames discarded as malformed", syslogInvalid.sum());
+		counter(out, "uid4nps_ingest_events_total", "Events accepted by the HTTP ingest endpoint", ingestEvents.sum());
+		counter(out, "uid4nps_ingest_rejected_total", "Events refused by the HTTP ingest endpoint as invalid", ingestRejected.sum());
+		counter(out, "uid4nps_ingest_throttled_total", "Ingest batches refused because the buffer was saturated", ingestThrottled.sum());
+		out.append("# HELP uid4nps_firewall_request_seconds User-id API call round trip time\n# TYPE uid4nps_firewall_request_seconds summary\n");
+		for (FirewallMetrics firewall : firewalls)
+			summary(out, "uid4nps_firewall_request_seconds", label(firewall), firewall.latency, 1e6);
+		out.append("# HELP uid4nps_firewall_freshness_seconds Lag from the NPS event time to the acknowledge by the device\n# TYPE uid4nps_firewall_freshness_seconds summary\n");
+		for (FirewallMetrics firewall : firewalls)
+			summary(out, "uid4nps_firewall_freshness_seconds", label(firewall), firewall.freshness, 1e3);
+		out.append("# HELP uid4nps_firewall_freshness_alerts_total Batches acknowledged above the freshness alert threshold\n# TYPE uid4nps_firewall_freshness_alerts_total counter\n");
+		for (FirewallMetrics firewall : firewalls)
+			out.append("uid4nps_firewall_freshness_alerts_total{").append(label(firewall)).append("} ").append(firewall.getFreshnessAlerts()).append('\n');
+		out.append("# HELP uid4nps_firewall_requests_total User-id API calls\n# TYPE uid4nps_firewall_requests_total counter\n");
+		for (FirewallMetrics firewall : firewalls)
+			out.append("uid4nps_firewall_requests_total{").append(label(firewall)).append("} ").append(firewall.getRequests()).append('\n');
+		out.append("# HELP uid4nps_firewall_errors_total Failed user-id API calls\n# TYPE uid4nps_firewall_errors_total counter\n");
+		for (FirewallMetrics firewall : firewalls)
+			out.append("uid4nps_firewall_errors_total{").append(label(firewall)).append("} ").append(firewall.getErrors()).append('\n');
+		out.append("# HELP uid4nps_firewall_ready 1 if the PANOS device is ready to receive messages\n# TYPE uid4nps_firewall_ready gauge\n");
+		for (FirewallMetrics firewall : firewalls)
+			out.append("uid4nps_firewall_ready{").append(label(firewall)).append("} ").append(firewall.isReady() ? 1 : 0).append('\n');
+		return out.toString();
+	}
+
+	private static String label(FirewallMetrics firewall) {
+		return "firewall=\""+firewall.getUrl().replace("\\", "\\\\").replace("\"", "\\\"")+"\",id=\""+firewall.id+"\"";
+	}
+
+	private static void counter(StringBuilder out, String name, String help, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" counter\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void counter(StringBuilder out, String name, String help, double value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" counter\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Appends a Prometheus summary built from a {@link Histogram}
+	 *
+	 * @param divisor	Value to divide the recorded values by (i.e. 1e6 to turn microseconds into seconds)
+	 */
+	private static void summary(StringBuilder out, String name, String labels, Histogram histogram, double divisor) {
+		String prefix = labels.isEmpty() ? "" : labels+",";
+		for (double quantile : new double[] { 0.5, 0.9, 0.99, 0.999 })
+			out.append(name).append("{").append(prefix).append("quantile=\"").append(quantile).append("\"} ")
+				.append(histogram.getValueAtPercentile(quantile * 100) / divisor).append('\n');
+		String suffix = labels.isEmpty() ? "" : "{"+labels+"}";
+		out.append(name).append("_sum").append(suffix).append(' ').append(histogram.getSum() / divisor).append('\n');
+		out.append(name).append("_count").append(suffix).append(' ').append(histogram.getCount()).append('\n');
+	}
+}
@@ -0,0 +1,37 @@
+package uid4nps;
+
+/**
+ * JMX management interface for the application wide counters kept in {@link Metrics}
+ *
+ */
+public interface MetricsMBean {
+	public long getLinesRead();
+	public long getLinesMatched();
+	public long getLinesAccepted();
+	public long getFilteredRecords();
+	public long getBufferDepth();
+	public long getBufferBytes();
+	public long getSaturations();
+	public long getTailerPausedMillis();
+	public long getMappings();
+	public long getBatches();
+	public double getBatchSizeMean();
+	public long getBatchSizeP99();
+	public long getDroppedEntries();
+	public long getCoalescedEntries();
+	public long getStaleEvents();
+	public long getSpooledEntries();
+	public long getResyncEntries();
+	public long getTagRegisters();
+	public long getTagUnregisters();
+	public long getTagsUnchanged();
+	public long getGroupUpdates();
+	public long getRadiusPackets();
+	public long getRadiusInvalid();
+	public long getRadiusWithheld();
+	public long getSyslogMessages();
+	public long getSyslogInvalid();
+	public long getIngestEvents();
+	public long getIngestRejected();
+	public long getIngestThrottled();
+}
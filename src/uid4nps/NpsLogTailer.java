@@ -0,0 +1,779 @@
+package uid4nps;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Tailer of the DTS log directory of one NPS server. Every configured source gets its own tailer, running the
+ * log reader FSM (TRYNEWFILE, TRYREADLINE, LINEPROC and the SLEEP states) in its own thread with its own parser
+ * and include pattern. All the tailers feed the shared {@link UseridPanosInterface} buffer, so the entries of
+ * every source are coalesced together and sent over the same PANOS connections.
+ * <p>
+ * Lines are read by byte offset. If a checkpoint file is configured, the file being read and the offset of the
+ * next line are saved there every {@link NpsLogTailer#CHECKPOINT_INTERVAL_MS} milliseconds, on every roll over and
+ * when the tailer stops. On start the tailer resumes from the checkpoint instead of positioning at the end of the
+ * newest log file.
+ * <p>
+ * NPS may still be flushing its last records into the old file when it rolls over to a new one. On a roll over the
+ * old file is kept open and drained alongside the new one, its lines taking precedence, until it has been quiet for
+ * the rotation grace period (see {@link NpsLogTailer#setRotationGrace}). While quiet it is polled at most every
+ * {@link NpsLogTailer#RETIRING_POLL_MS} milliseconds. While it is open the checkpoint also keeps its path and offset,
+ * and a tailer resuming from such a checkpoint drains the old file again before the new one, so a restart during the
+ * grace period doesn't lose its last records
+ * <p>
+ * While the shared buffer is over its memory budget (see {@link UseridPanosInterface#isSaturated}) the tailer stops
+ * reading and logs how far behind the log files it is. The pending events stay in the files and reading resumes
+ * from the same offset once the buffer has room again
+ *
+ */
+public class NpsLogTailer implements Runnable {
+
+	/**
+	 * Minimum delay in milliseconds between two checkpoint writes
+	 */
+	protected static final long CHECKPOINT_INTERVAL_MS = 5000;
+	/**
+	 * Longest log line we accept. Longer lines are skipped
+	 */
+	protected static final int MAX_LINE = 1024 * 1024;
+	/**
+	 * Minimum delay in milliseconds between two reads of a retiring log file that had no new data
+	 */
+	protected static final long RETIRING_POLL_MS = 500;
+	/**
+	 * A retiring log file that keeps growing is closed anyway after this many grace periods
+	 */
+	protected static final int RETIRING_MAX_GRACES = 4;
+	/**
+	 * Delay in milliseconds between two checks of the shared buffer while paused by its memory budget
+	 */
+	protected static final long PAUSE_POLL_MS = 100;
+	/**
+	 * Delay in milliseconds between two lag reports while paused
+	 */
+	protected static final long PAUSE_LOG_MS = 30000;
+
+	private String name;
+	private Path npsLogPath;
+	private Path checkpointFile;
+	private UseridNpsDtsParser parser;
+	private UseridPanosInterface paInterface;
+	private Logger logHandler;
+	private Thread thread;
+	private volatile boolean running;
+
+	private int currentState = Const.INIT;
+	/**
+	 * The newest log file
+	 */
+	private LogFile current;
+	/**
+	 * The log file we rolled over from, while it is drained. NULL otherwise
+	 */
+	private LogFile retiring;
+	/**
+	 * The last log file we rolled over from, once closed. Late writes must not make it look like a new file
+	 */
+	private Path retired;
+	private long rotationGraceMs = 0;
+	private long retiringSince;
+	private long retiringLastData;
+	private long retiringNextPoll;
+	private long retiringLines;
+	private HashMap<Path,Long> currentFileSizeDB = new HashMap<Path, Long>();
+	private HashMap<Path,Long> oldFileSizeDB = new HashMap<Path, Long>();
+	private ArrayList<Path> unknownFileArray = new ArrayList<Path>();
+	private String xmlElement;
+	private int readlineTries = 0;
+	private FlightEvents.FsmStateEvent stateEvent;
+
+	/**
+	 * Content of the last checkpoint written
+	 */
+	private String checkpointState;
+	private long lastCheckpoint = 0;
+
+	/**
+	 * @param name				Name of the source, used in the log messages and the thread name
+	 * @param npsLogDir			Directory where this NPS server stores its DTS-compliant ".log" files
+	 * @param includePattern	Only records matching this regular expression are processed
+	 * @param defaultDomain		The default Domain Name to be used for Accounting entries without an explicit domain
+	 * @param checkpointFile	File keeping the read position of the source. NULL disables the checkpoint
+	 * @param paInterface		The buffer that will receive the valid entries
+	 * @throws ParserConfigurationException
+	 * @throws SAXException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public NpsLogTailer(String name, String npsLogDir, String includePattern, String defaultDomain, String checkpointFile, UseridPanosInterface paInterface)
+			throws ParserConfigurationException, SAXException, IOException, InterruptedException {
+		this.name = name;
+		this.paInterface = paInterface;
+		npsLogPath = FileSystems.getDefault().getPath(npsLogDir);
+		this.checkpointFile = checkpointFile == null || checkpointFile.isEmpty() ? null : FileSystems.getDefault().getPath(checkpointFile);
+		parser = new UseridNpsDtsParser(defaultDomain, includePattern);
+		logHandler = Logger.getLogger("userid4nps");
+	}
+
+	/**
+	 * @return	The name of the source
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Sets for how long the old log file keeps being read after a roll over. Must be called before {@link NpsLogTailer#start}
+	 *
+	 * @param graceMs	Milliseconds without new data after which the old file is closed. 0 closes it on the roll over
+	 */
+	public void setRotationGrace(long graceMs) {
+		rotationGraceMs = graceMs;
+	}
+
+	/**
+	 * Starts the tailer thread
+	 */
+	public void start() {
+		running = true;
+		thread = new Thread(this, "uid4nps-tailer-"+name);
+		thread.setDaemon(true);
+		thread.start();
+		logHandler.info("["+name+"] Tailing NPS log directory '"+npsLogPath+"'");
+	}
+
+	/**
+	 * @return	TRUE while the tailer thread is running
+	 */
+	public boolean isAlive() {
+		return thread != null && thread.isAlive();
+	}
+
+	/**
+	 * Stops the tailer thread, saves the checkpoint and closes the log file. For graceful shutdown procedures
+	 */
+	public void stop() {
+		signalStop();
+		join(System.currentTimeMillis() + 1000);
+	}
+
+	/**
+	 * Asks the tailer thread to stop, without waiting for it. To be followed by {@link NpsLogTailer#join}
+	 */
+	public void signalStop() {
+		running = false;
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	/**
+	 * Waits for the tailer thread to end (it saves the checkpoint and closes the log file on its way out)
+	 *
+	 * @param deadline	Time, in milliseconds since the epoch, we stop waiting for the thread at
+	 */
+	public void join(long deadline) {
+		long remaining = deadline - System.currentTimeMillis();
+		if (thread == null || remaining <= 0)
+			return;
+		try {
+			thread.join(remaining);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		int trans = Const.OK;
+		enterState(Const.INIT, Const.INIT);
+		while ( running ) {
+			try {
+				if ( (currentState == Const.TRYNEWFILE && trans == Const.OK) ||
+						(currentState == Const.LINEPROC && trans == Const.OK) ||
+						(currentState == Const.SLEEP05 && trans == Const.OK)) {
+					logHandler.finest("["+name+"] FSM New State: TRYREADLINE");
+					enterState(Const.TRYREADLINE, trans);
+					if (paInterface.isSaturated() && !pause())
+						break;
+					xmlElement = readLine();
+					if (xmlElement == null)
+						trans = Const.NOK;
+					else {
+						Metrics.linesRead.increment();
+						trans = Const.OK;
+					}
+					continue;
+				}
+				if (currentState == Const.TRYREADLINE && trans == Const.OK) {
+					logHandler.finest("["+name+"] FSM New State: LINEPROC");
+					enterState(Const.LINEPROC, trans);
+					lineProc();
+					readlineTries = 0;
+					checkpoint(false);
+					trans = Const.OK;
+					continue;
+				}
+			} catch (IOException e1) {
+				if (!running)
+					break;
+				logHandler.severe("["+name+"] Unhandled Generic IO error");
+				logHandler.severe(e1.getStackTrace()[0].toString());
+				e1.printStackTrace();
+				break;
+			} catch (Exception e) {
+				logHandler.severe("["+name+"] Unhandled Generic library error");
+				logHandler.severe(e.getStackTrace()[0].toString());
+				e.printStackTrace();
+				break;
+			}
+			if ((currentState == Const.INIT && trans == Const.OK) ||
+					(currentState == Const.SLEEP30 && trans == Const.OK) ||
+					(currentState == Const.SLEEP05 && trans == Const.POLL) ) {
+				logHandler.finest("["+name+"] FSM New State: TRYNEWFILE");
+				enterState(Const.TRYNEWFILE, trans);
+				try {
+					trans = tryNewFile(current == null ? null : current.path);
+				} catch (Exception e) {
+					logHandler.severe("["+name+"] Error opening the NPS log directory");
+					logHandler.severe(e.getStackTrace()[0].toString());
+					e.printStackTrace();
+					break;
+				}
+				continue;
+			}
+			try {
+				if (currentState == Const.TRYNEWFILE && trans == Const.SLEEP) {
+					logHandler.finest("["+name+"] FSM New State: SLEEP30");
+					enterState(Const.SLEEP30, trans);
+					Thread.sleep(30000);
+					trans = Const.OK;
+					continue;
+				}
+				if (currentState == Const.TRYREADLINE && trans == Const.NOK) {
+					logHandler.finest("["+name+"] FSM New State: SLEEP05, "+String.valueOf(readlineTries));
+					enterState(Const.SLEEP05, trans);
+					checkpoint(false);
+					Thread.sleep(500);
+					readlineTries++;
+					if (readlineTries == Const.pollNeeded) {
+						readlineTries = 0;
+						trans = Const.POLL;
+					}
+					else
+						trans = Const.OK;
+					continue;
+				}
+			} catch (InterruptedException e) {
+				if (running) {
+					logHandler.severe("["+name+"] Unhandled generic thread error");
+					logHandler.severe(e.getStackTrace()[0].toString());
+					e.printStackTrace();
+				}
+				break;
+			}
+			logHandler.severe("["+name+"] Reached the end of the FSM without any action");
+			break;
+		}
+		if (stateEvent != null && stateEvent.shouldCommit())
+			stateEvent.commit();
+		checkpoint(true);
+		if (retiring != null)
+			retiring.close();
+		if (current != null)
+			current.close();
+		logHandler.info("["+name+"] Tailer stopped");
+	}
+
+	/**
+	 * A new line has been read from the current log file. We call the XML parser and hand the valid entries
+	 * to the shared buffer
+	 *
+	 * @throws IOException
+	 */
+	protected void lineProc() throws IOException {
+		if (parser.IMIParser(xmlElement)) {
+			logHandler.finest("["+name+"] Got a valid DTS entry. Sending it to the PanosInterface");
+			if (parser.FramedIPAddress != null)
+				paInterface.addEntry(parser.AcctStatusType, parser.UserName, parser.FramedIPAddress, parser.NASIdentifier, parser.Timestamp, parser.Tags, parser.AcctSessionId);
+			if (parser.FramedIPv6Address != null)
+				paInterface.addEntry(parser.AcctStatusType, parser.UserName, parser.FramedIPv6Address, parser.NASIdentifier, parser.Timestamp, parser.Tags, parser.AcctSessionId);
+			paInterface.updateGroups(parser.UserName, parser.Groups);
+		}
+		else {
+			logHandler.finest("["+name+"] Ignoring DTS entry read from file");
+		}
+	}
+
+	/**
+	 * Waits while the shared buffer is over its memory budget. The checkpoint is saved first, so a restart while
+	 * paused resumes from the same offsets, including the one of the retiring log file if it is still open. The lag (bytes left to read) is logged when pausing, every
+	 * {@link NpsLogTailer#PAUSE_LOG_MS} milliseconds while paused and when resuming
+	 *
+	 * @return	FALSE if the tailer has been stopped while paused
+	 */
+	protected boolean pause() {
+		long since = System.currentTimeMillis();
+		checkpoint(true);
+		logHandler.warning("["+name+"] Shared buffer over its memory budget. Pausing at offset "+current.offset
+				+" of '"+current.path.getFileName()+"'"+retiringPosition()+", "+lag()+" bytes behind");
+		long nextLog = since + PAUSE_LOG_MS;
+		try {
+			while (running && paInterface.isSaturated()) {
+				Thread.sleep(PAUSE_POLL_MS);
+				long now = System.currentTimeMillis();
+				if (now >= nextLog) {
+					nextLog = now + PAUSE_LOG_MS;
+					logHandler.info("["+name+"] Paused for "+(now - since)+" ms, "+lag()+" bytes behind");
+				}
+			}
+		} catch (InterruptedException e) {
+			if (running)
+				Thread.currentThread().interrupt();
+		}
+		long paused = System.currentTimeMillis() - since;
+		Metrics.tailerPausedMillis.add(paused);
+		if (!running)
+			return false;
+		logHandler.info("["+name+"] Resuming at offset "+current.offset+" of '"+current.path.getFileName()+"'"+retiringPosition()
+				+" after "+paused+" ms paused, "+lag()+" bytes behind");
+		return true;
+	}
+
+	/**
+	 * @return	The offset of the retiring log file for the pause messages. Empty if there is none
+	 */
+	private String retiringPosition() {
+		return retiring == null ? "" : " (and "+retiring.offset+" of '"+retiring.path.getFileName()+"')";
+	}
+
+	/**
+	 * @return	Bytes left to read in the current and the retiring log files
+	 */
+	protected long lag() {
+		return current.lag() + (retiring == null ? 0 : retiring.lag());
+	}
+
+	/**
+	 * Reads the next complete line, from the retiring log file first and then from the current one
+	 *
+	 * @return	The line without its line terminator. NULL if there is no complete line available
+	 * @throws IOException
+	 */
+	protected String readLine() throws IOException {
+		if (retiring != null) {
+			long now = System.currentTimeMillis();
+			if (now >= retiringNextPoll) {
+				String line = retiring.readLine();
+				if (line != null) {
+					retiringLastData = now;
+					retiringLines++;
+					return line;
+				}
+				retiringNextPoll = now + RETIRING_POLL_MS;
+				if (now - retiringLastData >= rotationGraceMs || now - retiringSince >= RETIRING_MAX_GRACES * rotationGraceMs) {
+					retire();
+					checkpoint(true);
+				}
+			}
+		}
+		return current.readLine();
+	}
+
+	/**
+	 * Starts draining a log file we rolled over from
+	 */
+	private void startRetiring(LogFile file) {
+		retiring = file;
+		retiringSince = retiringLastData = retiringNextPoll = System.currentTimeMillis();
+		retiringLines = 0;
+	}
+
+	/**
+	 * Closes the retiring log file
+	 */
+	private void retire() {
+		if (retiring.pending() > 0)
+			logHandler.warning("["+name+"] Dropping "+retiring.pending()+" bytes of an unterminated line at the end of '"+retiring.path.getFileName()+"'");
+		logHandler.info("["+name+"] Closing '"+retiring.path.getFileName()+"': "+retiringLines+" lines read after the roll over");
+		retiring.close();
+		retired = retiring.path;
+		retiring = null;
+	}
+
+	/**
+	 * Closes the current log file (if any) and opens a new one
+	 *
+	 * @param file		The log file to open
+	 * @param position	Offset of the first line to read
+	 * @throws IOException
+	 */
+	private void openLogFile(Path file, long position) throws IOException {
+		LogFile opened = new LogFile(file, position);
+		if (current != null) {
+			if (retiring != null)
+				retire();
+			if (rotationGraceMs > 0) {
+				logHandler.info("["+name+"] New log file detected: draining '"+current.path.getFileName()+"' until it is quiet for "+rotationGraceMs+" ms");
+				startRetiring(current);
+			}
+			else {
+				logHandler.info("["+name+"] New log file detected: closing '"+current.path.getFileName()+"'");
+				current.close();
+				retired = current.path;
+			}
+		}
+		logHandler.info("["+name+"] Opening log file '"+file.getFileName()+"'");
+		current = opened;
+		checkpoint(true);
+	}
+
+	/**
+	 * After ten unsuccessful consecutive tries to read a new line from the current log file we'll review the
+	 * log directory to see if NPS has rolled up to a new log file. In such a case we close the old file and open the newer one.
+	 *
+	 * We use three different strategies to sense a roll over. So it also works with file systems that do not update the timestamp (NTFS in many Windows Server OS)
+	 * <ul>
+	 * <li>Looking for a newer file (from a timestamp point of view). If it doesn't sense a new file then ...</li>
+	 * <li>Looking if there is one, and only one, new ".log" file in the directory (compared to the list of ".log" files from the previous sample). If it doesn't sense a new file then ...</li>
+	 * <li>Looking for the ".log" file that is growing in size</li>
+	 * </ul>
+	 * The first time it is called the tailer resumes from the checkpoint, if there is a valid one. Otherwise it
+	 * positions at the end of the newest log file
+	 *
+	 * @param oldFile	Pointer to the currently opened log file
+	 * @return		A FSM OK transition.
+	 * @throws IOException
+	 */
+	protected int tryNewFile(Path oldFile) throws IOException {
+		BasicFileAttributes attrs;
+		FileTime timeLatest = null;
+		Path latest = null;
+		Boolean changeMade = false;
+//		We've been provided an oldFile. Let's start with it.
+		if (oldFile != null) {
+			latest = oldFile;
+			timeLatest = Files.readAttributes(latest, BasicFileAttributes.class).lastModifiedTime();
+		}
+
+//		Now time to get the latest entry in the directory
+		DirectoryStream<Path> npsDirStream = Files.newDirectoryStream(npsLogPath,"*.log");
+		currentFileSizeDB.clear();
+		for (Path fil: npsDirStream ) {
+			attrs = Files.readAttributes(fil, BasicFileAttributes.class );
+			FileTime entryPathModTime = attrs.lastModifiedTime();
+			currentFileSizeDB.put(fil, attrs.size()); // This creates a database with current paths and sizes
+			if ( timeLatest == null ) {
+				logHandler.finest("["+name+"] First time: we'll start with '"+fil.getFileName()+"'");
+				timeLatest = entryPathModTime;
+				latest = fil;
+				changeMade=true;
+			} else {
+//				I want to ignore the file if it is equal to oldFile
+				if (oldFile != null)
+					if (oldFile.equals(fil))
+						continue;
+//				The file we rolled over from may still be written to and must not be taken for a newer one
+				if (isRetiring(fil))
+					continue;
+				if (entryPathModTime.compareTo(timeLatest) > 0) {
+					logHandler.finest("["+name+"] Newer file found: now evaluating '"+fil.getFileName()+"'");
+					timeLatest = entryPathModTime;
+					latest = fil;
+					changeMade = true;
+				}
+			}
+		}
+		npsDirStream.close();
+
+//		Options:
+//		- oldFile = null and a valid checkpoint: We must open the checkpoint file at the checkpoint offset
+//		- oldFile = null : We must open latest file and position the reading pointer at the end of the file
+//		- oldFile != null && changeMade: We must close old file and open new one from the beginning
+		if (oldFile == null && resumeFromCheckpoint()) {
+			oldFileSizeDB.clear();
+			oldFileSizeDB.putAll(currentFileSizeDB);
+			return Const.OK;
+		}
+		if (changeMade) {
+			if (oldFile == null) {
+				logHandler.info("["+name+"] Positioning at the end of the log file '"+latest.getFileName()+"'");
+				openLogFile(latest, Files.size(latest));
+			}
+			else
+				openLogFile(latest, 0);
+			oldFileSizeDB.clear();
+			oldFileSizeDB.putAll(currentFileSizeDB);
+			return Const.OK;
+		}
+		else {
+			if (oldFile == null) {
+				logHandler.warning("["+name+"] No log files available in the directory. Will wait 30 seconds");
+				return Const.SLEEP;
+			}
+			else {
+				logHandler.fine("["+name+"] Unable to sense changes by file timestamp. Let's try strategy 2: previously unknown .log file in the directory");
+				unknownFileArray.clear();
+				for (Path fil: currentFileSizeDB.keySet() ) {
+					if(!oldFileSizeDB.containsKey(fil))
+						unknownFileArray.add(fil);
+				}
+				if (unknownFileArray.size() == 1) {
+					logHandler.info("["+name+"] Found a unique new .log file in the directory. This must be the newest one");
+					openLogFile(unknownFileArray.get(0), 0);
+					oldFileSizeDB.clear();
+					oldFileSizeDB.putAll(currentFileSizeDB);
+					return Const.OK;
+				}
+				else {
+					if (unknownFileArray.size() > 1) {
+						logHandler.warning("["+name+"] Too many changes in the directory for us to sense what's new. Will try again in 30 seconds");
+						oldFileSizeDB.clear();
+						oldFileSizeDB.putAll(currentFileSizeDB);
+						return Const.SLEEP;
+					}
+					else {
+						logHandler.fine("["+name+"] Unable to sense changes by new file. Let's try strategy 3: what file is growing in size?");
+						unknownFileArray.clear();
+						for (Path fil: currentFileSizeDB.keySet() )
+							if (!fil.equals(latest) && !isRetiring(fil))
+								if(oldFileSizeDB.containsKey(fil))
+									if(oldFileSizeDB.get(fil) < currentFileSizeDB.get(fil))
+										unknownFileArray.add(fil);
+						if (unknownFileArray.size() == 1) {
+							logHandler.info("["+name+"] Found a unique new .log file growing in the directory. This must be the newest one");
+							openLogFile(unknownFileArray.get(0), 0);
+							oldFileSizeDB.clear();
+							oldFileSizeDB.putAll(currentFileSizeDB);
+							return Const.OK;
+						}
+						else {
+							if (unknownFileArray.size() > 1) {
+								logHandler.warning("["+name+"] Too many files growing in the directory for us to sense what's new. Will try again in 30 seconds");
+								oldFileSizeDB.clear();
+								oldFileSizeDB.putAll(currentFileSizeDB);
+								return Const.SLEEP;
+							}
+						}
+					}
+				}
+			}
+		}
+		oldFileSizeDB.clear();
+		oldFileSizeDB.putAll(currentFileSizeDB);
+		logHandler.fine("["+name+"] Current log file keeps being the latest one");
+		return Const.OK;
+	}
+
+	/**
+	 * @return	TRUE if the file is the retiring log file or the last one retired
+	 */
+	private boolean isRetiring(Path file) {
+		return (retiring != null && retiring.path.equals(file)) || file.equals(retired);
+	}
+
+	/**
+	 * Opens the log file saved in the checkpoint at the saved offset. Newer files will be found by the next roll over check.
+	 * If the checkpoint also holds a retiring log file (lines 3 and 4) it is reopened at its offset and drained first
+	 *
+	 * @return	TRUE if there was a valid checkpoint
+	 */
+	private boolean resumeFromCheckpoint() {
+		if (checkpointFile == null || !Files.exists(checkpointFile))
+			return false;
+		try {
+			List<String> lines = Files.readAllLines(checkpointFile, StandardCharsets.UTF_8);
+			if (lines.size() < 2)
+				return false;
+			Path file = FileSystems.getDefault().getPath(lines.get(0));
+			long position = Long.parseLong(lines.get(1).trim());
+			if (!Files.exists(file) || Files.size(file) < position) {
+				logHandler.warning("["+name+"] Ignoring the checkpoint: '"+file+"' no longer holds offset "+position);
+				return false;
+			}
+			if (lines.size() >= 4 && rotationGraceMs > 0) {
+				Path oldFile = FileSystems.getDefault().getPath(lines.get(2));
+				long oldPosition = Long.parseLong(lines.get(3).trim());
+				if (Files.exists(oldFile) && Files.size(oldFile) >= oldPosition) {
+					logHandler.info("["+name+"] Draining '"+oldFile.getFileName()+"' from the checkpoint at offset "+oldPosition+" before the current log file");
+					startRetiring(new LogFile(oldFile, oldPosition));
+				}
+				else
+					logHandler.warning("["+name+"] Ignoring the retiring file of the checkpoint: '"+oldFile+"' no longer holds offset "+oldPosition);
+			}
+			logHandler.info("["+name+"] Resuming '"+file.getFileName()+"' from the checkpoint at offset "+position);
+			openLogFile(file, position);
+			return true;
+		} catch (IOException | RuntimeException e) {
+			logHandler.warning("["+name+"] Ignoring unreadable checkpoint '"+checkpointFile+"': "+e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Saves the current file and offset, followed by the retiring file and offset if there is one, to the checkpoint
+	 * file, replacing it atomically
+	 *
+	 * @param force		Write it even if {@link NpsLogTailer#CHECKPOINT_INTERVAL_MS} hasn't elapsed since the last write
+	 */
+	private void checkpoint(boolean force) {
+		if (checkpointFile == null || current == null)
+			return;
+		long now = System.currentTimeMillis();
+		if (!force && now - lastCheckpoint < CHECKPOINT_INTERVAL_MS)
+			return;
+		String state = current.path.toAbsolutePath()+"\n"+current.offset+"\n";
+		if (retiring != null)
+			state += retiring.path.toAbsolutePath()+"\n"+retiring.offset+"\n";
+		if (state.equals(checkpointState))
+			return;
+		try {
+			Path temporary = checkpointFile.resolveSibling(checkpointFile.getFileName()+".tmp");
+			Files.write(temporary, state.getBytes(StandardCharsets.UTF_8));
+			Files.move(temporary, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			checkpointState = state;
+			lastCheckpoint = now;
+		} catch (IOException e) {
+			logHandler.warning("["+name+"] Unable to write the checkpoint '"+checkpointFile+"': "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Moves the FSM to a new state. The time spent in the previous state is recorded as a {@link FlightEvents.FsmStateEvent}
+	 *
+	 * @param newState	The {@link Const} state we're entering
+	 * @param trans		The {@link Const} transition that took us there
+	 */
+	private void enterState(int newState, int trans) {
+		if (stateEvent != null && stateEvent.shouldCommit())
+			stateEvent.commit();
+		currentState = newState;
+		stateEvent = new FlightEvents.FsmStateEvent();
+		stateEvent.source = name;
+		stateEvent.state = FlightEvents.stateName(newState);
+		stateEvent.transition = FlightEvents.transitionName(trans);
+		stateEvent.begin();
+	}
+
+	/**
+	 * An open log file read by byte offset
+	 */
+	private class LogFile {
+		private Path path;
+		private FileChannel channel;
+		/**
+		 * Read buffer. Unread data goes from lineStart to dataEnd
+		 */
+		private byte[] buffer = new byte[65536];
+		private int lineStart = 0;
+		private int dataEnd = 0;
+		private int scanned = 0;
+		private boolean skipping = false;
+		/**
+		 * File offset of the first unread byte (lineStart)
+		 */
+		private long offset;
+
+		/**
+		 * @param path		The log file
+		 * @param position	Offset of the first line to read
+		 * @throws IOException
+		 */
+		private LogFile(Path path, long position) throws IOException {
+			this.path = path;
+			channel = FileChannel.open(path, StandardOpenOption.READ);
+			channel.position(position);
+			offset = position;
+		}
+
+		/**
+		 * Reads the next complete line. A line still being written (no line feed yet) is left for the next call
+		 *
+		 * @return	The line without its line terminator. NULL if there is no complete line available
+		 * @throws IOException
+		 */
+		private String readLine() throws IOException {
+			while (true) {
+				for (int a = scanned; a < dataEnd; a++) {
+					if (buffer[a] != '\n')
+						continue;
+					int end = a > lineStart && buffer[a - 1] == '\r' ? a - 1 : a;
+					String line = skipping ? null : new String(buffer, lineStart, end - lineStart, StandardCharsets.UTF_8);
+					offset += a + 1 - lineStart;
+					lineStart = a + 1;
+					scanned = lineStart;
+					if (skipping) {
+						skipping = false;
+						continue;
+					}
+					return line;
+				}
+				scanned = dataEnd;
+				if (dataEnd == buffer.length) {
+					if (lineStart > 0) {
+						System.arraycopy(buffer, lineStart, buffer, 0, dataEnd - lineStart);
+						dataEnd -= lineStart;
+						scanned = dataEnd;
+						lineStart = 0;
+					}
+					else if (buffer.length < MAX_LINE)
+						buffer = Arrays.copyOf(buffer, Math.min(MAX_LINE, buffer.length * 2));
+					else {
+						logHandler.warning("["+name+"] Skipping a line longer than "+MAX_LINE+" bytes in '"+path.getFileName()+"'");
+						offset += dataEnd;
+						lineStart = dataEnd = scanned = 0;
+						skipping = true;
+					}
+				}
+				int read = channel.read(ByteBuffer.wrap(buffer, dataEnd, buffer.length - dataEnd));
+				if (read <= 0)
+					return null;
+				dataEnd += read;
+			}
+		}
+
+		/**
+		 * @return	Bytes of the file after the last complete line read
+		 */
+		private long lag() {
+			try {
+				return Math.max(0, channel.size() - offset);
+			} catch (IOException e) {
+				return 0;
+			}
+		}
+
+		/**
+		 * @return	Bytes read after the last complete line
+		 */
+		private int pending() {
+			return dataEnd - lineStart;
+		}
+
+		private void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logHandler.warning("["+name+"] Unable to close '"+path+"': "+e.getMessage());
+			}
+		}
+	}
+}
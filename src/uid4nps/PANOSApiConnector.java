@@ -9,8 +9,8 @@ import java.net.HttpURLConnection;
 import java.net.ProtocolException;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -39,10 +39,10 @@ public class PANOSApiConnector {
 	public Boolean ready;
 	public Boolean giveUp;
 	private Logger logHandler;
-	private Timer tempo;
 	/**
-	 * {@link TimerTask} field that calls the {@link PANOSApiConnector#checkConnection} method from within its {@link TimerTask#run} method
+	 * The periodic task, scheduled in the {@link SharedScheduler}, that calls the {@link PANOSApiConnector#checkConnection} method
 	 */
+	private ScheduledFuture<?> tempo;
 	protected String xmlResult;
 	private String inputLine;
 	private String linia;
@@ -55,6 +55,31 @@ public class PANOSApiConnector {
 	protected String panosCheckCommand;
 	private CallbackHelper cbHelp;
 	private String urlParameters;
+	/**
+	 * {@link TokenBucket} limiting the number of API calls per second sent to this PANOS device
+	 */
+	protected TokenBucket requestBucket;
+	/**
+	 * {@link TokenBucket} limiting the number of user-id entries per second sent to this PANOS device
+	 */
+	protected TokenBucket entryBucket;
+	/**
+	 * Operational counters for this PANOS device
+	 */
+	protected FirewallMetrics metrics;
+	private String baseUrl;
+	/**
+	 * The buffer notified every time this device becomes ready, so it can resync the active mappings
+	 */
+	private UseridPanosInterface readyListener;
+	/**
+	 * Connect and read timeout, in milliseconds, of the API calls. 0 means no timeout
+	 */
+	private volatile int timeoutMs = 0;
+	/**
+	 * Time in milliseconds since the epoch after which no API call may last. 0 means no deadline
+	 */
+	private volatile long deadline = 0;
 	
 	/**
 	 * Constructor method
@@ -63,12 +88,120 @@ public class PANOSApiConnector {
 	 * @throws IOException
 	 */
 	public PANOSApiConnector(String pANOSUrl, String aPIKey, String vsys) throws IOException {
+		baseUrl = pANOSUrl;
 		PANOSUrl = new URL(pANOSUrl+"/api/?");
 		APIKey = aPIKey;
 		this.vsys=vsys;
 		panosCheckCommand = "type=op&key="+APIKey+"&cmd="+URLEncoder.encode("<check><pending-changes></pending-changes></check>", "utf-8");
 		logHandler = Logger.getLogger("userid4nps");
 		giveUp = false;
+		requestBucket = new TokenBucket(0);
+		entryBucket = new TokenBucket(0);
+		metrics = Metrics.firewall(this);
+	}
+	
+	/**
+	 * @return	The URL of this PANOS device as provided to the constructor (without the tailing "/api")
+	 */
+	public String getUrl() {
+		return baseUrl;
+	}
+	
+	/**
+	 * @return	The operational counters of this PANOS device
+	 */
+	public FirewallMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @param readyListener	The buffer to be notified, through {@link UseridPanosInterface#deviceReady}, every time this device becomes ready
+	 */
+	public void setReadyListener(UseridPanosInterface readyListener) {
+		this.readyListener = readyListener;
+	}
+	
+	/**
+	 * @param timeoutMs		Connect and read timeout, in milliseconds, of the following API calls. 0 means no timeout
+	 */
+	public void setTimeout(int timeoutMs) {
+		this.timeoutMs = timeoutMs;
+	}
+	
+	/**
+	 * Bounds the following API calls so none of them lasts beyond the given time. Used by the shutdown drain
+	 * 
+	 * @param deadline	Time in milliseconds since the epoch. 0 removes the deadline
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+	
+	/**
+	 * @return	The connect and read timeout for an API call starting now
+	 */
+	private int callTimeout() {
+		if (deadline == 0)
+			return timeoutMs;
+		int remaining = (int) Math.max(1, Math.min(Integer.MAX_VALUE, deadline - System.currentTimeMillis()));
+		return timeoutMs == 0 ? remaining : Math.min(timeoutMs, remaining);
+	}
+	
+	/**
+	 * Configures the token buckets that pace the user-id messages sent to this PANOS device
+	 * 
+	 * @param requestsPerSecond		Maximum API calls per second (0 means unlimited)
+	 * @param entriesPerSecond		Maximum user-id entries per second (0 means unlimited)
+	 */
+	public synchronized void setRateLimit(double requestsPerSecond, double entriesPerSecond) {
+		requestBucket = new TokenBucket(requestsPerSecond);
+		entryBucket = new TokenBucket(entriesPerSecond);
+	}
+	
+	/**
+	 * Asks the rate limiter how many entries can be included in the next user-id message.
+	 * Priority entries (logouts and IP reassignments) are always granted, even if that leaves the buckets in debt.
+	 * Bulk entries (logins and interim refreshes) are only granted with the tokens left
+	 * 
+	 * @param priorityEntries	Number of priority entries that will be sent in the message
+	 * @param bulkEntries		Number of bulk entries waiting to be sent
+	 * @return					How many bulk entries can be included in the message or -1 if no message must be sent now
+	 */
+	public synchronized int grantEntries(int priorityEntries, int bulkEntries) {
+		if (priorityEntries > 0) {
+			requestBucket.forceAcquire(1);
+			entryBucket.forceAcquire(priorityEntries);
+		}
+		else if (bulkEntries == 0 || requestBucket.available() < 1 || entryBucket.available() < 1)
+			return -1;
+		else
+			requestBucket.tryAcquire(1);
+		int granted = Math.min(bulkEntries, entryBucket.available());
+		entryBucket.tryAcquire(granted);
+		return granted;
+	}
+	
+	/**
+	 * Asks the rate limiter for a message whose entries can't be split, like a group with its full member list.
+	 * The entries are granted all or none. A message bigger than the burst size is granted once the bucket is full,
+	 * leaving it in debt, so big messages are delayed but never starved
+	 * 
+	 * @param entries	Number of entries of the message
+	 * @return			TRUE if the message can be sent now
+	 */
+	public synchronized boolean grantWhole(int entries) {
+		if (requestBucket.available() < 1 || entryBucket.available() < Math.min(entries, (int) entryBucket.capacity))
+			return false;
+		requestBucket.tryAcquire(1);
+		entryBucket.forceAcquire(entries);
+		return true;
+	}
+	
+	/**
+	 * @return	Burst size of the entry rate limiter: the biggest message that doesn't need to wait for a full bucket
+	 */
+	public synchronized int burstEntries() {
+		return entryBucket.isUnlimited() ? Integer.MAX_VALUE : (int) entryBucket.capacity;
 	}
 	
 	/**
@@ -79,12 +212,12 @@ public class PANOSApiConnector {
 	 * <p>
 	 * If there is any communications exception during the check, a 1 minute timer will be started to check the connection and the {@link PANOSApiConnector#ready} flag will be cleared
 	 * <p>
-	 * If we get a valid response we cancel the timer and raise the {@link PANOSApiConnector#ready} flag  
+	 * If we get a valid response we cancel the timer, raise the {@link PANOSApiConnector#ready} flag and notify the ready listener  
 	 * @throws ProtocolException 
 	 */
 	public void checkConnection() throws ProtocolException {
 		if (giveUp)
-			tempo.cancel();
+			tempo.cancel(false);
 		else {
 			try {
 				APIConnection = (HttpURLConnection) PANOSUrl.openConnection();
@@ -92,6 +225,9 @@ public class PANOSApiConnector {
 				logHandler.info("Communication error. Alive Check Failed for "+PANOSUrl.toString());
 				return;
 			}
+			int timeout = callTimeout();
+			APIConnection.setConnectTimeout(timeout);
+			APIConnection.setReadTimeout(timeout);
 			APIConnection.setDoOutput(true);
 			APIConnection.setDoInput(true);
 			APIConnection.setRequestMethod("POST"); 
@@ -122,8 +258,10 @@ public class PANOSApiConnector {
 			}
 			if (response.contains("success")) {
 				logHandler.info("Alive Check Succeded for "+PANOSUrl.toString());
-				tempo.cancel();
+				tempo.cancel(false);
 				ready = true;
+				if (readyListener != null)
+					readyListener.deviceReady(this);
 			}
 			else
 				logHandler.info("Non success message received by "+PANOSUrl.toString());
@@ -131,17 +269,19 @@ public class PANOSApiConnector {
 	}
 	
 	/**
-	 * This method creates a 1 minute periodic timer to keep checking the connection with the PANOS device.
-	 * The {@link TimerTask} field will call the {@link PANOSApiConnector#checkConnection} method when triggered
+	 * This method schedules a 1 minute periodic task in the {@link SharedScheduler} to keep checking the connection with the PANOS device.
+	 * The task will call the {@link PANOSApiConnector#checkConnection} method when triggered.
+	 * Any previous checking task still running for this device is cancelled first
 	 * 
 	 * @param reason	The message that will be logged at INFO level as the reason.
 	 */
-	public void startTimer(String reason) {
+	public synchronized void startTimer(String reason) {
 		ready = false;
-		tempo = new Timer();		
+		if (tempo != null)
+			tempo.cancel(false);
 		cbHelp = new CallbackHelper(this);
 		logHandler.info(reason);
-		tempo.schedule(cbHelp, 0, 60000);
+		tempo = SharedScheduler.scheduleIo(cbHelp, 0, 60000, TimeUnit.MILLISECONDS);
 		logHandler.fine("Starting the checkConnectionTimer with "+PANOSUrl.toString());
 	}
 
@@ -158,18 +298,54 @@ public class PANOSApiConnector {
 	 * @throws UnsupportedEncodingException
 	 */
 	public String sendUserIdMessage(String command) throws ProtocolException, UnsupportedEncodingException {
+		return sendUserIdMessage(command, 0);
+	}
+	
+	/**
+	 * Same as {@link PANOSApiConnector#sendUserIdMessage(String)}, recording the round trip as a {@link FlightEvents.HttpEvent}
+	 * 
+	 * @param command	XML user-id message to be sent to this PANOS device
+	 * @param entries	Number of user-id entries in the message
+	 * @return			the XML response message received from the PANOS device or null is case of communication error
+	 * @throws ProtocolException
+	 * @throws UnsupportedEncodingException
+	 */
+	public String sendUserIdMessage(String command, int entries) throws ProtocolException, UnsupportedEncodingException {
+		FlightEvents.HttpEvent event = new FlightEvents.HttpEvent();
+		event.begin();
+		String result = send(command);
+		if (event.shouldCommit()) {
+			event.batchSize = entries;
+			event.target = baseUrl;
+			event.success = ready;
+			event.commit();
+		}
+		return result;
+	}
+	
+	private String send(String command) throws ProtocolException, UnsupportedEncodingException {
 		xmlResult = "";
 		if (vsys.equals("none"))
 			urlParameters = "type=user-id&action=set&key="+APIKey+"&cmd="+URLEncoder.encode(command, "utf-8");
 		else
 			urlParameters = "type=user-id&vsys="+vsys+"&action=set&key="+APIKey+"&cmd="+URLEncoder.encode(command, "utf-8");
 		logHandler.fine(urlParameters);
+		if (deadline != 0 && System.currentTimeMillis() >= deadline) {
+			logHandler.fine("Deadline reached. Not calling "+PANOSUrl.toString());
+			return xmlResult;
+		}
+		metrics.requests.increment();
+		long startTime = System.nanoTime();
 		try {
 			APIConnection = (HttpURLConnection) PANOSUrl.openConnection();
 		} catch (IOException e) {
+			metrics.errors.increment();
 			startTimer("Lost connection with the PANOS devicer "+PANOSUrl.toString());
 			return xmlResult;
 		}
+		int timeout = callTimeout();
+		APIConnection.setConnectTimeout(timeout);
+		APIConnection.setReadTimeout(timeout);
 		APIConnection.setDoOutput(true);
 		APIConnection.setDoInput(true);
 		APIConnection.setRequestMethod("POST"); 
@@ -177,12 +353,14 @@ public class PANOSApiConnector {
 		APIConnection.setRequestProperty("charset", "utf-8");
 		APIConnection.setUseCaches (false);
 		APIConnection.setRequestProperty("Content-Length", "" + Integer.toString(urlParameters.getBytes().length));
+		APIConnection.setFixedLengthStreamingMode(urlParameters.getBytes().length);	// no silent retry of the POST after a timeout
 		try {
 			wr = new DataOutputStream(APIConnection.getOutputStream ());
 			wr.writeBytes(urlParameters);
 			wr.flush();
 			wr.close();
 		} catch (IOException e) {
+			metrics.errors.increment();
 			startTimer("Lost connection with the PANOS devicer "+PANOSUrl.toString());
 			return xmlResult;
 		}
@@ -192,17 +370,19 @@ public class PANOSApiConnector {
 				xmlResult+=inputLine;
 			in.close();
 		} catch (IOException e) {
+			metrics.errors.increment();
 			startTimer("Lost connection with the PANOS devicer "+PANOSUrl.toString());
 			return xmlResult;
 		}
+		metrics.latency.record((System.nanoTime() - startTime) / 1000);
 		logHandler.fine(xmlResult);
 		return xmlResult;
 		}
 	
 	/**
-	 * @return	the {@link Timer} field so it can be cancelled from outside the class
+	 * @return	the {@link ScheduledFuture} of the checking task so it can be cancelled from outside the class
 	 */
-	public Timer getTempo () {
+	public ScheduledFuture<?> getTempo () {
 		return tempo;
 	}
 	
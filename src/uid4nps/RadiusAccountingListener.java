@@ -0,0 +1,392 @@
+package uid4nps;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.logging.Logger;
+
+/**
+ * RADIUS accounting server (RFC 2866) feeding the {@link UseridPanosInterface} buffer directly, as an alternative to
+ * tailing the NPS log files. NPS (or a RADIUS proxy) must be configured to forward a copy of the Accounting-Request packets.
+ * <p>
+ * Packets are received on a non-blocking {@link DatagramChannel} into a single reused buffer. The Request Authenticator
+ * is checked against the shared secret, the Acct-Status-Type, User-Name, Framed-IP-Address, NAS-Identifier and
+ * Event-Timestamp attributes are decoded in place and an Accounting-Response is sent back once the entry is buffered.
+ * The IPv6 address of dual-stack and IPv6-only clients is taken from Framed-IPv6-Address, or from Framed-IPv6-Prefix
+ * (a /128 one, or up to /64 with the Framed-Interface-Id) like {@link UseridNpsDtsParser#framedIPv6Address} does.
+ * The {@link FilterRules} and the {@link TagRules} see the decoded attributes (and Called-Station-Id and
+ * Calling-Station-Id) by their usual names, like they do with the NPS log records.
+ * Packets with a wrong authenticator are silently discarded as mandated by the RFC.
+ * Entries are handed over to the buffer with {@link UseridPanosInterface#handOffEntries}, which never waits: the selector
+ * thread doesn't block on the flushing task or on another source. While the hand over queue is full or the buffer is over
+ * its memory budget valid packets are not answered either, so the NAS keeps them and retries
+ *
+ */
+public class RadiusAccountingListener implements Runnable {
+
+	protected static final int ACCOUNTING_REQUEST = 4;
+	protected static final int ACCOUNTING_RESPONSE = 5;
+	protected static final int ATTR_USER_NAME = 1;
+	protected static final int ATTR_FRAMED_IP_ADDRESS = 8;
+	protected static final int ATTR_CALLED_STATION_ID = 30;
+	protected static final int ATTR_CALLING_STATION_ID = 31;
+	protected static final int ATTR_NAS_IDENTIFIER = 32;
+	protected static final int ATTR_ACCT_STATUS_TYPE = 40;
+	protected static final int ATTR_ACCT_SESSION_ID = 44;
+	protected static final int ATTR_EVENT_TIMESTAMP = 55;
+	protected static final int ATTR_FRAMED_INTERFACE_ID = 96;
+	protected static final int ATTR_FRAMED_IPV6_PREFIX = 97;
+	protected static final int ATTR_FRAMED_IPV6_ADDRESS = 168;
+
+	private DatagramChannel channel;
+	private Selector selector;
+	private byte[] secret;
+	private String defaultDomain;
+	private UseridPanosInterface paInterface;
+	private ByteBuffer packet;
+	private ByteBuffer reply;
+	private MessageDigest md5;
+	private UseridEntry[] entries = new UseridEntry[2];
+	private String[] types = new String[2];
+	private Logger logHandler;
+	private Thread thread;
+	private volatile boolean running;
+	private InetSocketAddress bindAddress;
+
+	/**
+	 * @param bindAddress		Local address to listen on
+	 * @param port				UDP port (1813 is the standard RADIUS accounting port)
+	 * @param secret			RADIUS shared secret. It can't be empty: anyone reaching the port could forge valid packets
+	 * @param defaultDomain		The default Domain Name to be used for Accounting entries without an explicit domain
+	 * @param paInterface		The buffer that will receive the valid entries
+	 * @throws NoSuchAlgorithmException
+	 * @throws IllegalArgumentException	If the secret is empty
+	 */
+	public RadiusAccountingListener(String bindAddress, int port, String secret, String defaultDomain, UseridPanosInterface paInterface) throws NoSuchAlgorithmException {
+		if (secret == null || secret.isEmpty())
+			throw new IllegalArgumentException("The RADIUS shared secret can't be empty");
+		this.bindAddress = new InetSocketAddress(bindAddress, port);
+		this.secret = secret.getBytes(StandardCharsets.UTF_8);
+		this.defaultDomain = defaultDomain;
+		this.paInterface = paInterface;
+		packet = ByteBuffer.allocate(4096);
+		reply = ByteBuffer.allocate(20);
+		md5 = MessageDigest.getInstance("MD5");
+		logHandler = Logger.getLogger("userid4nps");
+	}
+
+	/**
+	 * Binds the UDP port and starts the receiving thread
+	 *
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		channel.bind(bindAddress);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+		running = true;
+		thread = new Thread(this, "uid4nps-radius");
+		thread.setDaemon(true);
+		thread.start();
+		logHandler.info("RADIUS accounting listener bound to "+channel.getLocalAddress());
+	}
+
+	/**
+	 * @return	The local address the listener is bound to
+	 * @throws IOException
+	 */
+	public SocketAddress getLocalAddress() throws IOException {
+		return channel.getLocalAddress();
+	}
+
+	/**
+	 * Stops the receiving thread and releases the UDP port. For graceful shutdown procedures
+	 */
+	public void stop() {
+		signalStop();
+		join(System.currentTimeMillis() + 1000);
+	}
+
+	/**
+	 * Asks the receiving thread to stop, without waiting for it. To be followed by {@link RadiusAccountingListener#join}
+	 */
+	public void signalStop() {
+		running = false;
+		if (selector != null)
+			selector.wakeup();
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	/**
+	 * Waits for the receiving thread to end and releases the UDP port
+	 *
+	 * @param deadline	Time, in milliseconds since the epoch, we stop waiting for the thread at
+	 */
+	public void join(long deadline) {
+		try {
+			long remaining = deadline - System.currentTimeMillis();
+			if (thread != null && remaining > 0)
+				thread.join(remaining);
+			if (channel != null)
+				channel.close();
+			if (selector != null)
+				selector.close();
+		} catch (Exception e) {
+			logHandler.fine("Error closing the RADIUS accounting listener");
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				selector.select(1000);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					keys.next();
+					keys.remove();
+					SocketAddress from;
+					packet.clear();
+					while ((from = channel.receive(packet)) != null) {
+						packet.flip();
+						handlePacket(from);
+						packet.clear();
+					}
+				}
+			} catch (IOException e) {
+				if (running)
+					logHandler.warning("RADIUS accounting listener IO error: "+e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Validates and decodes the Accounting-Request held in {@link RadiusAccountingListener#packet}
+	 *
+	 * @param from		The sender of the packet
+	 * @throws IOException
+	 */
+	protected void handlePacket(SocketAddress from) throws IOException {
+		Metrics.radiusPackets.increment();
+		byte[] buf = packet.array();
+		int received = packet.limit();
+		if (received < 20 || (buf[0] & 0xff) != ACCOUNTING_REQUEST) {
+			Metrics.radiusInvalid.increment();
+			return;
+		}
+		int length = ((buf[2] & 0xff) << 8) | (buf[3] & 0xff);
+		if (length < 20 || length > received) {
+			Metrics.radiusInvalid.increment();
+			return;
+		}
+		if (!validAuthenticator(buf, length)) {
+			Metrics.radiusInvalid.increment();
+			logHandler.fine("Discarding RADIUS packet with a wrong authenticator from "+from);
+			return;
+		}
+		if (paInterface.isSaturated()) {
+			Metrics.radiusWithheld.increment();
+			logHandler.finest("Buffer over its memory budget. Leaving the RADIUS packet from "+from+" unanswered");
+			return;
+		}
+		int acctStatusType = 0;
+		String userName = null;
+		String framedIp = null;
+		long v6High = 0;
+		long v6Low = 0;
+		boolean v6Address = false;
+		int v6PrefixLength = -1;
+		long v6PrefixHigh = 0;
+		long v6PrefixLow = 0;
+		long interfaceId = 0;
+		boolean hasInterfaceId = false;
+		String nasIdentifier = null;
+		long eventTime = 0;
+		String sessionId = null;
+		String calledStationId = null;
+		String callingStationId = null;
+		int pos = 20;
+		while (pos + 2 <= length) {
+			int type = buf[pos] & 0xff;
+			int attrLength = buf[pos + 1] & 0xff;
+			if (attrLength < 2 || pos + attrLength > length)
+				break;
+			int value = pos + 2;
+			int valueLength = attrLength - 2;
+			switch (type) {
+			case ATTR_ACCT_STATUS_TYPE:
+				if (valueLength == 4)
+					acctStatusType = readInt(buf, value);
+				break;
+			case ATTR_USER_NAME:
+				userName = new String(buf, value, valueLength, StandardCharsets.UTF_8);
+				break;
+			case ATTR_FRAMED_IP_ADDRESS:
+				if (valueLength == 4)
+					framedIp = (buf[value] & 0xff)+"."+(buf[value + 1] & 0xff)+"."+(buf[value + 2] & 0xff)+"."+(buf[value + 3] & 0xff);
+				break;
+			case ATTR_FRAMED_IPV6_ADDRESS:
+				if (valueLength == 16) {
+					v6High = readLong(buf, value);
+					v6Low = readLong(buf, value + 8);
+					v6Address = true;
+				}
+				break;
+			case ATTR_FRAMED_IPV6_PREFIX:
+//				Reserved octet, prefix length and up to 16 octets of prefix
+				if (valueLength >= 2 && valueLength <= 18 && (buf[value + 1] & 0xff) <= 128) {
+					byte[] prefix = new byte[16];
+					System.arraycopy(buf, value + 2, prefix, 0, valueLength - 2);
+					v6PrefixLength = buf[value + 1] & 0xff;
+					v6PrefixHigh = readLong(prefix, 0);
+					v6PrefixLow = readLong(prefix, 8);
+				}
+				break;
+			case ATTR_FRAMED_INTERFACE_ID:
+				if (valueLength == 8) {
+					interfaceId = readLong(buf, value);
+					hasInterfaceId = true;
+				}
+				break;
+			case ATTR_NAS_IDENTIFIER:
+				nasIdentifier = new String(buf, value, valueLength, StandardCharsets.UTF_8);
+				break;
+			case ATTR_ACCT_SESSION_ID:
+				sessionId = new String(buf, value, valueLength, StandardCharsets.UTF_8);
+				break;
+			case ATTR_CALLED_STATION_ID:
+				calledStationId = new String(buf, value, valueLength, StandardCharsets.UTF_8);
+				break;
+			case ATTR_CALLING_STATION_ID:
+				callingStationId = new String(buf, value, valueLength, StandardCharsets.UTF_8);
+				break;
+			case ATTR_EVENT_TIMESTAMP:
+				if (valueLength == 4)
+					eventTime = (readInt(buf, value) & 0xffffffffL) * 1000;
+				break;
+			}
+			pos += attrLength;
+		}
+		if (!v6Address && v6PrefixLength == 128) {
+			v6High = v6PrefixHigh;
+			v6Low = v6PrefixLow;
+			v6Address = true;
+		}
+		else if (!v6Address && v6PrefixLength >= 0 && v6PrefixLength <= 64 && hasInterfaceId) {
+			v6High = v6PrefixLength == 0 ? 0 : v6PrefixHigh & (-1L << (64 - v6PrefixLength));
+			v6Low = interfaceId;
+			v6Address = true;
+		}
+		String framedIpv6 = v6Address && (v6High != 0 || v6Low != 0) ? IpAddress.formatIPv6(v6High, v6Low) : null;
+		if (acctStatusType >= 1 && acctStatusType <= 3 && userName != null && (framedIp != null || framedIpv6 != null)) {
+			String normalized = UseridNpsDtsParser.normalizeUserName(userName, defaultDomain);
+			HashMap<String, String> attributes = null;
+			if (normalized != null) {
+				attributes = attributes(userName, framedIp, framedIpv6, nasIdentifier, sessionId, calledStationId, callingStationId);
+				if (FilterRules.active() && !FilterRules.accepts(attributes)) {
+					Metrics.filteredRecords.increment();
+					normalized = null;
+				}
+			}
+			if (normalized != null) {
+				String[] tags = TagRules.derive(attributes);
+				long time = eventTime == 0 ? System.currentTimeMillis() : eventTime;
+				int count = 0;
+				if (framedIp != null)
+					entries[count++] = new UseridEntry(normalized, framedIp, nasIdentifier, time);
+				if (framedIpv6 != null)
+					entries[count++] = new UseridEntry(normalized, framedIpv6, nasIdentifier, time);
+				for (int a = 0; a < count; a++) {
+					entries[a].sessionId = sessionId;
+					entries[a].tags = tags;
+					types[a] = String.valueOf(acctStatusType);
+				}
+				if (!paInterface.handOffEntries(types, entries, count)) {
+					Metrics.radiusWithheld.increment();
+					logHandler.finest("Hand over queue full. Leaving the RADIUS packet from "+from+" unanswered");
+					return;
+				}
+				Metrics.linesAccepted.increment();
+			}
+		}
+		sendResponse(buf, from);
+	}
+
+	/**
+	 * @return	The decoded attributes by name, for the {@link FilterRules} and the {@link TagRules}
+	 */
+	private static HashMap<String, String> attributes(String userName, String framedIp, String framedIpv6, String nasIdentifier,
+			String sessionId, String calledStationId, String callingStationId) {
+		HashMap<String, String> attributes = new HashMap<String, String>();
+		attributes.put("User-Name", userName);
+		if (framedIp != null)
+			attributes.put("Framed-IP-Address", framedIp);
+		if (framedIpv6 != null)
+			attributes.put("Framed-IPv6-Address", framedIpv6);
+		if (nasIdentifier != null)
+			attributes.put("NAS-Identifier", nasIdentifier);
+		if (sessionId != null)
+			attributes.put("Acct-Session-Id", sessionId);
+		if (calledStationId != null)
+			attributes.put("Called-Station-Id", calledStationId);
+		if (callingStationId != null)
+			attributes.put("Calling-Station-Id", callingStationId);
+		return attributes;
+	}
+
+	/**
+	 * Checks the Request Authenticator: MD5(Code + Identifier + Length + 16 zero octets + Attributes + Secret)
+	 */
+	private boolean validAuthenticator(byte[] buf, int length) {
+		md5.reset();
+		md5.update(buf, 0, 4);
+		for (int a = 0; a < 16; a++)
+			md5.update((byte) 0);
+		md5.update(buf, 20, length - 20);
+		md5.update(secret);
+		byte[] digest = md5.digest();
+		int diff = 0;
+		for (int a = 0; a < 16; a++)
+			diff |= digest[a] ^ buf[4 + a];
+		return diff == 0;
+	}
+
+	/**
+	 * Sends an Accounting-Response without attributes.
+	 * Response Authenticator: MD5(Code + Identifier + Length + Request Authenticator + Secret)
+	 */
+	private void sendResponse(byte[] request, SocketAddress to) throws IOException {
+		byte[] out = reply.array();
+		out[0] = (byte) ACCOUNTING_RESPONSE;
+		out[1] = request[1];
+		out[2] = 0;
+		out[3] = 20;
+		md5.reset();
+		md5.update(out, 0, 4);
+		md5.update(request, 4, 16);
+		md5.update(secret);
+		System.arraycopy(md5.digest(), 0, out, 4, 16);
+		reply.clear();
+		channel.send(reply, to);
+	}
+
+	private static int readInt(byte[] buf, int pos) {
+		return ((buf[pos] & 0xff) << 24) | ((buf[pos + 1] & 0xff) << 16) | ((buf[pos + 2] & 0xff) << 8) | (buf[pos + 3] & 0xff);
+	}
+
+	private static long readLong(byte[] buf, int pos) {
+		return ((long) readInt(buf, pos) << 32) | (readInt(buf, pos + 4) & 0xffffffffL);
+	}
+}
@@ -0,0 +1,340 @@
+package uid4nps;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Properties;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Settings that can be tuned while running: the buffering of the {@link UseridPanosInterface} ("maxPendingEntries",
+ * "panosBufferedTime" and "useridTimeout"), the pacing and timeout of the PANOS API calls ("panosMaxRequestsPerSecond",
+ * "panosMaxEntriesPerSecond" and "panosTimeoutMs") and the PANOS devices themselves ("fw1Url", "fw1PanosKey", "fw2Url",
+ * "fw2PanosKey" and "vsys").
+ * <p>
+ * They are published as the "uid4nps:type=Settings" MBean and reloaded from the configuration file every time it changes.
+ * A new set of values is validated as a whole before anything is applied, so a typo in the file leaves the running
+ * settings untouched. Values changed through JMX last until the next change of the configuration file.
+ * The rest of the settings still need a restart
+ *
+ */
+public class RuntimeSettings implements RuntimeSettingsMBean {
+
+	/**
+	 * One complete set of values
+	 */
+	private static class Values implements Cloneable {
+		int maxPendingEntries;
+		int panosBufferedTime;
+		int useridTimeout;
+		double panosMaxRequestsPerSecond;
+		double panosMaxEntriesPerSecond;
+		int panosTimeoutMs;
+		String fw1Url;
+		String fw1PanosKey;
+		String fw2Url;
+		String fw2PanosKey;
+		String vsys;
+
+		/**
+		 * @param properties	The configuration, with the defaults of {@link userid4nps#defaultProperties}
+		 * @return				The values of the configuration
+		 * @throws IllegalArgumentException	If any value is not valid
+		 */
+		static Values parse(Properties properties) {
+			Values values = new Values();
+			values.maxPendingEntries = Integer.valueOf(properties.getProperty("maxPendingEntries").trim());
+			values.panosBufferedTime = Integer.valueOf(properties.getProperty("panosBufferedTime").trim());
+			values.useridTimeout = Integer.valueOf(properties.getProperty("useridTimeout").trim());
+			values.panosMaxRequestsPerSecond = Double.valueOf(properties.getProperty("panosMaxRequestsPerSecond").trim());
+			values.panosMaxEntriesPerSecond = Double.valueOf(properties.getProperty("panosMaxEntriesPerSecond").trim());
+			values.panosTimeoutMs = Integer.valueOf(properties.getProperty("panosTimeoutMs").trim());
+			values.fw1Url = properties.getProperty("fw1Url");
+			values.fw1PanosKey = properties.getProperty("fw1PanosKey");
+			values.fw2Url = properties.getProperty("fw2Url");
+			values.fw2PanosKey = properties.getProperty("fw2PanosKey");
+			values.vsys = properties.getProperty("vsys");
+			values.validate();
+			return values;
+		}
+
+		void validate() {
+			if (maxPendingEntries < 1)
+				throw new IllegalArgumentException("maxPendingEntries must be 1 or more");
+			if (panosBufferedTime < 1)
+				throw new IllegalArgumentException("panosBufferedTime must be 1 or more");
+			if (useridTimeout < 1)
+				throw new IllegalArgumentException("useridTimeout must be 1 or more");
+			if (panosTimeoutMs < 0)
+				throw new IllegalArgumentException("panosTimeoutMs can't be negative");
+		}
+
+		@Override
+		public Values clone() {
+			try {
+				return (Values) super.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new AssertionError(e);
+			}
+		}
+	}
+
+	/**
+	 * Periodic task checking the modification time of the configuration file. It runs in the API pool of the
+	 * {@link SharedScheduler}: replacing a PANOS device waits for the API call in flight, which must not hold up the
+	 * scheduler thread
+	 */
+	protected class ConfigWatchTask implements Runnable {
+		@Override
+		public void run() {
+			try {
+				FileTime modified = Files.getLastModifiedTime(configPath);
+				if (modified.equals(lastModified))
+					return;
+				lastModified = modified;
+				logHandler.info("Configuration file "+configPath+" changed. Reloading the runtime settings");
+				reload();
+			} catch (IOException e) {
+				logHandler.fine("Unable to check the configuration file "+configPath+": "+e.getMessage());
+			}
+		}
+	}
+
+	private UseridPanosInterface paInterface;
+	private Path configPath;
+	private volatile FileTime lastModified;
+	private Values current;
+	private ScheduledFuture<?> watchTask;
+	private AtomicLong reloads = new AtomicLong();
+	private Logger logHandler;
+
+	/**
+	 * @param paInterface	The buffer receiving the settings. Its connectors must already be set
+	 * @param configFile	The configuration file
+	 * @param runningParams	The configuration the buffer and its connectors have been initialized with
+	 */
+	public RuntimeSettings(UseridPanosInterface paInterface, String configFile, Properties runningParams) {
+		this.paInterface = paInterface;
+		configPath = Paths.get(configFile);
+		current = Values.parse(runningParams);
+		logHandler = Logger.getLogger("userid4nps");
+	}
+
+	/**
+	 * Registers the MBean and starts watching the configuration file
+	 *
+	 * @param intervalMs	How often the configuration file is checked for changes. 0 disables the check
+	 */
+	public void start(long intervalMs) {
+		Metrics.registerMBean(this, "uid4nps:type=Settings");
+		if (intervalMs <= 0)
+			return;
+		try {
+			lastModified = Files.getLastModifiedTime(configPath);
+		} catch (IOException e) {
+			lastModified = null;
+		}
+		watchTask = SharedScheduler.scheduleIo(new ConfigWatchTask(), intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops watching the configuration file. For graceful shutdown procedures
+	 */
+	public void stop() {
+		if (watchTask != null)
+			watchTask.cancel(false);
+	}
+
+	/**
+	 * Reads the configuration file again and applies its settings
+	 *
+	 * @return	FALSE if the file couldn't be read or any of its values is not valid. The running settings are kept then
+	 */
+	@Override
+	public boolean reload() {
+		Properties properties = new Properties(userid4nps.defaultProperties());
+		try (InputStream in = Files.newInputStream(configPath)) {
+			properties.load(in);
+		} catch (IOException e) {
+			logHandler.warning("Unable to read the configuration file "+configPath+": "+e.getMessage());
+			return false;
+		}
+		Values values;
+		try {
+			values = Values.parse(properties);
+		} catch (IllegalArgumentException e) {
+			logHandler.warning("Configuration file "+configPath+" not applied: "+e.getMessage());
+			return false;
+		}
+		apply(values);
+		reloads.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Applies a new set of values. The buffering settings are changed together by {@link UseridPanosInterface#reconfigure}
+	 * and a PANOS device is only replaced if its URL, key or vsys changes
+	 *
+	 * @param values	The new values
+	 */
+	private synchronized void apply(Values values) {
+		if (values.maxPendingEntries != current.maxPendingEntries || values.panosBufferedTime != current.panosBufferedTime
+				|| values.useridTimeout != current.useridTimeout)
+			paInterface.reconfigure(values.maxPendingEntries, values.useridTimeout, values.panosBufferedTime);
+		boolean pacing = values.panosMaxRequestsPerSecond != current.panosMaxRequestsPerSecond
+				|| values.panosMaxEntriesPerSecond != current.panosMaxEntriesPerSecond;
+		boolean timeout = values.panosTimeoutMs != current.panosTimeoutMs;
+		boolean fw1 = !values.fw1Url.equals(current.fw1Url) || !values.fw1PanosKey.equals(current.fw1PanosKey) || !values.vsys.equals(current.vsys);
+		boolean fw2 = !values.fw2Url.equals(current.fw2Url) || !values.fw2PanosKey.equals(current.fw2PanosKey) || !values.vsys.equals(current.vsys);
+		if (fw1 && !replace(1, values.fw1Url, values.fw1PanosKey, values)) {
+			values.fw1Url = current.fw1Url;
+			values.fw1PanosKey = current.fw1PanosKey;
+		}
+		if (fw2 && !replace(2, values.fw2Url, values.fw2PanosKey, values)) {
+			values.fw2Url = current.fw2Url;
+			values.fw2PanosKey = current.fw2PanosKey;
+		}
+		if (pacing || timeout) {
+			logHandler.info("PANOS API pacing set to "+values.panosMaxRequestsPerSecond+" requests/s, "+values.panosMaxEntriesPerSecond
+					+" entries/s and "+values.panosTimeoutMs+" ms timeout");
+			for (PANOSApiConnector connector : new PANOSApiConnector[] { paInterface.getPanosApiC1(), paInterface.getPanosApiC2() }) {
+				if (pacing)
+					connector.setRateLimit(values.panosMaxRequestsPerSecond, values.panosMaxEntriesPerSecond);
+				connector.setTimeout(values.panosTimeoutMs);
+			}
+		}
+		current = values;
+	}
+
+	/**
+	 * Replaces the connector of one of the PANOS devices by a new one configured with the given values
+	 *
+	 * @return	FALSE if the new connector couldn't be created (the old one is kept then)
+	 */
+	private boolean replace(int member, String url, String key, Values values) {
+		PANOSApiConnector connector;
+		try {
+			connector = new PANOSApiConnector(url, key, values.vsys);
+		} catch (IOException e) {
+			logHandler.warning("Unable to use "+url+" as PANOS device "+member+": "+e.getMessage());
+			return false;
+		}
+		connector.setRateLimit(values.panosMaxRequestsPerSecond, values.panosMaxEntriesPerSecond);
+		connector.setTimeout(values.panosTimeoutMs);
+		paInterface.replacePanosApiC(member, connector);
+		return true;
+	}
+
+	/**
+	 * Applies a single value changed through JMX
+	 *
+	 * @param values	A copy of the current values with the change
+	 * @throws IllegalArgumentException	If the value is not valid
+	 */
+	private synchronized void set(Values values) {
+		values.validate();
+		apply(values);
+	}
+
+	private synchronized Values copy() {
+		return current.clone();
+	}
+
+	@Override
+	public synchronized int getMaxPendingEntries() {
+		return current.maxPendingEntries;
+	}
+
+	@Override
+	public synchronized void setMaxPendingEntries(int maxPendingEntries) {
+		Values values = copy();
+		values.maxPendingEntries = maxPendingEntries;
+		set(values);
+	}
+
+	@Override
+	public synchronized int getPanosBufferedTime() {
+		return current.panosBufferedTime;
+	}
+
+	@Override
+	public synchronized void setPanosBufferedTime(int panosBufferedTime) {
+		Values values = copy();
+		values.panosBufferedTime = panosBufferedTime;
+		set(values);
+	}
+
+	@Override
+	public synchronized int getUseridTimeout() {
+		return current.useridTimeout;
+	}
+
+	@Override
+	public synchronized void setUseridTimeout(int useridTimeout) {
+		Values values = copy();
+		values.useridTimeout = useridTimeout;
+		set(values);
+	}
+
+	@Override
+	public synchronized double getPanosMaxRequestsPerSecond() {
+		return current.panosMaxRequestsPerSecond;
+	}
+
+	@Override
+	public synchronized void setPanosMaxRequestsPerSecond(double panosMaxRequestsPerSecond) {
+		Values values = copy();
+		values.panosMaxRequestsPerSecond = panosMaxRequestsPerSecond;
+		set(values);
+	}
+
+	@Override
+	public synchronized double getPanosMaxEntriesPerSecond() {
+		return current.panosMaxEntriesPerSecond;
+	}
+
+	@Override
+	public synchronized void setPanosMaxEntriesPerSecond(double panosMaxEntriesPerSecond) {
+		Values values = copy();
+		values.panosMaxEntriesPerSecond = panosMaxEntriesPerSecond;
+		set(values);
+	}
+
+	@Override
+	public synchronized int getPanosTimeoutMs() {
+		return current.panosTimeoutMs;
+	}
+
+	@Override
+	public synchronized void setPanosTimeoutMs(int panosTimeoutMs) {
+		Values values = copy();
+		values.panosTimeoutMs = panosTimeoutMs;
+		set(values);
+	}
+
+	@Override
+	public synchronized String getFw1Url() {
+		return current.fw1Url;
+	}
+
+	@Override
+	public synchronized String getFw2Url() {
+		return current.fw2Url;
+	}
+
+	@Override
+	public synchronized String getVsys() {
+		return current.vsys;
+	}
+
+	@Override
+	public long getReloads() {
+		return reloads.get();
+	}
+}
@@ -0,0 +1,25 @@
+package uid4nps;
+
+/**
+ * JMX management interface for the settings that can be tuned while running, kept in {@link RuntimeSettings}
+ *
+ */
+public interface RuntimeSettingsMBean {
+	public int getMaxPendingEntries();
+	public void setMaxPendingEntries(int maxPendingEntries);
+	public int getPanosBufferedTime();
+	public void setPanosBufferedTime(int panosBufferedTime);
+	public int getUseridTimeout();
+	public void setUseridTimeout(int useridTimeout);
+	public double getPanosMaxRequestsPerSecond();
+	public void setPanosMaxRequestsPerSecond(double panosMaxRequestsPerSecond);
+	public double getPanosMaxEntriesPerSecond();
+	public void setPanosMaxEntriesPerSecond(double panosMaxEntriesPerSecond);
+	public int getPanosTimeoutMs();
+	public void setPanosTimeoutMs(int panosTimeoutMs);
+	public String getFw1Url();
+	public String getFw2Url();
+	public String getVsys();
+	public long getReloads();
+	public boolean reload();
+}
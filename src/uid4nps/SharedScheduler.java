@@ -0,0 +1,200 @@
+package uid4nps;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single scheduler shared by all periodic and retry tasks of the application (connection checks, buffer flushes, ...).
+ * It keeps a fixed and small number of threads no matter how many PANOS devices we talk to or how many times they fail.
+ * <p>
+ * Tasks must be short: any blocking call (like an API call to a PANOS device) delays the rest of the tasks
+ * for as long as all the threads in the pool are busy. Tasks doing API calls are scheduled with
+ * {@link SharedScheduler#scheduleIo} (or run with {@link SharedScheduler#executeIo}) instead: the scheduler only
+ * hands them over to a second bounded pool, so a slow or unreachable PANOS device never delays the purges,
+ * snapshots or configuration checks
+ *
+ */
+public class SharedScheduler {
+
+	/**
+	 * A periodic task handed over to the API pool on every tick. A tick is skipped while the previous run is still
+	 * in the pool, so a slow API call never piles up runs of the same task
+	 */
+	private static class IoTask implements Runnable {
+		private final Runnable task;
+		private final AtomicBoolean busy = new AtomicBoolean(false);
+		private final Runnable body = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					runGuarded(task);
+				} finally {
+					busy.set(false);
+				}
+			}
+		};
+
+		IoTask(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			if (!busy.compareAndSet(false, true))
+				return;
+			try {
+				io().execute(body);
+			} catch (RejectedExecutionException e) {
+				busy.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Number of threads in the pool. Use {@link SharedScheduler#setThreads} before the first call to {@link SharedScheduler#get}
+	 */
+	protected static int threads = 2;
+	/**
+	 * Number of threads in the pool running the API calls. Use {@link SharedScheduler#setIoThreads} before the first API call
+	 */
+	protected static int ioThreads = 3;
+	/**
+	 * Maximum number of API tasks waiting for a thread of the API pool
+	 */
+	protected static final int IO_QUEUE = 64;
+	private static ScheduledThreadPoolExecutor executor;
+	private static ThreadPoolExecutor ioExecutor;
+	private static Logger logHandler = Logger.getLogger("userid4nps");
+
+	private SharedScheduler() {
+	}
+
+	/**
+	 * Sets the number of threads the pool will be created with
+	 *
+	 * @param threads	Number of threads (at least 1)
+	 */
+	public static synchronized void setThreads(int threads) {
+		SharedScheduler.threads = Math.max(1, threads);
+		if (executor != null)
+			executor.setCorePoolSize(SharedScheduler.threads);
+	}
+
+	/**
+	 * Sets the number of threads of the pool running the API calls
+	 *
+	 * @param threads	Number of threads (at least 1)
+	 */
+	public static synchronized void setIoThreads(int threads) {
+		ioThreads = Math.max(1, threads);
+		if (ioExecutor != null) {
+			if (ioThreads > ioExecutor.getMaximumPoolSize()) {
+				ioExecutor.setMaximumPoolSize(ioThreads);
+				ioExecutor.setCorePoolSize(ioThreads);
+			}
+			else {
+				ioExecutor.setCorePoolSize(ioThreads);
+				ioExecutor.setMaximumPoolSize(ioThreads);
+			}
+		}
+	}
+
+	/**
+	 * @return	The shared {@link ScheduledExecutorService}. It is created on first use
+	 */
+	public static synchronized ScheduledExecutorService get() {
+		if (executor == null || executor.isShutdown()) {
+			executor = new ScheduledThreadPoolExecutor(threads, new NamedThreadFactory("uid4nps-scheduler-"));
+			executor.setRemoveOnCancelPolicy(true);
+		}
+		return executor;
+	}
+
+	/**
+	 * @return	The bounded pool running the API calls. It is created on first use
+	 */
+	protected static synchronized ExecutorService io() {
+		if (ioExecutor == null || ioExecutor.isShutdown())
+			ioExecutor = new ThreadPoolExecutor(ioThreads, ioThreads, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(IO_QUEUE), new NamedThreadFactory("uid4nps-api-"));
+		return ioExecutor;
+	}
+
+	/**
+	 * Schedules a periodic task doing API calls. The scheduler only hands it over to the API pool, where it runs
+	 * with any {@link RuntimeException} logged so it is not cancelled by it
+	 *
+	 * @param task			The task
+	 * @param initialDelay	Delay before the first run
+	 * @param delay			Delay between the end of a hand over and the next one
+	 * @param unit			Unit of the delays
+	 * @return				The future of the periodic hand over. Cancelling it stops the task
+	 */
+	public static ScheduledFuture<?> scheduleIo(Runnable task, long initialDelay, long delay, TimeUnit unit) {
+		return get().scheduleWithFixedDelay(new IoTask(task), initialDelay, delay, unit);
+	}
+
+	/**
+	 * Runs a task doing API calls once in the API pool
+	 *
+	 * @param task	The task
+	 * @throws RejectedExecutionException	If the pool is shut down or its queue is full
+	 */
+	public static void executeIo(final Runnable task) {
+		io().execute(new Runnable() {
+			@Override
+			public void run() {
+				runGuarded(task);
+			}
+		});
+	}
+
+	private static void runGuarded(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			logHandler.log(Level.SEVERE, "Unexpected error in the periodic task "+task.getClass().getSimpleName(), e);
+		}
+	}
+
+	/**
+	 * Cancels all the scheduled tasks and interrupts the API calls in progress. For graceful shutdown procedures
+	 */
+	public static synchronized void shutdown() {
+		if (executor != null)
+			executor.shutdownNow();
+		if (ioExecutor != null)
+			ioExecutor.shutdownNow();
+	}
+
+	/**
+	 * Creates daemon threads with a common name prefix
+	 */
+	private static class NamedThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix+count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
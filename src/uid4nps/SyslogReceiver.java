@@ -0,0 +1,375 @@
+package uid4nps;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Syslog receiver for NPS servers forwarding their accounting events instead of writing local DTS files.
+ * It accepts RFC 5424 and RFC 3164 messages over UDP and over TCP, with octet counting framing (RFC 6587)
+ * or, if the frame starts with '&lt;', newline framing.
+ * <p>
+ * A single selector thread serves all the sockets. The per-message path reuses the receive buffers, the
+ * UTF-8 decoder and its char buffer. The payload is either a DTS "&lt;Event&gt;" element, handed to
+ * {@link UseridNpsDtsParser#IMIParser}, or a list of key/value pairs handed to {@link UseridNpsDtsParser#KVParser}.
+ * Valid entries go to the shared {@link UseridPanosInterface} buffer.
+ * <p>
+ * While the buffer is over its memory budget the sockets are not read: TCP senders are held back by the TCP window
+ * and UDP messages wait in the socket receive buffer (and are lost once it is full, as with any UDP overload)
+ *
+ */
+public class SyslogReceiver implements Runnable {
+
+	/**
+	 * Largest syslog message we accept. Bigger TCP frames close the connection
+	 */
+	protected static final int MAX_MESSAGE = 65536;
+	/**
+	 * Delay in milliseconds between two checks of the shared buffer while the sockets are paused
+	 */
+	protected static final long PAUSE_POLL_MS = 100;
+
+	private InetSocketAddress bindAddress;
+	private UseridNpsDtsParser parser;
+	private UseridPanosInterface paInterface;
+	private Selector selector;
+	private DatagramChannel udpChannel;
+	private ServerSocketChannel tcpChannel;
+	private ByteBuffer datagram;
+	private CharsetDecoder decoder;
+	private CharBuffer chars;
+	private Logger logHandler;
+	private Thread thread;
+	private volatile boolean running;
+	/**
+	 * TRUE while the sockets are not read because the shared buffer is over its memory budget
+	 */
+	private boolean paused = false;
+
+	/**
+	 * @param bindAddress		Local address to listen on
+	 * @param port				UDP and TCP port (514 is the standard syslog port)
+	 * @param defaultDomain		The default Domain Name to be used for Accounting entries without an explicit domain
+	 * @param includePattern	Only messages matching this regular expression are processed
+	 * @param paInterface		The buffer that will receive the valid entries
+	 * @throws ParserConfigurationException
+	 * @throws SAXException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public SyslogReceiver(String bindAddress, int port, String defaultDomain, String includePattern, UseridPanosInterface paInterface)
+			throws ParserConfigurationException, SAXException, IOException, InterruptedException {
+		this.bindAddress = new InetSocketAddress(bindAddress, port);
+		this.paInterface = paInterface;
+		parser = new UseridNpsDtsParser(defaultDomain, includePattern);
+		datagram = ByteBuffer.allocate(MAX_MESSAGE);
+		decoder = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		chars = CharBuffer.allocate(MAX_MESSAGE);
+		logHandler = Logger.getLogger("userid4nps");
+	}
+
+	/**
+	 * Binds the UDP and TCP ports and starts the receiving thread
+	 *
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		selector = Selector.open();
+		udpChannel = DatagramChannel.open();
+		udpChannel.configureBlocking(false);
+		udpChannel.bind(bindAddress);
+		udpChannel.register(selector, SelectionKey.OP_READ);
+		tcpChannel = ServerSocketChannel.open();
+		tcpChannel.configureBlocking(false);
+		tcpChannel.bind(new InetSocketAddress(bindAddress.getAddress(), ((InetSocketAddress) udpChannel.getLocalAddress()).getPort()));
+		tcpChannel.register(selector, SelectionKey.OP_ACCEPT);
+		running = true;
+		thread = new Thread(this, "uid4nps-syslog");
+		thread.setDaemon(true);
+		thread.start();
+		logHandler.info("Syslog receiver bound to "+udpChannel.getLocalAddress()+" (UDP and TCP)");
+	}
+
+	/**
+	 * @return	The local port the receiver is bound to
+	 * @throws IOException
+	 */
+	public int getLocalPort() throws IOException {
+		return ((InetSocketAddress) udpChannel.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * Stops the receiving thread and closes all the sockets. For graceful shutdown procedures
+	 */
+	public void stop() {
+		signalStop();
+		join(System.currentTimeMillis() + 1000);
+	}
+
+	/**
+	 * Asks the receiving thread to stop, without waiting for it. To be followed by {@link SyslogReceiver#join}
+	 */
+	public void signalStop() {
+		running = false;
+		if (selector != null)
+			selector.wakeup();
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	/**
+	 * Waits for the receiving thread to end and closes all the sockets
+	 *
+	 * @param deadline	Time, in milliseconds since the epoch, we stop waiting for the thread at
+	 */
+	public void join(long deadline) {
+		try {
+			long remaining = deadline - System.currentTimeMillis();
+			if (thread != null && remaining > 0)
+				thread.join(remaining);
+			if (selector != null) {
+				for (SelectionKey key : selector.keys())
+					key.channel().close();
+				selector.close();
+			}
+		} catch (Exception e) {
+			logHandler.fine("Error closing the syslog receiver");
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				if (paused != paInterface.isSaturated())
+					pauseReading(!paused);
+				selector.select(paused ? PAUSE_POLL_MS : 1000);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else if (key.channel() == udpChannel)
+						readDatagrams();
+					else
+						readStream(key);
+				}
+			} catch (IOException e) {
+				if (running)
+					logHandler.warning("Syslog receiver IO error: "+e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Stops or resumes reading the UDP socket and every TCP connection. New connections are still accepted
+	 *
+	 * @param pause		TRUE to stop reading
+	 */
+	private void pauseReading(boolean pause) {
+		paused = pause;
+		for (SelectionKey key : selector.keys())
+			if (key.isValid() && key.channel() != tcpChannel)
+				key.interestOps(pause ? 0 : SelectionKey.OP_READ);
+		if (pause)
+			logHandler.warning("Shared buffer over its memory budget. Syslog sockets paused");
+		else
+			logHandler.info("Syslog sockets resumed");
+	}
+
+	private void accept() throws IOException {
+		SocketChannel client;
+		while ((client = tcpChannel.accept()) != null) {
+			client.configureBlocking(false);
+			client.register(selector, paused ? 0 : SelectionKey.OP_READ, ByteBuffer.allocate(MAX_MESSAGE + 16));
+			logHandler.fine("Syslog TCP connection from "+client.getRemoteAddress());
+		}
+	}
+
+	private void readDatagrams() throws IOException {
+		datagram.clear();
+		while (udpChannel.receive(datagram) != null) {
+			datagram.flip();
+			handleMessage(datagram);
+			datagram.clear();
+		}
+	}
+
+	/**
+	 * Reads from a TCP connection and processes every complete frame in its buffer
+	 */
+	private void readStream(SelectionKey key) throws IOException {
+		SocketChannel client = (SocketChannel) key.channel();
+		ByteBuffer buffer = (ByteBuffer) key.attachment();
+		int read;
+		try {
+			read = client.read(buffer);
+		} catch (IOException e) {
+			read = -1;
+		}
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			int start = buffer.position();
+			int limit = buffer.limit();
+			if (buffer.get(start) == '<') {
+				int end = start;
+				while (end < limit && buffer.get(end) != '\n')
+					end++;
+				if (end - start > MAX_MESSAGE) {
+//					No newline within the maximum message length: the frame would never fit in the buffer
+					Metrics.syslogInvalid.increment();
+					logHandler.fine("Closing syslog connection with a frame longer than "+MAX_MESSAGE+" bytes");
+					key.cancel();
+					client.close();
+					return;
+				}
+				if (end == limit)
+					break;
+				buffer.limit(end);
+				handleMessage(buffer);
+				buffer.limit(limit);
+				buffer.position(end + 1);
+			}
+			else {
+				int pos = start;
+				int length = 0;
+				while (pos < limit && buffer.get(pos) >= '0' && buffer.get(pos) <= '9' && length <= MAX_MESSAGE)
+					length = length * 10 + (buffer.get(pos++) - '0');
+				if (pos == limit)
+					break;
+				if (buffer.get(pos) != ' ' || length > MAX_MESSAGE || pos == start) {
+					if (buffer.get(pos) == '\n' || buffer.get(pos) == '\r') {
+						buffer.position(pos + 1);
+						continue;
+					}
+					Metrics.syslogInvalid.increment();
+					logHandler.fine("Closing syslog connection with an invalid frame");
+					key.cancel();
+					client.close();
+					return;
+				}
+				if (limit - pos - 1 < length)
+					break;
+				buffer.position(pos + 1);
+				buffer.limit(pos + 1 + length);
+				handleMessage(buffer);
+				buffer.limit(limit);
+				buffer.position(pos + 1 + length);
+			}
+		}
+		buffer.compact();
+		if (read < 0) {
+			key.cancel();
+			client.close();
+		}
+	}
+
+	/**
+	 * Decodes one syslog message (between position and limit of the buffer) and hands its payload to the parser
+	 *
+	 * @param message	The buffer holding the message. Its position is moved to the limit
+	 */
+	protected void handleMessage(ByteBuffer message) throws IOException {
+		Metrics.syslogMessages.increment();
+		chars.clear();
+		decoder.reset();
+		decoder.decode(message, chars, true);
+		chars.flip();
+		int payload = payloadStart(chars);
+		int xmlStart = indexOf(chars, "<Event", payload);
+		boolean valid;
+		if (xmlStart >= 0) {
+			int xmlEnd = indexOf(chars, "</Event>", xmlStart);
+			if (xmlEnd < 0) {
+				Metrics.syslogInvalid.increment();
+				return;
+			}
+			valid = parser.IMIParser(chars.subSequence(xmlStart, xmlEnd + 8).toString());
+		}
+		else
+			valid = parser.KVParser(chars.subSequence(payload, chars.limit()).toString());
+		if (valid) {
+			if (parser.FramedIPAddress != null)
+				paInterface.addEntry(parser.AcctStatusType, parser.UserName, parser.FramedIPAddress, parser.NASIdentifier, parser.Timestamp, parser.Tags, parser.AcctSessionId);
+			if (parser.FramedIPv6Address != null)
+				paInterface.addEntry(parser.AcctStatusType, parser.UserName, parser.FramedIPv6Address, parser.NASIdentifier, parser.Timestamp, parser.Tags, parser.AcctSessionId);
+			paInterface.updateGroups(parser.UserName, parser.Groups);
+		}
+	}
+
+	/**
+	 * Skips the syslog header. For RFC 5424 messages ("&lt;PRI&gt;1 ...") the timestamp, host, app-name, procid,
+	 * msgid and structured data fields are skipped. For RFC 3164 messages only the priority is skipped
+	 *
+	 * @return	The index of the first char of the message payload
+	 */
+	private static int payloadStart(CharBuffer chars) {
+		int limit = chars.limit();
+		int pos = 0;
+		if (pos < limit && chars.get(pos) == '<') {
+			while (pos < limit && chars.get(pos) != '>')
+				pos++;
+			pos++;
+		}
+		if (pos + 1 < limit && chars.get(pos) == '1' && chars.get(pos + 1) == ' ') {
+			pos += 2;
+			for (int field = 0; field < 5 && pos < limit; field++) {
+				while (pos < limit && chars.get(pos) != ' ')
+					pos++;
+				pos++;
+			}
+			if (pos < limit && chars.get(pos) == '[') {
+				boolean quoted = false;
+				while (pos < limit) {
+					char c = chars.get(pos);
+					if (c == '\\')
+						pos++;
+					else if (c == '"')
+						quoted = !quoted;
+					else if (c == ']' && !quoted && (pos + 1 >= limit || chars.get(pos + 1) != '['))
+						break;
+					pos++;
+				}
+				pos++;
+			}
+			else
+				while (pos < limit && chars.get(pos) != ' ')
+					pos++;
+			while (pos < limit && chars.get(pos) == ' ')
+				pos++;
+		}
+		return Math.min(pos, limit);
+	}
+
+	private static int indexOf(CharBuffer chars, String token, int from) {
+		int last = chars.limit() - token.length();
+		for (int a = from; a <= last; a++) {
+			int b = 0;
+			while (b < token.length() && chars.get(a + b) == token.charAt(b))
+				b++;
+			if (b == token.length())
+				return a;
+		}
+		return -1;
+	}
+}
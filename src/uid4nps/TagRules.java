@@ -0,0 +1,128 @@
+package uid4nps;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rules deriving the dynamic address object tags of an entry from its RADIUS attributes.
+ * <p>
+ * Every rule is configured as "tagRule.N=attribute,regex,tag" (N = 1, 2, ...). If the attribute is present and its value matches
+ * the regular expression, the tag is produced. The tag may reference the whole value ($0) or the regex groups ($1, $2, ...).
+ * i.e. "tagRule.1=NAS-Identifier,.*,$0" (the default when no rule is configured) or "tagRule.2=Called-Station-Id,.*:(.*),SSID-$1".
+ * <p>
+ * The rules are shared by all the sources, so they are kept in static fields like the {@link SharedScheduler}
+ *
+ */
+public class TagRules {
+
+	/**
+	 * Tag set of entries without tags
+	 */
+	public static final String[] NONE = new String[0];
+
+	private static String[] attributes = { "NAS-Identifier" };
+	private static Pattern[] patterns = { Pattern.compile(".*") };
+	private static String[] templates = { "$0" };
+	private static Logger logHandler = Logger.getLogger("userid4nps");
+
+	private TagRules() {
+	}
+
+	/**
+	 * Loads the "tagRule.N" properties. Without any of them the NAS-Identifier is used as the only tag
+	 *
+	 * @param properties	The running configuration
+	 */
+	public static synchronized void configure(Properties properties) {
+		ArrayList<String> newAttributes = new ArrayList<String>();
+		ArrayList<Pattern> newPatterns = new ArrayList<Pattern>();
+		ArrayList<String> newTemplates = new ArrayList<String>();
+		for (int n = 1; properties.getProperty("tagRule."+n) != null; n++) {
+			String[] rule = properties.getProperty("tagRule."+n).split(",", 3);
+			if (rule.length != 3) {
+				logHandler.warning("Ignoring tagRule."+n+". Expected format is attribute,regex,tag");
+				continue;
+			}
+			newAttributes.add(rule[0].trim());
+			newPatterns.add(Pattern.compile(rule[1].trim()));
+			newTemplates.add(rule[2].trim());
+		}
+		if (newAttributes.isEmpty())
+			return;
+		attributes = newAttributes.toArray(new String[newAttributes.size()]);
+		patterns = newPatterns.toArray(new Pattern[newPatterns.size()]);
+		templates = newTemplates.toArray(new String[newTemplates.size()]);
+		logHandler.info("Loaded "+attributes.length+" tag rules");
+	}
+
+	/**
+	 * @param attributes	RADIUS attributes of the entry, by name
+	 * @return				The tags produced by the rules (no duplicates). {@link TagRules#NONE} if no rule matches
+	 */
+	public static String[] derive(Map<String, String> attributes) {
+		String[] ruleAttributes = TagRules.attributes;
+		Pattern[] rulePatterns = TagRules.patterns;
+		String[] ruleTemplates = TagRules.templates;
+		String[] tags = NONE;
+		for (int a = 0; a < ruleAttributes.length; a++) {
+			String value = attributes.get(ruleAttributes[a]);
+			if (value == null)
+				continue;
+			Matcher matcher = rulePatterns[a].matcher(value);
+			if (!matcher.matches())
+				continue;
+			String tag = expand(matcher, ruleTemplates[a]);
+			if (!tag.isEmpty() && !contains(tags, tag)) {
+				String[] more = new String[tags.length + 1];
+				System.arraycopy(tags, 0, more, 0, tags.length);
+				more[tags.length] = tag;
+				tags = more;
+			}
+		}
+		return tags;
+	}
+
+	/**
+	 * Same as {@link TagRules#derive} for sources that only know the NAS-Identifier
+	 *
+	 * @param nasIdentifier		The NAS-Identifier of the entry (may be NULL)
+	 * @return					The tags produced by the rules
+	 */
+	public static String[] fromNasIdentifier(String nasIdentifier) {
+		if (nasIdentifier == null)
+			return NONE;
+		return derive(Collections.singletonMap("NAS-Identifier", nasIdentifier));
+	}
+
+	/**
+	 * @return	TRUE if the tag is in the array
+	 */
+	public static boolean contains(String[] tags, String tag) {
+		for (String current : tags)
+			if (current.equals(tag))
+				return true;
+		return false;
+	}
+
+	private static String expand(Matcher matcher, String template) {
+		if (template.indexOf('$') < 0)
+			return template;
+		StringBuilder tag = new StringBuilder(template.length() + 16);
+		for (int a = 0; a < template.length(); a++) {
+			char c = template.charAt(a);
+			if (c == '$' && a + 1 < template.length() && Character.isDigit(template.charAt(a + 1))) {
+				int group = template.charAt(++a) - '0';
+				if (group <= matcher.groupCount() && matcher.group(group) != null)
+					tag.append(matcher.group(group));
+			}
+			else
+				tag.append(c);
+		}
+		return tag.toString();
+	}
+}
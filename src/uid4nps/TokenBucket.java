@@ -0,0 +1,88 @@
+package uid4nps;
+
+/**
+ * Basic token bucket used to pace the API calls sent to a PANOS device.
+ * Tokens are refilled continuously at {@link TokenBucket#rate} tokens per second up to {@link TokenBucket#capacity}.
+ * A rate equal or below zero disables the bucket so every request is granted.
+ * <p>
+ * Priority traffic uses {@link TokenBucket#forceAcquire} which never waits but leaves the bucket in debt,
+ * so the following bulk requests pay for it
+ *
+ */
+public class TokenBucket {
+
+	/**
+	 * Tokens added to the bucket per second. Zero or below means unlimited
+	 */
+	protected double rate;
+	/**
+	 * Maximum number of tokens the bucket can hold (burst size)
+	 */
+	protected double capacity;
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * Creates a full bucket
+	 *
+	 * @param rate		Tokens per second. Zero or below means unlimited
+	 */
+	public TokenBucket(double rate) {
+		this.rate = rate;
+		capacity = Math.max(rate, 1);
+		tokens = capacity;
+		lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * @return	TRUE if this bucket doesn't limit anything
+	 */
+	public boolean isUnlimited() {
+		return rate <= 0;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+		lastRefill = now;
+	}
+
+	/**
+	 * @return	The number of whole tokens available right now ({@link Integer#MAX_VALUE} if unlimited)
+	 */
+	public synchronized int available() {
+		if (isUnlimited())
+			return Integer.MAX_VALUE;
+		refill();
+		return tokens < 1 ? 0 : (int) tokens;
+	}
+
+	/**
+	 * Takes the requested amount of tokens only if all of them are available
+	 *
+	 * @param amount	Number of tokens to take
+	 * @return			TRUE if the tokens have been taken
+	 */
+	public synchronized boolean tryAcquire(int amount) {
+		if (isUnlimited())
+			return true;
+		refill();
+		if (tokens < amount)
+			return false;
+		tokens -= amount;
+		return true;
+	}
+
+	/**
+	 * Takes the requested amount of tokens even if they are not available. The debt is bounded to
+	 * one {@link TokenBucket#capacity} so bulk traffic is delayed at most one burst period
+	 *
+	 * @param amount	Number of tokens to take
+	 */
+	public synchronized void forceAcquire(int amount) {
+		if (isUnlimited())
+			return;
+		refill();
+		tokens = Math.max(-capacity, tokens - amount);
+	}
+}
@@ -0,0 +1,117 @@
+package uid4nps;
+
+/**
+ * A valid user-id entry waiting in the {@link UseridPanosInterface} buffers
+ *
+ */
+public class UseridEntry {
+
+	/**
+	 * Username to be used in the user-id XML message (domain\\user)
+	 */
+	public String userName;
+	/**
+	 * IP address to be used in the user-id XML message. IPv6 addresses are kept in their RFC 5952 format
+	 */
+	public String ip;
+	/**
+	 * High 64 bits of the address (see {@link IpAddress}). Buffers, indexes and the {@link MappingStore} compare these, not the text
+	 */
+	public long ipHigh;
+	/**
+	 * Low 64 bits of the address. Both are 0 if the address is not valid
+	 */
+	public long ipLow;
+	/**
+	 * NAS Identifier of the entry. NULL if not available
+	 */
+	public String nasIdentifier;
+	/**
+	 * Time of the originating event (NPS "Timestamp" element) in milliseconds since the epoch
+	 */
+	public long eventTime;
+	/**
+	 * Dynamic address object tags of the entry. NULL means they have to be derived from the NAS Identifier by the {@link TagRules}
+	 */
+	public String[] tags;
+	/**
+	 * Acct-Session-Id of the originating event. NULL if not available
+	 */
+	public String sessionId;
+
+	/**
+	 * @param userName			Username to be used in the user-id XML message
+	 * @param ip				IPv4 or IPv6 address to be used in the user-id XML message
+	 * @param nasIdentifier		NAS Identifier of the entry (may be NULL)
+	 * @param eventTime			Time of the originating event in milliseconds since the epoch
+	 */
+	public UseridEntry(String userName, String ip, String nasIdentifier, long eventTime) {
+		this.userName = userName;
+		this.ip = ip;
+		this.nasIdentifier = nasIdentifier;
+		this.eventTime = eventTime;
+		int v4 = IpAddress.parseIPv4(ip);
+		if (v4 != 0)
+			ipLow = IpAddress.V4_MAPPED | (v4 & 0xffffffffL);
+		else {
+			long[] address = IpAddress.parseIPv6(ip);
+			if (address != null) {
+				ipHigh = address[0];
+				ipLow = address[1];
+				this.ip = IpAddress.format(ipHigh, ipLow);
+			}
+		}
+	}
+
+	/**
+	 * @param userName			Username to be used in the user-id XML message
+	 * @param ipHigh			High 64 bits of the address
+	 * @param ipLow				Low 64 bits of the address
+	 * @param nasIdentifier		NAS Identifier of the entry (may be NULL)
+	 * @param eventTime			Time of the originating event in milliseconds since the epoch
+	 */
+	public UseridEntry(String userName, long ipHigh, long ipLow, String nasIdentifier, long eventTime) {
+		this.userName = userName;
+		this.ip = IpAddress.format(ipHigh, ipLow);
+		this.ipHigh = ipHigh;
+		this.ipLow = ipLow;
+		this.nasIdentifier = nasIdentifier;
+		this.eventTime = eventTime;
+	}
+
+	/**
+	 * @param other		Entry to compare with
+	 * @return			TRUE if both entries use the same IP address
+	 */
+	public boolean sameIp(UseridEntry other) {
+		if (ipHigh == 0 && ipLow == 0)
+			return other.ipHigh == 0 && other.ipLow == 0 && ip.equals(other.ip);
+		return ipLow == other.ipLow && ipHigh == other.ipHigh;
+	}
+
+	/**
+	 * @param other		Entry to compare with
+	 * @return			TRUE if both entries map the same user and IP address
+	 */
+	public boolean sameMapping(UseridEntry other) {
+		return sameIp(other) && userName.equals(other.userName);
+	}
+
+	/**
+	 * @return	Estimated heap size of the entry and its strings, in bytes. Used by the buffer memory budget
+	 */
+	public int footprint() {
+		int size = 96 + footprint(userName) + footprint(ip) + footprint(nasIdentifier) + footprint(sessionId);
+		if (tags != null)
+			for (String tag : tags)
+				size += 8 + footprint(tag);
+		return size;
+	}
+
+	/**
+	 * @return	Estimated heap size of a string, in bytes
+	 */
+	static int footprint(String value) {
+		return value == null ? 0 : 48 + 2 * value.length();
+	}
+}
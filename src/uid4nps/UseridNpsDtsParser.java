@@ -2,7 +2,11 @@ package uid4nps;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -21,7 +25,8 @@ import org.xml.sax.XMLReader;
 /**
  * Use the {@link UseridNpsDtsParser#IMIParser} method for each NPS DTS-formated element (Radius Log entries)
  * {@link UseridNpsDtsParser#IMIParser} will return TRUE is the element in compliant (Acc-Start with UserName and FramedIP)
- * Element values available after parsing accessing the {@link UseridNpsDtsParser#elementData} field with keys "User-Name", "Framed-IP-Address" and "NAS-Identifier"
+ * Element values available after parsing accessing the {@link UseridNpsDtsParser#elementData} field with keys "User-Name", "Framed-IP-Address" and "NAS-Identifier".
+ * Dual-stack and IPv6-only clients are also accepted, see {@link UseridNpsDtsParser#framedIPv6Address}
  *
  */
 public class UseridNpsDtsParser {
@@ -39,20 +44,44 @@ public class UseridNpsDtsParser {
 	 */
 	public String UserName;
 	/**
-	 * Stores the IP-Address of this entry provided it is valid
+	 * Stores the IP-Address of this entry provided it is valid. NULL for IPv6-only entries
 	 */
 	public String FramedIPAddress;
+	/**
+	 * Stores the IPv6 address of this entry, in RFC 5952 format, provided it is valid. NULL for IPv4-only entries
+	 */
+	public String FramedIPv6Address;
 	/**
 	 * Stores the NAS Identifier of this entry provided it is valid
 	 */
 	public String NASIdentifier;
+	/**
+	 * Stores the event time (NPS "Timestamp" element) of this entry, in milliseconds since the epoch, provided it is valid.
+	 * The current time is used if the element is missing or can't be parsed
+	 */
+	public long Timestamp;
+	/**
+	 * Stores the Acct-Session-Id of this entry. NULL if the element is missing
+	 */
+	public String AcctSessionId;
+	/**
+	 * Dynamic address object tags derived by the {@link TagRules} from the attributes of the last valid element
+	 */
+	public String[] Tags;
+	/**
+	 * Groups derived by the {@link GroupMembership} from the policy attributes of the last valid element
+	 */
+	public String[] Groups;
+	/**
+	 * Format of the NPS "Timestamp" element. NPS writes it in the local time of the server
+	 */
+	private SimpleDateFormat timestampFormat;
 	private XMLReader xmlReader;
 	private InputSource is;
 	/**
 	 */
 	protected String defaultDomain;
 	private Logger logHandler;
-	private int mindex;
 	private Pattern includePat;
 	private Matcher includeMatch;
 
@@ -72,6 +101,7 @@ public class UseridNpsDtsParser {
 		elementData = new HashMap<String, String>();
 		this.defaultDomain = defaultDomain;
 		includePat = Pattern.compile(includePattern);
+		timestampFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss.SSS");
 		is = new InputSource();
 		SAXParserFactory spf = SAXParserFactory.newInstance();
 		SAXParser saxParser = spf.newSAXParser();
@@ -145,7 +175,8 @@ public class UseridNpsDtsParser {
 	 * <li>Have an "Acct-Status-Type" element node
 	 * <li>The "Acct-Status-Type" element node has values "1" (start) or "2" (stop) or "3" (interim)
 	 * <li>Have an "User-Name" element node
-	 * <li>Have a "Framed-IP-Address"element node
+	 * <li>Have a "Framed-IP-Address"element node or an IPv6 address (see {@link UseridNpsDtsParser#framedIPv6Address})
+	 * <li>Is not dropped by the {@link FilterRules}
 	 * </ul>
 	 * In case the "User-Name" value doesn't include a domain name we'll use the one at {@link UseridNpsDtsParser#defaultDomain}
 	 * 
@@ -154,11 +185,32 @@ public class UseridNpsDtsParser {
 	 * @throws IOException
 	 */
 	public Boolean IMIParser (String element) throws IOException {
+		FlightEvents.ParseEvent event = new FlightEvents.ParseEvent();
+		event.begin();
+		boolean accepted = parseElement(element);
+		if (event.shouldCommit()) {
+			event.lineLength = element.length();
+			event.accepted = accepted;
+			event.commit();
+		}
+		return accepted;
+	}
+	
+	/**
+	 * Does the actual work of {@link UseridNpsDtsParser#IMIParser}
+	 * 
+	 * @param element	The DTS Compliant NPS log formated entry to be parsed
+	 * @return		TRUE if we've been able to parse the entry
+	 * @throws IOException
+	 */
+	protected boolean parseElement(String element) throws IOException {
 		AcctStatusType = null;
 		UserName = null;
 		FramedIPAddress = null;
+		FramedIPv6Address = null;
 		includeMatch = includePat.matcher(element);
 		if (includeMatch.matches()) {
+			Metrics.linesMatched.increment();
 			logHandler.fine("Provided NPS log element matches the include pattern");
 			is.setCharacterStream(new StringReader(element));
 			try {
@@ -167,29 +219,185 @@ public class UseridNpsDtsParser {
 			} catch (SAXException e) {
 				logHandler.warning("Error parsing document");
 			}
-			if (elementData.get("Acct-Status-Type") != null) { // It is a Radius Accounting Record
-				AcctStatusType = elementData.get("Acct-Status-Type");
-				if(AcctStatusType.equals("3") || AcctStatusType.equals("1") || AcctStatusType.equals("2")) // It is a "Start", "Stop" or "Interim" type of Accounting Record
-					if (elementData.get("User-Name") != null ) { // There is a username attribute
-						String UserNameString = elementData.get("User-Name").toLowerCase();
-						if (!UserNameString.startsWith("host/"))  // IMI: It is not a host based authentication
-							if(elementData.get("Framed-IP-Address") != null) { // There is an IP address
-								FramedIPAddress = elementData.get("Framed-IP-Address");
-								if (UserNameString.matches(".*@.*")) { // It is a username@domain style
-									mindex = UserNameString.indexOf("@");
-									UserName = UserNameString.substring(mindex+1,UserNameString.length())+"\\"+UserNameString.substring(0, mindex);
-								}
-								else if(UserNameString.matches(".*\\\\.*")) 
-									UserName = UserNameString;
-								else 
-									UserName = defaultDomain+"\\"+UserNameString;
-								logHandler.fine("Received a valid userID NPS log element ("+AcctStatusType+";"+UserName+";"+FramedIPAddress+")");
-								NASIdentifier = elementData.get("NAS-Identifier");
-								return true;
+			return acceptElementData();
+		}
+		return false;
+	}
+	
+	/**
+	 * Same as {@link UseridNpsDtsParser#IMIParser} for NPS accounting records received as key/value pairs
+	 * (i.e. forwarded by syslog as 'Acct-Status-Type=1 User-Name="jdoe@corppro" Framed-IP-Address=10.1.2.3').
+	 * Pairs may be separated by blanks, commas or semicolons and values may be double quoted
+	 * 
+	 * @param payload	The key/value formated entry to be parsed
+	 * @return		TRUE if we've been able to parse the entry so caller knows there is valid data available at {@link UseridNpsDtsParser#elementData}
+	 */
+	public Boolean KVParser (String payload) {
+		AcctStatusType = null;
+		UserName = null;
+		FramedIPAddress = null;
+		FramedIPv6Address = null;
+		includeMatch = includePat.matcher(payload);
+		if (!includeMatch.matches())
+			return false;
+		Metrics.linesMatched.increment();
+		elementData.clear();
+		int length = payload.length();
+		int pos = 0;
+		while (pos < length) {
+			while (pos < length && isSeparator(payload.charAt(pos)))
+				pos++;
+			int keyStart = pos;
+			while (pos < length && payload.charAt(pos) != '=' && !isSeparator(payload.charAt(pos)))
+				pos++;
+			if (pos >= length || payload.charAt(pos) != '=')
+				continue;
+			String key = payload.substring(keyStart, pos++);
+			int valueStart = pos;
+			if (pos < length && payload.charAt(pos) == '"') {
+				valueStart = ++pos;
+				while (pos < length && payload.charAt(pos) != '"')
+					pos++;
+				elementData.put(key, payload.substring(valueStart, Math.min(pos, length)));
+				pos++;
+			}
+			else {
+				while (pos < length && !isSeparator(payload.charAt(pos)))
+					pos++;
+				elementData.put(key, payload.substring(valueStart, pos));
+			}
+		}
+		return acceptElementData();
+	}
+	
+	private static boolean isSeparator(char c) {
+		return c == ' ' || c == '\t' || c == ',' || c == ';';
+	}
+	
+	/**
+	 * Validates the attributes available at {@link UseridNpsDtsParser#elementData} and, if they describe a valid
+	 * user-id entry, fills the {@link UseridNpsDtsParser#AcctStatusType}, {@link UseridNpsDtsParser#UserName},
+	 * {@link UseridNpsDtsParser#FramedIPAddress}, {@link UseridNpsDtsParser#FramedIPv6Address}, {@link UseridNpsDtsParser#NASIdentifier}, {@link UseridNpsDtsParser#Timestamp}, {@link UseridNpsDtsParser#AcctSessionId}, {@link UseridNpsDtsParser#Tags} and {@link UseridNpsDtsParser#Groups} fields
+	 * 
+	 * @return		TRUE if the attributes describe a valid user-id entry
+	 */
+	protected boolean acceptElementData() {
+		if (elementData.get("Acct-Status-Type") != null) { // It is a Radius Accounting Record
+			AcctStatusType = elementData.get("Acct-Status-Type");
+			if(AcctStatusType.equals("3") || AcctStatusType.equals("1") || AcctStatusType.equals("2")) // It is a "Start", "Stop" or "Interim" type of Accounting Record
+				if (elementData.get("User-Name") != null ) { // There is a username attribute
+					String UserNameString = normalizeUserName(elementData.get("User-Name"), defaultDomain);
+					if (UserNameString != null) { // IMI: It is not a host based authentication
+						FramedIPAddress = elementData.get("Framed-IP-Address");
+						FramedIPv6Address = framedIPv6Address(elementData);
+						if(FramedIPAddress != null || FramedIPv6Address != null) { // There is an IP address
+							if (!FilterRules.accepts(elementData)) {
+								logHandler.fine("Record dropped by the filter rules ("+AcctStatusType+";"+UserNameString+")");
+								Metrics.filteredRecords.increment();
+								FramedIPAddress = null;
+								FramedIPv6Address = null;
+								return false;
 							}
+							UserName = UserNameString;
+							logHandler.fine("Received a valid userID NPS log element ("+AcctStatusType+";"+UserName+";"+FramedIPAddress+";"+FramedIPv6Address+")");
+							NASIdentifier = elementData.get("NAS-Identifier");
+							Timestamp = parseTimestamp(elementData.get("Timestamp"));
+							AcctSessionId = elementData.get("Acct-Session-Id");
+							Tags = TagRules.derive(elementData);
+							Groups = GroupMembership.derive(elementData);
+							Metrics.linesAccepted.increment();
+							return true;
+						}
 					}
-			}
+				}
 		}
 		return false;
 	}
+
+	/**
+	 * Gets the IPv6 address of a client from its attributes:
+	 * <ul>
+	 * <li>"Framed-IPv6-Address" (RFC 6911) if present
+	 * <li>Otherwise "Framed-IPv6-Prefix" if it is a /128 prefix
+	 * <li>Otherwise "Framed-IPv6-Prefix" (up to /64) followed by the "Framed-Interface-Id" (hexadecimal, colons and dashes ignored)
+	 * </ul>
+	 * Prefixes without an interface id are ignored: a whole prefix can't be mapped to a user
+	 *
+	 * @param elementData	RADIUS attributes of the entry, by name
+	 * @return				The address in RFC 5952 format. NULL if there is no valid IPv6 address
+	 */
+	public static String framedIPv6Address(Map<String, String> elementData) {
+		String address = elementData.get("Framed-IPv6-Address");
+		if (address != null) {
+			long[] value = IpAddress.parseIPv6(address);
+			return value == null ? null : IpAddress.formatIPv6(value[0], value[1]);
+		}
+		String prefix = elementData.get("Framed-IPv6-Prefix");
+		if (prefix == null)
+			return null;
+		int slash = prefix.indexOf('/');
+		int length;
+		try {
+			length = slash < 0 ? 128 : Integer.parseInt(prefix.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		long[] value = IpAddress.parseIPv6(slash < 0 ? prefix.trim() : prefix.substring(0, slash).trim());
+		if (value == null)
+			return null;
+		if (length == 128)
+			return IpAddress.formatIPv6(value[0], value[1]);
+		String interfaceId = elementData.get("Framed-Interface-Id");
+		if (interfaceId == null || length < 0 || length > 64)
+			return null;
+		String hex = interfaceId.trim().replace(":", "").replace("-", "");
+		if (hex.startsWith("0x") || hex.startsWith("0X"))
+			hex = hex.substring(2);
+		if (hex.isEmpty() || hex.length() > 16)
+			return null;
+		try {
+			long mask = length == 0 ? 0 : -1L << (64 - length);
+			return IpAddress.formatIPv6(value[0] & mask, Long.parseUnsignedLong(hex, 16));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Turns a RADIUS User-Name into the "domain\\user" format expected by PANOS.
+	 * In case the username doesn't include a domain name we'll use the provided default one
+	 * 
+	 * @param userName			The RADIUS User-Name ("user@domain", "domain\\user" or "user")
+	 * @param defaultDomain		The domain to be used if the username doesn't include one
+	 * @return					The lower case "domain\\user" username or NULL for host based authentications ("host/...")
+	 */
+	public static String normalizeUserName(String userName, String defaultDomain) {
+		String UserNameString = userName.toLowerCase();
+		if (UserNameString.startsWith("host/"))
+			return null;
+		int mindex = UserNameString.indexOf('@');
+		if (mindex >= 0) // It is a username@domain style
+			return UserNameString.substring(mindex+1,UserNameString.length())+"\\"+UserNameString.substring(0, mindex);
+		else if(UserNameString.indexOf('\\') >= 0) 
+			return UserNameString;
+		else 
+			return defaultDomain+"\\"+UserNameString;
+	}
+
+	/**
+	 * Parses the NPS "Timestamp" element (i.e. "03/17/2014 12:51:13.123")
+	 * 
+	 * @param value		The element value. May be NULL
+	 * @return			Milliseconds since the epoch. The current time if the value is NULL or malformed
+	 */
+	protected long parseTimestamp(String value) {
+		if (value != null)
+			try {
+				Date date = timestampFormat.parse(value);
+				return date.getTime();
+			} catch (ParseException e) {
+				logHandler.finest("Unable to parse the NPS timestamp '"+value+"'");
+			}
+		return System.currentTimeMillis();
+	}
 }
@@ -1,10 +1,28 @@
 package uid4nps;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -14,33 +32,230 @@ import org.xml.sax.SAXException;
 /**
  * This class behaves as a buffer. It prepares valid user-id entries and keeps the in the buffer until either
  * the buffer is full or the timer expires 
+ * <p>
+ * The sources never wait for an API call. The buffer semaphore is only held to add entries or to take a batch out of
+ * the buffers: the API calls are done without it, one at a time (see {@link UseridPanosInterface#apiTurn}), and a batch
+ * that couldn't be delivered is put back afterwards. A full buffer just asks the flushing task to run.
+ * <p>
+ * With a memory budget (see {@link UseridPanosInterface#setMemoryBudget}) entries are kept while no PANOS device is ready
+ * and, once the estimated heap of the buffer goes over the budget, the buffer is saturated until it is back under
+ * {@link UseridPanosInterface#RESUME_PERCENT} percent of it. Sources check {@link UseridPanosInterface#isSaturated}
+ * and push back on their own origin (the log tailers pause at their file offset, the ingest endpoint answers 429,
+ * RADIUS requests are left unanswered and syslog sockets are not read) so the heap stays bounded whatever the outage length
  *
  */
 public class UseridPanosInterface {
 	
-	private TimerTask packUserIdEntries;
-	private Timer tempo;
+	/**
+	 * A saturated buffer accepts events again once its estimated heap is below this percentage of the memory budget
+	 */
+	protected static final int RESUME_PERCENT = 75;
+	/**
+	 * Minimum time in milliseconds {@link UseridPanosInterface#drain} waits for the buffer semaphore to spool the buffered entries
+	 */
+	protected static final long DRAIN_BUFFER_WAIT_MS = 1000;
+	
+	/**
+	 * A user-id message taken out of the buffers by {@link UseridPanosInterface#takeBatch}. Its entries are not modified
+	 * once it is built, so it can be read without the buffer semaphore
+	 */
+	private static class Batch {
+		/**
+		 * The entries of the message. Logins first, logouts after them
+		 */
+		final List<UseridEntry> entries;
+		/**
+		 * Number of logins at the beginning of {@link Batch#entries}
+		 */
+		final int loginCount;
+		/**
+		 * Number of logins at the beginning of {@link Batch#entries} taken from the priority lane
+		 */
+		final int priorityLogins;
+		/**
+		 * The user-id message, built by {@link UseridPanosInterface#sendBatch} once the buffer semaphore is released
+		 */
+		String xmlMessage;
+		/**
+		 * The {@link PANOSApiConnector} that received the message. NULL if it wasn't sent
+		 */
+		PANOSApiConnector target;
+		String response = "";
+		/**
+		 * Set if the entries were put back in the buffers because no PANOS device was ready
+		 */
+		boolean requeued;
+
+		Batch(List<UseridEntry> entries, int loginCount, int priorityLogins) {
+			this.entries = entries;
+			this.loginCount = loginCount;
+			this.priorityLogins = priorityLogins;
+		}
+	}
+	
+	/**
+	 * An entry waiting in {@link UseridPanosInterface#handOffs} with its accounting type
+	 */
+	private static class HandOff {
+		final String AcctStatusType;
+		final UseridEntry entry;
+
+		HandOff(String AcctStatusType, UseridEntry entry) {
+			this.AcctStatusType = AcctStatusType;
+			this.entry = entry;
+		}
+	}
+	
+	/**
+	 * Walks the {@link MappingStore} sending all the active mappings, in chunks, to a PANOS device that has just become ready.
+	 * Every chunk is a single API call taking its turn with the live flushes, so they interleave between chunks. A tick is
+	 * skipped if another API call is in flight. Chunks use the bulk lane of the device rate limiter so they only take the
+	 * tokens left by the live traffic
+	 */
+	protected class ResyncTask implements Runnable {
+		private PANOSApiConnector target;
+		private int cursor = 0;
+		private int sent = 0;
+		private long started = System.currentTimeMillis();
+		private ScheduledFuture<?> future;
+		private ArrayList<UseridEntry> chunk = new ArrayList<UseridEntry>();
+		
+		protected ResyncTask(PANOSApiConnector target) {
+			this.target = target;
+		}
+		
+		@Override
+		public void run() {
+			if (!apiTurn.tryLock())
+				return;
+			try {
+				if (!target.ready) {
+					logHandler.info("Resync of "+target.getUrl()+" aborted after "+sent+" entries. The device is not ready");
+					finish();
+					return;
+				}
+				int granted = target.grantEntries(0, resyncChunkSize);
+				if (granted <= 0)
+					return;
+				chunk.clear();
+				cursor = mappingStore.collect(cursor, granted, chunk);
+				if (!chunk.isEmpty()) {
+					String returnMessage = target.sendUserIdMessage(buildUidMessage(chunk, new ArrayList<UseridEntry>()), chunk.size());
+					if (!returnMessage.equals("") && !panosXmlResponse.panosResponseParse(returnMessage)) {
+						target.getMetrics().errors.increment();
+						logHandler.warning("PANOS API response to a resync chunk includes an error message");
+						logHandler.fine(returnMessage);
+					}
+					sent += chunk.size();
+					Metrics.resyncEntries.add(chunk.size());
+				}
+				if (cursor < 0) {
+					logHandler.info("Resync of "+target.getUrl()+" completed. "+sent+" entries sent in "+(System.currentTimeMillis() - started)+" ms");
+					finish();
+				}
+			} catch (IOException e) {
+				logHandler.warning("Error sending a resync chunk to "+target.getUrl());
+			} finally {
+				apiTurn.unlock();
+			}
+		}
+		
+		private void finish() {
+			synchronized (resyncTasks) {
+				future.cancel(false);
+				if (resyncTasks.get(target) == this)
+					resyncTasks.remove(target);
+			}
+		}
+	}
+	
+	/**
+	 * Periodic task, with its own cadence, sending the dynamic address object tag changes. A tick is skipped if another
+	 * API call is in flight
+	 */
+	protected class TagFlushTask implements Runnable {
+		@Override
+		public void run() {
+			if (!apiTurn.tryLock())
+				return;
+			try {
+				flushTags();
+			} catch (IOException e) {
+				logHandler.warning("Error sending the dynamic address object tags");
+			} finally {
+				apiTurn.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Periodic task, with its own cadence, pushing the groups whose membership has changed. A tick is skipped if another
+	 * API call is in flight
+	 */
+	protected class GroupFlushTask implements Runnable {
+		@Override
+		public void run() {
+			if (!apiTurn.tryLock())
+				return;
+			try {
+				flushGroups();
+			} catch (IOException e) {
+				logHandler.warning("Error sending the group mapping");
+			} finally {
+				apiTurn.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Periodic task, with its own cadence, saving the {@link MappingStore} snapshot. It doesn't take the buffer
+	 */
+	protected class SnapshotTask implements Runnable {
+		@Override
+		public void run() {
+			saveSnapshot();
+		}
+	}
+	
+	private CallbackHelper packUserIdEntries;
+	private ScheduledFuture<?> tempo;
 	/**
 	 * This buffer will host temporary user-id login entries
 	 */
-	protected ArrayList <String []>pendLoginEntries; 
+	protected ArrayList <UseridEntry>pendLoginEntries; 
 	/**
 	 * This buffer will host temporary user-id logout entries 
 	 */
-	protected ArrayList <String []>pendLogoutEntries; 
+	protected ArrayList <UseridEntry>pendLogoutEntries; 
+	/**
+	 * This buffer will host temporary user-id login entries that reassign an IP address already buffered for another user.
+	 * Together with {@link UseridPanosInterface#pendLogoutEntries} they form the priority lane that is never held back by the rate limiter
+	 */
+	protected ArrayList <UseridEntry>pendPriorityLoginEntries; 
 	private Semaphore suTurno;
+	/**
+	 * Entries handed over by {@link UseridPanosInterface#handOffEntries} while the buffer semaphore was busy. They are moved
+	 * to the buffers by the next holder of the semaphore, at the latest by the next flush tick
+	 */
+	private final ConcurrentLinkedQueue<HandOff> handOffs = new ConcurrentLinkedQueue<HandOff>();
+	private final AtomicInteger handOffCount = new AtomicInteger();
+	/**
+	 * Turn of the API calls (user-id batches, resync chunks, tags and groups). They are sent one at a time, in the order
+	 * they are built, without holding the buffer semaphore. It is always taken before the buffer semaphore, never while holding it
+	 */
+	private final ReentrantLock apiTurn = new ReentrantLock();
 	/**
 	 * Maximum number of valid user-id entries to keep in buffer before we decide to flush it
 	 */
-	protected int maxPendingEntries;
+	protected volatile int maxPendingEntries;
 	/**
 	 * The timeout in minutes that we'll use when building user-id login entries
 	 */
-	protected int useridTimeout;
+	protected volatile int useridTimeout;
 	/**
 	 * Maximum time in milliseconds we keep valid user-id entries in the buffer before we decide to flush it
 	 */
-	protected int panosBufferedTime;
+	protected volatile int panosBufferedTime;
 	/**
 	 * Flag to activate dynamic address object feature available in PANOS 6.0
 	 */
@@ -49,13 +264,111 @@ public class UseridPanosInterface {
 	/**
 	 * Pointer to the {@link PANOSApiConnector} handler for the first PANOS cluster member
 	 */
-	protected PANOSApiConnector PA1;
+	protected volatile PANOSApiConnector PA1;
 	/**
 	 * Pointer to the {@link PANOSApiConnector} handler for the second PANOS cluster member
 	 */
-	protected PANOSApiConnector PA2;
+	protected volatile PANOSApiConnector PA2;
 	private PanosXlmResponseParse panosXmlResponse;
-	private String response;
+	/**
+	 * The batch whose API call is in progress. NULL if there is none
+	 */
+	private volatile Batch inFlight;
+	/**
+	 * Local copy of the mappings acknowledged by the PANOS devices. It starts empty and growing on demand until
+	 * {@link UseridPanosInterface#setMappingStoreCapacity} sizes it from the "mappingStoreCapacity" setting
+	 */
+	protected MappingStore mappingStore;
+	private ScheduledFuture<?> purgeTask;
+	/**
+	 * File keeping the {@link MappingStore} snapshot. NULL disables the snapshots
+	 */
+	protected Path snapshotPath;
+	/**
+	 * Delay in milliseconds between two snapshots. 0 only saves it on shutdown
+	 */
+	protected long snapshotIntervalMs;
+	private ScheduledFuture<?> snapshotTask;
+	/**
+	 * Resyncs in progress, by PANOS device
+	 */
+	private HashMap<PANOSApiConnector, ResyncTask> resyncTasks = new HashMap<PANOSApiConnector, ResyncTask>();
+	/**
+	 * Maximum number of entries per resync API call. 0 disables the resync
+	 */
+	protected int resyncChunkSize = 1000;
+	/**
+	 * Delay in milliseconds between two resync API calls
+	 */
+	protected long resyncIntervalMs = 50;
+	/**
+	 * Tags currently registered in the PANOS device, by IP address
+	 */
+	private HashMap<String, String[]> registeredTags = new HashMap<String, String[]>();
+	/**
+	 * Tags the IP addresses should have, for the IP addresses whose tags may have changed since the last tag flush
+	 */
+	private HashMap<String, String[]> desiredTags = new HashMap<String, String[]>();
+	/**
+	 * Set when a PANOS device becomes ready, so the next tag flush registers all the known tags again
+	 */
+	private volatile boolean tagsResync = false;
+	/**
+	 * Delay in milliseconds between two tag flushes
+	 */
+	protected long tagFlushIntervalMs = 10000;
+	private ScheduledFuture<?> tagTask;
+	/**
+	 * Flag to push the user to group mapping built from the NPS policy attributes
+	 */
+	protected boolean groupMappingFeature = false;
+	/**
+	 * The user to group membership index
+	 */
+	protected GroupMembership groupMembership = new GroupMembership();
+	/**
+	 * Delay in milliseconds between two group mapping pushes
+	 */
+	protected long groupFlushIntervalMs = 30000;
+	/**
+	 * Maximum number of groups per API call
+	 */
+	protected int groupsPerMessage = 100;
+	private ScheduledFuture<?> groupTask;
+	/**
+	 * Flag to coalesce the buffered entries by IP address: the latest event for an address wins, whatever its user
+	 */
+	protected boolean coalesceByIp = false;
+	/**
+	 * Last event accepted for every IP address. NULL if stale event suppression is disabled
+	 */
+	protected EventOrder eventOrder;
+	/**
+	 * Entries loaded from the spool file, replayed when the first PANOS device becomes ready. NULL if there are none
+	 */
+	private List<String> spooledLines;
+	private Path spoolPath;
+	/**
+	 * Memory budget of the buffers, in bytes. 0 disables the flow control
+	 */
+	protected long memoryBudget = 0;
+	/**
+	 * Estimated heap of the buffered entries. It grows with every buffered entry and is recounted by the flushing task.
+	 * Guarded by the buffer semaphore
+	 */
+	private long bufferedBytes = 0;
+	/**
+	 * Estimated heap of {@link UseridPanosInterface#spooledLines}
+	 */
+	private volatile long spooledBytes = 0;
+	private volatile boolean saturated = false;
+	private long saturatedSince;
+	private AtomicBoolean flushRequested = new AtomicBoolean(false);
+	/**
+	 * Freshness lag (in milliseconds) above which we'll raise a warning. 0 disables the alert
+	 */
+	protected long freshnessAlertMs;
+	private long lastFreshnessAlert;
 	
 	/**
 	 * Initializes the class fields
@@ -74,34 +387,159 @@ public class UseridPanosInterface {
 		this.dynAddressFeature = dynAddressFeature;
 		logHandler = Logger.getLogger("userid4nps");
 		panosXmlResponse = new PanosXlmResponseParse();
-		pendLoginEntries = new ArrayList<String[]>();
-		pendLogoutEntries = new ArrayList<String[]>();
-		tempo = new Timer();
+		pendLoginEntries = new ArrayList<UseridEntry>();
+		pendLogoutEntries = new ArrayList<UseridEntry>();
+		pendPriorityLoginEntries = new ArrayList<UseridEntry>();
+		mappingStore = new MappingStore(0);
 		suTurno = new Semaphore(1);
-		response = new String();
 		packUserIdEntries = new CallbackHelper(this);
 	}
 	
 	/**
-	 * This is the method called by the TimerTask periodic timer
+	 * This is the method called by the periodic task scheduled in the {@link SharedScheduler} (see {@link SharedScheduler#scheduleIo})
 	 * It flushes the buffer provided there is any pending user-id entry available
 	 */
 	public void callBackTask ()
 	{
+		apiTurn.lock();
 		try {
-			suTurno.acquire();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			flushRequested.set(false);
+			Batch batch = null;
+			acquireBuffer("flushTick");
+			try {
+				if (pendingEntries() > 0)
+					batch = takeBatch();
+			} finally {
+				suTurno.release();
+			}
+			boolean delivered = false;
+			if (batch != null) {
+				sendBatch(batch);
+				try {
+					completeBatch(batch);
+				} catch (IOException e) {
+				}
+				delivered = batch.target != null && !batch.requeued;
+			}
+			acquireBuffer("flushTick");
+			try {
+				Metrics.bufferDepth.set(pendingEntries());
+				if (memoryBudget > 0)
+					recountBuffered();
+//				Keep flushing while there is a full batch and the last flush made progress
+				if (delivered && pendingEntries() >= maxPendingEntries)
+					requestFlush();
+			} finally {
+				suTurno.release();
+			}
+		} catch (RuntimeException e) {
+			logHandler.log(Level.SEVERE, "Unexpected error flushing the buffer", e);
+		} finally {
+			apiTurn.unlock();
+		}
+	}
+	
+	/**
+	 * Asks the flushing task to run right away, unless it has already been asked to
+	 */
+	private void requestFlush() {
+		if (!flushRequested.compareAndSet(false, true))
+			return;
+		try {
+			SharedScheduler.executeIo(packUserIdEntries);
+		} catch (RejectedExecutionException e) {
+			flushRequested.set(false);
 		}
-		if (pendLoginEntries.size() + pendLogoutEntries.size() > 0) {
-			String returnMessage;
-			returnMessage = flushEntries();
+	}
+	
+	/**
+	 * Sets the memory budget of the buffers. With a budget entries are kept (instead of discarded) while no PANOS device
+	 * is ready and the sources are paused while the buffers are over the budget
+	 * 
+	 * @param bytes		Memory budget in bytes. 0 disables the flow control
+	 */
+	public void setMemoryBudget(long bytes) {
+		memoryBudget = bytes;
+	}
+	
+	/**
+	 * @return	TRUE while the buffers are over their memory budget. Sources must stop taking events from their origin
+	 */
+	public boolean isSaturated() {
+		return saturated;
+	}
+	
+	/**
+	 * Recounts the estimated heap of the buffered entries. The caller must hold the buffer semaphore
+	 */
+	private void recountBuffered() {
+		long bytes = 0;
+		for (UseridEntry entry : pendPriorityLoginEntries)
+			bytes += entry.footprint();
+		for (UseridEntry entry : pendLoginEntries)
+			bytes += entry.footprint();
+		for (UseridEntry entry : pendLogoutEntries)
+			bytes += entry.footprint();
+		bufferedBytes = bytes;
+		checkBudget();
+	}
+	
+	/**
+	 * Saturates the buffer when its estimated heap goes over the memory budget and clears it once it is back under
+	 * {@link UseridPanosInterface#RESUME_PERCENT} percent of it. The caller must hold the buffer semaphore
+	 */
+	private void checkBudget() {
+		long used = bufferedBytes + spooledBytes;
+		Metrics.bufferBytes.set(used);
+		if (!saturated && used > memoryBudget) {
+			saturated = true;
+			saturatedSince = System.currentTimeMillis();
+			Metrics.saturations.increment();
+			logHandler.warning("Buffer over its memory budget ("+used+" of "+memoryBudget+" bytes, "+pendingEntries()+" entries). Pausing the sources");
+		}
+		else if (saturated && used <= memoryBudget / 100 * RESUME_PERCENT) {
+			saturated = false;
+			logHandler.info("Buffer back under its memory budget after "+(System.currentTimeMillis() - saturatedSince)+" ms. Resuming the sources");
+		}
+	}
+	
+	/**
+	 * Takes the buffer semaphore, recording the wait as a {@link FlightEvents.BufferWaitEvent}
+	 * 
+	 * @param operation		Name of the operation waiting for the buffer
+	 */
+	private void acquireBuffer(String operation) {
+		FlightEvents.BufferWaitEvent event = new FlightEvents.BufferWaitEvent();
+		event.begin();
+		suTurno.acquireUninterruptibly();
+		if (event.shouldCommit()) {
+			event.operation = operation;
+			event.batchSize = pendingEntries();
+			event.commit();
+		}
+		drainHandOffs();
+	}
+	
+	/**
+	 * Moves the entries handed over while the buffer was busy to the buffers. The caller must hold the buffer semaphore
+	 */
+	private void drainHandOffs() {
+		HandOff handOff;
+		while ((handOff = handOffs.poll()) != null) {
+			handOffCount.decrementAndGet();
 			try {
-				parseUserIdApiResponse(returnMessage);
+				bufferEntry(handOff.AcctStatusType, handOff.entry);
 			} catch (IOException e) {
+				logHandler.warning("Unable to buffer a handed over entry: "+e.getMessage());
 			}
 		}
-		suTurno.release();
+	}
+	
+	/**
+	 * @return	The number of user-id entries waiting in the buffers
+	 */
+	protected int pendingEntries() {
+		return pendLoginEntries.size() + pendPriorityLoginEntries.size() + pendLogoutEntries.size();
 	}
 	
 	/**
@@ -113,6 +551,7 @@ public class UseridPanosInterface {
 	 */
 	public void setPanosApiC1 (String URL, String ApiKey, String vsys) throws IOException {
 		PA1 = new PANOSApiConnector(URL, ApiKey, vsys);
+		PA1.setReadyListener(this);
 	}
 
 	/**
@@ -124,6 +563,48 @@ public class UseridPanosInterface {
 	 */
 	public void setPanosApiC2 (String URL, String ApiKey, String vsys) throws IOException {
 		PA2 = new PANOSApiConnector(URL, ApiKey, vsys);
+		PA2.setReadyListener(this);
+	}
+	
+	/**
+	 * Replaces the connector of one of the PANOS devices while running. The swap is done in the turn of the API calls,
+	 * so no batch is in flight, and the new connector starts its connection check right away (once ready it gets the
+	 * full resync of the {@link MappingStore}). The old connector gives up and its counters are unregistered
+	 * 
+	 * @param member		1 for the first PANOS device in the cluster, 2 for the second one
+	 * @param connector		The new connector
+	 */
+	public void replacePanosApiC(int member, PANOSApiConnector connector) {
+		connector.setReadyListener(this);
+		connector.startTimer("Connection check of the new PANOS device "+connector.getUrl());
+		PANOSApiConnector old;
+		apiTurn.lock();
+		try {
+			acquireBuffer("replaceFirewall");
+			try {
+				old = member == 1 ? PA1 : PA2;
+				if (member == 1)
+					PA1 = connector;
+				else
+					PA2 = connector;
+			} finally {
+				suTurno.release();
+			}
+		} finally {
+			apiTurn.unlock();
+		}
+		if (old == null)
+			return;
+		synchronized (resyncTasks) {
+			ResyncTask task = resyncTasks.remove(old);
+			if (task != null)
+				task.future.cancel(false);
+		}
+		old.giveUp = true;
+		if (old.getTempo() != null)
+			old.getTempo().cancel(false);
+		Metrics.removeFirewall(old.getMetrics());
+		logHandler.info("PANOS device "+old.getUrl()+" replaced by "+connector.getUrl());
 	}
 	
 	/**
@@ -145,23 +626,475 @@ public class UseridPanosInterface {
 	public PANOSApiConnector getPanosApiC2() {
 		return PA2;
 	}
+	
+	/**
+	 * @return	The local copy of the mappings acknowledged by the PANOS devices
+	 */
+	public MappingStore getMappingStore() {
+		return mappingStore;
+	}
+	
+	/**
+	 * Replaces the mapping store by one sized for the given number of mappings. To be called before the timer is started
+	 * 
+	 * @param expectedMappings	Number of concurrent mappings expected
+	 */
+	public void setMappingStoreCapacity(int expectedMappings) {
+		mappingStore = new MappingStore(expectedMappings);
+		mappingStore.setTrackDepartures(groupMappingFeature);
+	}
 
 	/**
-	 * Starts this instance periodic timer to check valid entries in the buffer
+	 * Configures the warm start snapshot of the {@link MappingStore}
+	 * 
+	 * @param snapshotFile	File keeping the snapshot. NULL or empty disables the snapshots
+	 * @param intervalMs	Delay in milliseconds between two snapshots. 0 only saves it on shutdown
+	 */
+	public void setSnapshot(String snapshotFile, long intervalMs) {
+		snapshotPath = snapshotFile == null || snapshotFile.isEmpty() ? null : Paths.get(snapshotFile);
+		snapshotIntervalMs = intervalMs;
+	}
+	
+	/**
+	 * Warm start: loads the mappings of the last snapshot into the {@link MappingStore}, and their event times into the
+	 * {@link EventOrder} index, so deduplication, stale event suppression and resyncs work right from the start.
+	 * To be called before the timer is started
+	 * 
+	 * @return	Number of mappings loaded
+	 */
+	public int loadSnapshot() {
+		if (snapshotPath == null)
+			return 0;
+		long started = System.nanoTime();
+		int loaded;
+		try {
+			loaded = mappingStore.loadSnapshot(snapshotPath);
+		} catch (IOException e) {
+			logHandler.warning("Ignoring the mapping snapshot: "+e.getMessage());
+			return 0;
+		}
+		if (eventOrder != null) {
+			ArrayList<UseridEntry> chunk = new ArrayList<UseridEntry>();
+			int cursor = 0;
+			while (cursor >= 0) {
+				chunk.clear();
+				cursor = mappingStore.collect(cursor, 4096, chunk);
+				for (UseridEntry entry : chunk)
+					eventOrder.accept(entry, true);
+			}
+		}
+		logHandler.info("Loaded "+loaded+" mappings from the snapshot '"+snapshotPath+"' in "+(System.nanoTime() - started) / 1000000+" ms");
+		return loaded;
+	}
+	
+	/**
+	 * Saves the {@link MappingStore} snapshot, if enabled. Called periodically and on shutdown
+	 */
+	public void saveSnapshot() {
+		if (snapshotPath == null)
+			return;
+		try {
+			int saved = mappingStore.writeSnapshot(snapshotPath);
+			logHandler.fine("Saved "+saved+" mappings to the snapshot '"+snapshotPath+"'");
+		} catch (IOException e) {
+			logHandler.warning("Unable to save the mapping snapshot '"+snapshotPath+"': "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Configures the resync of the active mappings done every time a PANOS device becomes ready
+	 * 
+	 * @param chunkSize		Maximum number of entries per API call. 0 disables the resync
+	 * @param intervalMs	Delay in milliseconds between two API calls
+	 */
+	public void setResync(int chunkSize, long intervalMs) {
+		resyncChunkSize = chunkSize;
+		resyncIntervalMs = intervalMs;
+	}
+	
+	/**
+	 * Called by a {@link PANOSApiConnector} every time it becomes ready. The device may have lost (reboot) or missed (outage)
+	 * mappings, so we start a {@link ResyncTask} to send it all the active mappings of the {@link MappingStore}.
+	 * The dynamic address object tags and the group mapping are sent again by the next tag and group flushes
+	 * 
+	 * @param target	The PANOS device that has become ready
+	 */
+	public void deviceReady(PANOSApiConnector target) {
+		replaySpool();
+		if (dynAddressFeature)
+			tagsResync = true;
+		if (groupMappingFeature)
+			groupMembership.markAllDirty();
+		if (resyncChunkSize <= 0 || mappingStore.size() == 0)
+			return;
+		synchronized (resyncTasks) {
+			ResyncTask previous = resyncTasks.get(target);
+			if (previous != null)
+				previous.future.cancel(false);
+			ResyncTask task = new ResyncTask(target);
+			resyncTasks.put(target, task);
+			logHandler.info("Starting the resync of "+mappingStore.size()+" mappings to "+target.getUrl());
+			task.future = SharedScheduler.scheduleIo(task, resyncIntervalMs, Math.max(1, resyncIntervalMs), TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * @param intervalMs	Delay in milliseconds between two flushes of the dynamic address object tags
+	 */
+	public void setTagFlushInterval(long intervalMs) {
+		tagFlushIntervalMs = intervalMs;
+	}
+	
+	/**
+	 * Sets the coalescing mode. By default entries are only duplicates if both the user and the IP address match.
+	 * Coalescing by IP address keeps only the latest event of every address, which suits DHCP pools with fast address reuse:
+	 * a login drops any buffered entry for the address (and uses the priority lane if the address belonged to another user)
+	 * and a logout is discarded if the address is already buffered as a login for another user
+	 * 
+	 * @param coalesceByIp	TRUE to coalesce by IP address
+	 */
+	public void setCoalesceByIp(boolean coalesceByIp) {
+		this.coalesceByIp = coalesceByIp;
+	}
+	
+	/**
+	 * Enables or disables the suppression of stale events: events older than the last one accepted for their IP address
+	 * (see {@link EventOrder}) are dropped before they enter the buffer. To be called before the timer is started
+	 * 
+	 * @param enabled			TRUE to drop the stale events
+	 * @param expectedAddresses	Number of IP addresses the index is initially sized for
+	 */
+	public void setStaleEventSuppression(boolean enabled, int expectedAddresses) {
+		eventOrder = enabled ? new EventOrder(expectedAddresses) : null;
+	}
+	
+	/**
+	 * Enables the push of the user to group mapping
+	 * 
+	 * @param intervalMs		Delay in milliseconds between two group mapping pushes
+	 * @param groupsPerMessage	Maximum number of groups per API call
+	 */
+	public void setGroupMapping(long intervalMs, int groupsPerMessage) {
+		groupMappingFeature = true;
+		groupFlushIntervalMs = intervalMs;
+		this.groupsPerMessage = groupsPerMessage;
+		mappingStore.setTrackDepartures(true);
+	}
+	
+	/**
+	 * Records the groups of a user. Only groups whose membership changes will be pushed to the PANOS devices
+	 * 
+	 * @param UserName		The user ("domain\\user")
+	 * @param groups		Its groups (see {@link GroupMembership#derive}). NULL or empty arrays are ignored
+	 */
+	public void updateGroups(String UserName, String[] groups) {
+		if (groupMappingFeature && groups != null && groups.length > 0)
+			groupMembership.update(UserName, groups);
+	}
+	
+	/**
+	 * Removes from their groups the users whose last mapping has left the {@link MappingStore}, unless a login of the user
+	 * is still buffered or in flight. Called after every change of the store
+	 */
+	protected void forgetDepartedUsers() {
+		String userName = mappingStore.pollDepartedUser();
+		if (userName == null)
+			return;
+		HashSet<String> pending = new HashSet<String>();
+		acquireBuffer("departedUsers");
+		try {
+			for (UseridEntry entry : pendPriorityLoginEntries)
+				pending.add(entry.userName);
+			for (UseridEntry entry : pendLoginEntries)
+				pending.add(entry.userName);
+		} finally {
+			suTurno.release();
+		}
+		Batch batch = inFlight;
+		if (batch != null)
+			for (int a = 0; a < batch.loginCount; a++)
+				pending.add(batch.entries.get(a).userName);
+		for (; userName != null; userName = mappingStore.pollDepartedUser())
+			if (!pending.contains(userName) && !mappingStore.hasUser(userName) && groupMembership.remove(userName))
+				logHandler.fine("User "+userName+" has no mapping left. Removed from its groups");
+	}
+	
+	/**
+	 * @return	The user to group membership index
+	 */
+	public GroupMembership getGroupMembership() {
+		return groupMembership;
+	}
+	
+	/**
+	 * Starts this instance periodic task, in the {@link SharedScheduler}, to check valid entries in the buffer
 	 */
 	public void startTimer () {
-		tempo.schedule(packUserIdEntries, 0, panosBufferedTime);		
+		tempo = SharedScheduler.scheduleIo(packUserIdEntries, 0, panosBufferedTime, TimeUnit.MILLISECONDS);		
+		purgeTask = SharedScheduler.get().scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				mappingStore.purgeExpired();
+				if (groupMappingFeature)
+					forgetDepartedUsers();
+				if (eventOrder != null)
+					purgeEventOrder();
+				if (dynAddressFeature)
+					unregisterExpiredTags();
+			}
+		}, 60, 60, TimeUnit.SECONDS);
+		if (groupMappingFeature)
+			groupTask = SharedScheduler.scheduleIo(new GroupFlushTask(), groupFlushIntervalMs, Math.max(1, groupFlushIntervalMs), TimeUnit.MILLISECONDS);
+		if (dynAddressFeature)
+			tagTask = SharedScheduler.scheduleIo(new TagFlushTask(), tagFlushIntervalMs, Math.max(1, tagFlushIntervalMs), TimeUnit.MILLISECONDS);
+		if (snapshotPath != null && snapshotIntervalMs > 0)
+			snapshotTask = SharedScheduler.get().scheduleWithFixedDelay(new SnapshotTask(), snapshotIntervalMs, snapshotIntervalMs, TimeUnit.MILLISECONDS);
 	}
 	
 	/**
-	 * Stops the timer. For graceful shutdown procedures
+	 * Changes the buffering settings while running. They are applied together holding the buffer semaphore, so every
+	 * batch is built either with the old settings or with the new ones. The flushing task is rescheduled only if
+	 * the buffered time changes; ingestion just waits for the semaphore as it does while a batch is taken
+	 * 
+	 * @param maxPendingEntries		How many valid user-id entries we can keep in buffer before flushing it
+	 * @param useridTimeout			What user-id timeout value we'll put in the entries
+	 * @param panosBufferedTime		How many milliseconds we can keep valid user-id entries in the buffer before flushing it
+	 */
+	public void reconfigure(int maxPendingEntries, int useridTimeout, int panosBufferedTime) {
+		acquireBuffer("reconfigure");
+		try {
+			if (this.maxPendingEntries != maxPendingEntries)
+				logHandler.info("maxPendingEntries changed from "+this.maxPendingEntries+" to "+maxPendingEntries);
+			if (this.useridTimeout != useridTimeout)
+				logHandler.info("useridTimeout changed from "+this.useridTimeout+" to "+useridTimeout);
+			this.maxPendingEntries = maxPendingEntries;
+			this.useridTimeout = useridTimeout;
+			if (this.panosBufferedTime != panosBufferedTime) {
+				logHandler.info("panosBufferedTime changed from "+this.panosBufferedTime+" to "+panosBufferedTime);
+				this.panosBufferedTime = panosBufferedTime;
+				if (tempo != null && !tempo.isCancelled()) {
+					tempo.cancel(false);
+					tempo = SharedScheduler.scheduleIo(packUserIdEntries, panosBufferedTime, panosBufferedTime, TimeUnit.MILLISECONDS);
+				}
+			}
+		} finally {
+			suTurno.release();
+		}
+	}
+	
+	/**
+	 * Stops the periodic task. For graceful shutdown procedures
 	 */
 	public void stopTimer() {
-		tempo.cancel();
+		if (tempo != null)
+			tempo.cancel(false);
+		if (purgeTask != null)
+			purgeTask.cancel(false);
+		if (tagTask != null)
+			tagTask.cancel(false);
+		if (groupTask != null)
+			groupTask.cancel(false);
+		if (snapshotTask != null)
+			snapshotTask.cancel(false);
+		synchronized (resyncTasks) {
+			for (ResyncTask task : resyncTasks.values())
+				task.future.cancel(false);
+			resyncTasks.clear();
+		}
 	}
 	
 	/**
-	 * It adds a valid user-id entry in the corresponding (login/logout) buffer
+	 * Final flush for graceful shutdown procedures. It stops the periodic tasks and flushes the buffered entries
+	 * until they are all acknowledged or the deadline is reached. The API calls are bounded by the time left.
+	 * Whatever couldn't be sent (buffered entries, batches without a valid acknowledge and, if an API call is still in
+	 * progress when the deadline expires, the batch of that call as published by {@link UseridPanosInterface#takeBatch})
+	 * is appended to the spool file so it is replayed on the next start (see {@link UseridPanosInterface#loadSpool}).
+	 * The buffers are only read holding the buffer semaphore, so every entry is spooled once
+	 * 
+	 * @param timeoutMs		Maximum time in milliseconds we may spend draining the buffer
+	 * @param spoolFile		File receiving the entries that couldn't be sent. NULL or empty discards them
+	 * @return				Number of entries spooled
+	 */
+	public int drain(long timeoutMs, String spoolFile) {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		stopTimer();
+//		Without both connectors (the initialization failed) the buffered entries are just spooled
+		boolean connected = PA1 != null && PA2 != null;
+		if (connected) {
+			PA1.setDeadline(deadline);
+			PA2.setDeadline(deadline);
+		}
+		ArrayList<String> spool = new ArrayList<String>();
+		boolean acquired;
+		try {
+			acquired = apiTurn.tryLock(timeoutMs, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			acquired = false;
+		}
+		boolean buffered = false;
+		try {
+			if (!acquired) {
+				logHandler.warning("API call still in progress after "+timeoutMs+" ms. Spooling the batch in flight");
+				Batch batch = inFlight;
+				if (batch != null)
+					spoolEntries(batch.entries, batch.loginCount, spool);
+			}
+			long remaining;
+			while (acquired && connected && (PA1.ready || PA2.ready) && (remaining = deadline - System.currentTimeMillis()) > 0) {
+				Batch batch;
+				boolean empty;
+				acquireBuffer("drain");
+				try {
+					empty = pendingEntries() == 0;
+					batch = empty ? null : takeBatch();
+				} finally {
+					suTurno.release();
+				}
+				if (empty)
+					break;
+				if (batch == null) {
+					Thread.sleep(Math.min(remaining, 20));	// rate limited
+					continue;
+				}
+				sendBatch(batch);
+				if (!completeBatch(batch) && !batch.requeued)
+					spoolEntries(batch.entries, batch.loginCount, spool);
+			}
+//			The sources only hold the buffer for a moment, so it is taken even if the deadline has expired
+			buffered = suTurno.tryAcquire(Math.max(DRAIN_BUFFER_WAIT_MS, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			if (buffered) {
+				drainHandOffs();
+				ArrayList<UseridEntry> unsent = new ArrayList<UseridEntry>(pendPriorityLoginEntries);
+				unsent.addAll(pendLoginEntries);
+				unsent.addAll(pendLogoutEntries);
+				spoolEntries(unsent, unsent.size() - pendLogoutEntries.size(), spool);
+				pendPriorityLoginEntries.clear();
+				pendLoginEntries.clear();
+				pendLogoutEntries.clear();
+				Metrics.bufferDepth.set(0);
+			}
+			else
+				logHandler.warning("Buffer still busy. Its entries are not spooled");
+		} catch (IOException e) {
+			logHandler.warning("Error draining the buffer: "+e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			logHandler.log(Level.SEVERE, "Unexpected error draining the buffer", e);
+		} finally {
+			if (buffered)
+				suTurno.release();
+			if (acquired)
+				apiTurn.unlock();
+		}
+		if (spool.isEmpty())
+			return 0;
+		if (spoolFile == null || spoolFile.isEmpty()) {
+			logHandler.warning("Discarding "+spool.size()+" entries that couldn't be sent before the shutdown deadline");
+			Metrics.droppedEntries.add(spool.size());
+			return 0;
+		}
+		try (BufferedWriter out = Files.newBufferedWriter(Paths.get(spoolFile), StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			for (String line : spool) {
+				out.write(line);
+				out.newLine();
+			}
+		} catch (IOException e) {
+			logHandler.severe("Unable to write the spool file '"+spoolFile+"': "+e.getMessage());
+			Metrics.droppedEntries.add(spool.size());
+			return 0;
+		}
+		Metrics.spooledEntries.add(spool.size());
+		logHandler.info("Spooled "+spool.size()+" entries to '"+spoolFile+"'");
+		return spool.size();
+	}
+	
+	/**
+	 * Serializes entries as spool lines: type, user, IP address, NAS identifier, event time, session id and tags, tab separated
+	 * 
+	 * @param entries		The entries. Logins first, logouts after them
+	 * @param loginCount	Number of logins at the beginning of the list
+	 * @param spool			List receiving the lines
+	 */
+	private static void spoolEntries(List<UseridEntry> entries, int loginCount, List<String> spool) {
+		for (int a = 0; a < entries.size(); a++) {
+			UseridEntry entry = entries.get(a);
+			StringBuilder line = new StringBuilder(128);
+			line.append(a < loginCount ? "1" : "2").append('\t').append(spoolField(entry.userName))
+				.append('\t').append(spoolField(entry.ip)).append('\t').append(spoolField(entry.nasIdentifier))
+				.append('\t').append(entry.eventTime).append('\t').append(spoolField(entry.sessionId)).append('\t');
+			if (entry.tags != null)
+				for (int t = 0; t < entry.tags.length; t++)
+					line.append(t > 0 ? "," : "").append(spoolField(entry.tags[t]).replace(',', ' '));
+			spool.add(line.toString());
+		}
+	}
+	
+	private static String spoolField(String value) {
+		return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+	
+	/**
+	 * Loads the entries spooled by {@link UseridPanosInterface#drain} on the previous shutdown. They are replayed, through
+	 * the normal buffer, as soon as a PANOS device becomes ready. Events newer than them, received in the meantime, win
+	 * (see {@link EventOrder}). The file is removed once the entries are back in the buffer
+	 * 
+	 * @param spoolFile		The spool file. Nothing is done if it doesn't exist
+	 * @throws IOException
+	 */
+	public void loadSpool(String spoolFile) throws IOException {
+		if (spoolFile == null || spoolFile.isEmpty() || !Files.exists(Paths.get(spoolFile)))
+			return;
+		spoolPath = Paths.get(spoolFile);
+		spooledLines = Files.readAllLines(spoolPath, StandardCharsets.UTF_8);
+		long bytes = 0;
+		for (String line : spooledLines)
+			bytes += UseridEntry.footprint(line);
+		spooledBytes = bytes;
+		logHandler.info("Loaded "+spooledLines.size()+" spooled entries from '"+spoolFile+"'. They'll be sent when a PANOS device is ready");
+	}
+	
+	/**
+	 * Puts the spooled entries back in the buffer
+	 */
+	private void replaySpool() {
+		List<String> lines;
+		synchronized (this) {
+			lines = spooledLines;
+			spooledLines = null;
+			spooledBytes = 0;
+		}
+		if (lines == null)
+			return;
+		int replayed = 0;
+		try {
+			for (String line : lines) {
+				String[] field = line.split("\t", -1);
+				if (field.length != 7 || field[1].isEmpty() || field[2].isEmpty())
+					continue;
+				addEntry(field[0], field[1], field[2], field[3].isEmpty() ? null : field[3], Long.parseLong(field[4]),
+						field[6].isEmpty() ? null : field[6].split(","), field[5].isEmpty() ? null : field[5]);
+				replayed++;
+			}
+			Files.deleteIfExists(spoolPath);
+		} catch (IOException | NumberFormatException e) {
+			logHandler.warning("Error replaying the spool file '"+spoolPath+"': "+e.getMessage());
+		}
+		logHandler.info("Replayed "+replayed+" spooled entries");
+	}
+	
+	/**
+	 * Sets the freshness alert threshold
+	 * 
+	 * @param freshnessAlertMs	Lag in milliseconds, from the event time to the PANOS acknowledge, above which we'll log a warning. 0 disables the alert
+	 */
+	public void setFreshnessAlert(long freshnessAlertMs) {
+		this.freshnessAlertMs = freshnessAlertMs;
+	}
+	
+	/**
+	 * It adds a valid user-id entry in the corresponding (login/logout) buffer using the current time as the event time
 	 * 
 	 * @param AcctStatusType	"1" means it is an START type of message
 	 * @param UserName			Username to be used in the user-id XML message
@@ -170,26 +1103,200 @@ public class UseridPanosInterface {
 	 * @throws IOException
 	 */
 	public void addEntry(String AcctStatusType, String UserName, String FramedIPAddress, String NASIdentifier) throws IOException {
-		String [] entry = { UserName, FramedIPAddress, NASIdentifier };
+		addEntry(AcctStatusType, UserName, FramedIPAddress, NASIdentifier, System.currentTimeMillis());
+	}
+	
+	/**
+	 * It adds a valid user-id entry in the corresponding (login/logout) buffer, deriving its tags from the NAS Identifier
+	 * 
+	 * @param AcctStatusType	"1" means it is an START type of message
+	 * @param UserName			Username to be used in the user-id XML message
+	 * @param FramedIPAddress	IP address to be used in the user-id XML message
+	 * @param NASIdentifier		String with the NAS Identifier. If it is not null it will create a tagged dynamic address object
+	 * @param eventTime			Time of the originating event in milliseconds since the epoch. Used to track the mapping freshness
+	 * @throws IOException
+	 */
+	public void addEntry(String AcctStatusType, String UserName, String FramedIPAddress, String NASIdentifier, long eventTime) throws IOException {
+		addEntry(AcctStatusType, UserName, FramedIPAddress, NASIdentifier, eventTime, null);
+	}
+	
+	/**
+	 * It adds a valid user-id entry in the corresponding (login/logout) buffer
+	 * 
+	 * @param AcctStatusType	"1" means it is an START type of message
+	 * @param UserName			Username to be used in the user-id XML message
+	 * @param FramedIPAddress	IP address to be used in the user-id XML message
+	 * @param NASIdentifier		String with the NAS Identifier (may be NULL)
+	 * @param eventTime			Time of the originating event in milliseconds since the epoch. Used to track the mapping freshness
+	 * @param tags				Dynamic address object tags of the entry (see {@link TagRules}). NULL derives them from the NAS Identifier
+	 * @throws IOException
+	 */
+	public void addEntry(String AcctStatusType, String UserName, String FramedIPAddress, String NASIdentifier, long eventTime, String[] tags) throws IOException {
+		addEntry(AcctStatusType, UserName, FramedIPAddress, NASIdentifier, eventTime, tags, null);
+	}
+	
+	/**
+	 * It adds a valid user-id entry in the corresponding (login/logout) buffer
+	 * 
+	 * @param AcctStatusType	"1" means it is an START type of message
+	 * @param UserName			Username to be used in the user-id XML message
+	 * @param FramedIPAddress	IP address to be used in the user-id XML message
+	 * @param NASIdentifier		String with the NAS Identifier (may be NULL)
+	 * @param eventTime			Time of the originating event in milliseconds since the epoch. Used to track the mapping freshness and to order the events
+	 * @param tags				Dynamic address object tags of the entry (see {@link TagRules}). NULL derives them from the NAS Identifier
+	 * @param sessionId			Acct-Session-Id of the event (may be NULL). Used to order the events, see {@link EventOrder}
+	 * @throws IOException
+	 */
+	public void addEntry(String AcctStatusType, String UserName, String FramedIPAddress, String NASIdentifier, long eventTime, String[] tags, String sessionId) throws IOException {
+		UseridEntry entry = new UseridEntry(UserName, FramedIPAddress, NASIdentifier, eventTime);
+		entry.tags = tags;
+		entry.sessionId = sessionId;
 		logHandler.fine("Buffering new entry ("+AcctStatusType+";"+UserName+";"+FramedIPAddress+")");
+		acquireBuffer("addEntry");
 		try {
-			suTurno.acquire();
+			bufferEntry(AcctStatusType, entry);
+		} finally {
+			Metrics.bufferDepth.set(pendingEntries());
+			suTurno.release();
+		}
+	}
+	
+	/**
+	 * Adds a batch of valid user-id entries taking the buffer only once. Used by sources that push many
+	 * entries at a time, like the {@link HttpIngestHandler}.
+	 * If the buffer can't be taken within the given time nothing is added so the caller can push back on its source
+	 * 
+	 * @param AcctStatusTypes	Accounting type of every entry ("1" and "3" are logins, "2" logouts)
+	 * @param entries			The entries to be added
+	 * @param count				Number of entries to take from the arrays
+	 * @param timeoutMs			Maximum time in milliseconds to wait for the buffer
+	 * @return					FALSE if the buffer was not available within the timeout
+	 * @throws IOException
+	 */
+	public boolean tryAddEntries(String[] AcctStatusTypes, UseridEntry[] entries, int count, long timeoutMs) throws IOException {
+		try {
+			if (!suTurno.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS))
+				return false;
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			Thread.currentThread().interrupt();
+			return false;
 		}
-		removeDuplicateEntries(entry);
-		if (AcctStatusType.equals("1") || AcctStatusType.equals("3")) {
-			pendLoginEntries.add(entry);
+		try {
+			drainHandOffs();
+			logHandler.fine("Buffering a batch of "+count+" entries");
+			for (int a = 0; a < count; a++)
+				bufferEntry(AcctStatusTypes[a], entries[a]);
+		} finally {
+			Metrics.bufferDepth.set(pendingEntries());
+			suTurno.release();
+		}
+		return true;
+	}
+	
+	/**
+	 * Adds a few valid user-id entries without ever waiting for the buffer. Used by sources that can't block, like the
+	 * {@link RadiusAccountingListener} selector thread. If the buffer semaphore is busy the entries are queued for its
+	 * holder, or the next flush tick, to buffer them. Up to {@link UseridPanosInterface#maxPendingEntries} entries are queued
+	 * 
+	 * @param AcctStatusTypes	Accounting type of every entry ("1" and "3" are logins, "2" logouts)
+	 * @param entries			The entries to be added
+	 * @param count				Number of entries to take from the arrays
+	 * @return					FALSE if nothing was added because the queue is full, so the caller can push back on its source
+	 * @throws IOException
+	 */
+	public boolean handOffEntries(String[] AcctStatusTypes, UseridEntry[] entries, int count) throws IOException {
+		if (tryAddEntries(AcctStatusTypes, entries, count, 0))
+			return true;
+		if (handOffCount.addAndGet(count) > maxPendingEntries) {
+			handOffCount.addAndGet(-count);
+			return false;
+		}
+		for (int a = 0; a < count; a++)
+			handOffs.add(new HandOff(AcctStatusTypes[a], entries[a]));
+		return true;
+	}
+	
+	/**
+	 * Puts an entry in the right buffer and asks the flushing task to run if they are full. The caller must hold the buffer semaphore
+	 */
+	private void bufferEntry(String AcctStatusType, UseridEntry entry) throws IOException {
+		boolean login = AcctStatusType.equals("1") || AcctStatusType.equals("3");
+		if (eventOrder != null && !eventOrder.accept(entry, login)) {
+			logHandler.fine("Discarding stale event ("+AcctStatusType+";"+entry.userName+";"+entry.ip+"). A newer event for the IP address was already accepted");
+			Metrics.staleEvents.increment();
+			return;
+		}
+		boolean reassigned;
+		if (coalesceByIp) {
+			if (!login && loginForOtherUser(entry)) {
+				logHandler.fine("Discarding stale logout of "+entry.userName+". IP address "+entry.ip+" already reassigned");
+				Metrics.coalescedEntries.increment();
+				return;
+			}
+			reassigned = removeIpEntries(entry);
+			if (login && !reassigned) {
+				MappingStore.Mapping current = mappingStore.lookup(entry.ipHigh, entry.ipLow);
+				reassigned = current != null && !entry.userName.equals(current.userName);
+			}
+		}
+		else {
+			removeDuplicateEntries(entry);
+			reassigned = login && ipReassigned(entry);
+		}
+		if (dynAddressFeature)
+			updateDesiredTags(AcctStatusType, entry);
+		if (login) {
+			if (reassigned) {
+				logHandler.fine("IP address "+entry.ip+" reassigned to a new user. Using the priority lane");
+				pendPriorityLoginEntries.add(entry);
+			}
+			else
+				pendLoginEntries.add(entry);
 		}
 		else { 
 			pendLogoutEntries.add(entry);
 		}
-		if(pendLoginEntries.size() + pendLogoutEntries.size() == maxPendingEntries) {
-			String returnMessage;
-			returnMessage = flushEntries();
-			parseUserIdApiResponse(returnMessage);
+		if (memoryBudget > 0) {
+			bufferedBytes += entry.footprint();
+			checkBudget();
+		}
+		if (pendingEntries() >= maxPendingEntries)
+			requestFlush();
+	}
+	
+	/**
+	 * Coalescing by IP address: removes from the buffers every entry for the IP address of the given one, whatever its user
+	 * 
+	 * @param entry		The entry that supersedes the buffered ones
+	 * @return			TRUE if any of the removed entries belonged to a different user
+	 */
+	protected boolean removeIpEntries(UseridEntry entry) {
+		boolean otherUser = false;
+		for (List<UseridEntry> buffer : Arrays.asList(pendLoginEntries, pendPriorityLoginEntries, pendLogoutEntries)) {
+			Iterator<UseridEntry> iterator = buffer.iterator();
+			while (iterator.hasNext()) {
+				UseridEntry current = iterator.next();
+				if (current.sameIp(entry)) {
+					if (!current.userName.equals(entry.userName))
+						otherUser = true;
+					iterator.remove();
+					Metrics.coalescedEntries.increment();
+				}
+			}
 		}
-		suTurno.release();
+		return otherUser;
+	}
+	
+	/**
+	 * @param entry		A logout entry
+	 * @return			TRUE if there is a buffered login for the same IP address and a different user, making the logout stale
+	 */
+	private boolean loginForOtherUser(UseridEntry entry) {
+		for (List<UseridEntry> buffer : Arrays.asList(pendLoginEntries, pendPriorityLoginEntries))
+			for (UseridEntry current : buffer)
+				if (current.sameIp(entry) && !current.userName.equals(entry.userName))
+					return true;
+		return false;
 	}
 	
 	/**
@@ -200,11 +1307,23 @@ public class UseridPanosInterface {
 	 * @return			The index in the login buffer to the element containing the entry we're looking for.
 	 * 					If the return value equals to the size of the buffer then it means the entry doesn't exist
 	 */
-	protected int loginEntryExists( String[] entry, int bufferSize) {
+	protected int loginEntryExists( UseridEntry entry, int bufferSize) {
+		return entryExists(pendLoginEntries, entry, bufferSize);
+	}
+
+	/**
+	 * Looks for a given entry in the given buffer
+	 * 
+	 * @param buffer		The buffer to look into
+	 * @param entry			The entry we're looking in the buffer
+	 * @param bufferSize	The size of the buffer
+	 * @return			The index in the buffer to the element containing the entry we're looking for.
+	 * 					If the return value equals to the size of the buffer then it means the entry doesn't exist
+	 */
+	protected int entryExists(List<UseridEntry> buffer, UseridEntry entry, int bufferSize) {
 		int a;
 		for (a=0; a < bufferSize; a++) {
-			String[] currentEntry = pendLoginEntries.get(a);
-			if (currentEntry[0].equals(entry[0]) && currentEntry[1].equals(entry[1]))
+			if (buffer.get(a).sameMapping(entry))
 				return a;
 		}
 		return a;
@@ -218,14 +1337,26 @@ public class UseridPanosInterface {
 	 * @return			The index in the logout buffer to the element containing the entry we're looking for.
 	 * 					If the return value equals to the size of the buffer then it means the entry doesn't exist
 	 */
-	protected int logoutEntryExists( String[] entry, int bufferSize) {
-		int a;
-		for (a=0; a < bufferSize; a++) {
-			String[] currentEntry = pendLogoutEntries.get(a);
-			if (currentEntry[0].equals(entry[0]) && currentEntry[1].equals(entry[1]))
-				return a;
-		}
-		return a;
+	protected int logoutEntryExists( UseridEntry entry, int bufferSize) {
+		return entryExists(pendLogoutEntries, entry, bufferSize);
+	}
+	
+	/**
+	 * Checks if the IP address of a login entry is already buffered for a different user.
+	 * These reassignments are sent through the priority lane so the old mapping doesn't linger on the PANOS device
+	 * 
+	 * @param entry		The login entry to be checked
+	 * @return			TRUE if any buffered entry uses the same IP address with a different username
+	 */
+	protected boolean ipReassigned(UseridEntry entry) {
+		return ipUsedByOtherUser(pendLoginEntries, entry) || ipUsedByOtherUser(pendPriorityLoginEntries, entry) || ipUsedByOtherUser(pendLogoutEntries, entry);
+	}
+	
+	private boolean ipUsedByOtherUser(List<UseridEntry> buffer, UseridEntry entry) {
+		for (UseridEntry currentEntry : buffer)
+			if (currentEntry.sameIp(entry) && !currentEntry.userName.equals(entry.userName))
+				return true;
+		return false;
 	}
 	
 	/**
@@ -233,16 +1364,22 @@ public class UseridPanosInterface {
 	 * 
 	 * @param entry		Entry to be looked at the buffers for duplicates
 	 */
-	protected void removeDuplicateEntries(String[] entry)
+	protected void removeDuplicateEntries(UseridEntry entry)
 	{
 		int loginBufferSize = pendLoginEntries.size();
 		int logoutBufferSize = pendLogoutEntries.size();
 		int duplicatedLoginIndex = loginEntryExists(entry, loginBufferSize);
 		int duplicatedLogoutIndex = logoutEntryExists(entry, logoutBufferSize);
+		int priorityBufferSize = pendPriorityLoginEntries.size();
+		int duplicatedPriorityIndex = entryExists(pendPriorityLoginEntries, entry, priorityBufferSize);
 		if (duplicatedLoginIndex != loginBufferSize) {
 			pendLoginEntries.remove(duplicatedLoginIndex);
 			logHandler.fine("Removed duplicated login entry already in the buffer");
 			}
+		if (duplicatedPriorityIndex != priorityBufferSize) {
+			pendPriorityLoginEntries.remove(duplicatedPriorityIndex);
+			logHandler.fine("Removed duplicated priority login entry already in the buffer");
+		}
 		if (duplicatedLogoutIndex != logoutBufferSize) {
 			pendLogoutEntries.remove(duplicatedLogoutIndex);
 			logHandler.fine("Removed duplicated logout entry already in the buffer");
@@ -250,60 +1387,494 @@ public class UseridPanosInterface {
 	}
 
 	/**
-	 * Flushes the buffer to the first available {@link PANOSApiConnector} device
+	 * Takes the next batch out of the buffers, for the first available {@link PANOSApiConnector} device.
+	 * The priority lane (logouts and IP reassignments) is always taken. Bulk login entries are only taken
+	 * as far as the device rate limiter allows it, and up to {@link UseridPanosInterface#maxPendingEntries} entries per batch.
+	 * The rest are kept in the buffer for the next flush. With a memory budget nothing is taken if no device is ready. The caller must hold the turn of the API calls and the buffer semaphore,
+	 * and send the batch with {@link UseridPanosInterface#sendBatch} once the semaphore is released
 	 *  
-	 * @return	The XML response message received by the PANOS device. NULL means we've been unable to send the buffer to any PANOS device
-	 */
-	protected String flushEntries() {
-		response = "";
-		String xmlMessage = "<uid-message><version>1.0</version><type>update</type><payload><login>";
-		for (String[] entry : pendLoginEntries)
-			xmlMessage+=String.format("<entry name=\"%s\" ip=\"%s\" timeout=\"%d\" />", entry[0], entry[1], useridTimeout);
-		xmlMessage+="</login><logout>";
-		for (String[] entry : pendLogoutEntries)
-			xmlMessage+=String.format("<entry name=\"%s\" ip=\"%s\" />", entry[0], entry[1] );
-		xmlMessage+="</logout>";
-		if (dynAddressFeature) {
-			xmlMessage+="<register>";
-			for (String[] entry : pendLoginEntries)
-				if (entry[2]!=null)
-					xmlMessage+=String.format("<entry ip=\"%s\"><tag><member>%s</member></tag></entry>", entry[1], entry[2] );
-			xmlMessage+="</register><unregister>";
-			for (String [] entry : pendLogoutEntries)
-				if (entry[2]!=null)
-					xmlMessage+=String.format("<entry ip=\"%s\"></entry>", entry[1] );
-			xmlMessage+="</unregister>";
-		}
-		xmlMessage+="</payload></uid-message>";
-		logHandler.fine("Flushing entries ("+pendLoginEntries.size()+";"+pendLogoutEntries.size()+")");
-		pendLoginEntries.clear();
+	 * @return	The batch, published as {@link UseridPanosInterface#inFlight}. NULL if nothing can be sent now
+	 */
+	private Batch takeBatch() {
+		PANOSApiConnector target = PA1.ready ? PA1 : PA2;
+		if (memoryBudget > 0 && !target.ready) {
+			logHandler.finest("No PANOS device available. Keeping "+pendingEntries()+" entries in the buffer");
+			return null;
+		}
+		int priorityCount = pendPriorityLoginEntries.size() + pendLogoutEntries.size();
+		int bulkCount = Math.min(pendLoginEntries.size(), Math.max(0, maxPendingEntries - priorityCount));
+		if (target.ready) {
+			bulkCount = target.grantEntries(priorityCount, bulkCount);
+			if (bulkCount < 0) {
+				logHandler.finest("Rate limit reached for "+target.PANOSUrl.toString()+". Keeping entries in the buffer");
+				return null;
+			}
+		}
+		List<UseridEntry> bulkEntries = pendLoginEntries.subList(0, bulkCount);
+		int priorityLogins = pendPriorityLoginEntries.size();
+		ArrayList<UseridEntry> loginEntries = new ArrayList<UseridEntry>(pendPriorityLoginEntries);
+		loginEntries.addAll(bulkEntries);
+		int batchSize = loginEntries.size() + pendLogoutEntries.size();
+		logHandler.fine("Flushing entries ("+loginEntries.size()+";"+pendLogoutEntries.size()+")");
+		ArrayList<UseridEntry> entries = new ArrayList<UseridEntry>(batchSize);
+		entries.addAll(loginEntries);
+		entries.addAll(pendLogoutEntries);
+		Batch batch = new Batch(entries, loginEntries.size(), priorityLogins);
+		bulkEntries.clear();
+		pendPriorityLoginEntries.clear();
 		pendLogoutEntries.clear();
+		inFlight = batch;
+		return batch;
+	}
+	
+	/**
+	 * Builds the message of a batch and sends it to the first available PANOS device. The caller must hold the turn of the
+	 * API calls, not the buffer semaphore, so the sources keep buffering while the message is built
+	 * 
+	 * @param batch		The batch taken by {@link UseridPanosInterface#takeBatch}
+	 */
+	private void sendBatch(Batch batch) {
+		if (!PA1.ready && !PA2.ready)
+			return;
+		FlightEvents.FlushEvent flushEvent = new FlightEvents.FlushEvent();
+		flushEvent.begin();
+		batch.xmlMessage = buildUidMessage(batch.entries.subList(0, batch.loginCount), batch.entries.subList(batch.loginCount, batch.entries.size()));
+		if (flushEvent.shouldCommit()) {
+			flushEvent.batchSize = batch.entries.size();
+			flushEvent.target = (PA1.ready ? PA1 : PA2).getUrl();
+			flushEvent.messageLength = batch.xmlMessage.length();
+			flushEvent.commit();
+		}
 		try {
-			if (PA1.ready) 
-				response = PA1.sendUserIdMessage(xmlMessage);
-			if (!PA1.ready && PA2.ready)
-				response = PA2.sendUserIdMessage(xmlMessage);
-			if (!PA1.ready && !PA2.ready) {
-				logHandler.warning("No PANOS device available to handle this update. Discarding");
+			if (PA1.ready) {
+				batch.target = PA1;
+				batch.response = PA1.sendUserIdMessage(batch.xmlMessage, batch.entries.size());
+			}
+			if (!PA1.ready && PA2.ready) {
+				batch.target = PA2;
+				batch.response = PA2.sendUserIdMessage(batch.xmlMessage, batch.entries.size());
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		return response;
+	}
+	
+	/**
+	 * Completes a sent batch. If no PANOS device was ready it is put back in the buffers (with a memory budget) or discarded,
+	 * otherwise the response is parsed. The caller must hold the turn of the API calls, not the buffer semaphore
+	 * 
+	 * @param batch		The batch sent by {@link UseridPanosInterface#sendBatch}
+	 * @return			TRUE if the batch has been acknowledged by a PANOS device
+	 * @throws IOException
+	 */
+	private boolean completeBatch(Batch batch) throws IOException {
+		try {
+			if (!PA1.ready && !PA2.ready && memoryBudget > 0) {
+				logHandler.warning("No PANOS device available to handle this update. Keeping it in the buffer");
+				acquireBuffer("requeue");
+				try {
+					requeueBatch(batch);
+				} finally {
+					suTurno.release();
+				}
+				batch.target = null;
+				return false;
+			}
+			if (!PA1.ready && !PA2.ready) {
+				logHandler.warning("No PANOS device available to handle this update. Discarding");
+				Metrics.droppedEntries.add(batch.entries.size());
+				return false;
+			}
+			Metrics.batchSizes.record(batch.entries.size());
+			return parseUserIdApiResponse(batch);
+		} finally {
+			inFlight = null;
+		}
+	}
+	
+	/**
+	 * Puts the entries of a batch back at the head of their buffers. Entries superseded by the ones buffered while the
+	 * batch was in flight (same IP address when coalescing by IP address, same mapping otherwise) are left out so they
+	 * don't undo them. The caller must hold the buffer semaphore
+	 * 
+	 * @param batch		The batch that couldn't be delivered
+	 */
+	private void requeueBatch(Batch batch) {
+		HashSet<String> buffered = new HashSet<String>();
+		for (List<UseridEntry> buffer : Arrays.asList(pendLoginEntries, pendPriorityLoginEntries, pendLogoutEntries))
+			for (UseridEntry entry : buffer)
+				buffered.add(requeueKey(entry));
+		ArrayList<UseridEntry> priority = new ArrayList<UseridEntry>();
+		ArrayList<UseridEntry> bulk = new ArrayList<UseridEntry>();
+		ArrayList<UseridEntry> logouts = new ArrayList<UseridEntry>();
+		for (int a = 0; a < batch.entries.size(); a++) {
+			UseridEntry entry = batch.entries.get(a);
+			if (buffered.contains(requeueKey(entry)))
+				continue;
+			(a < batch.priorityLogins ? priority : a < batch.loginCount ? bulk : logouts).add(entry);
+		}
+		pendPriorityLoginEntries.addAll(0, priority);
+		pendLoginEntries.addAll(0, bulk);
+		pendLogoutEntries.addAll(0, logouts);
+		batch.requeued = true;
+	}
+	
+	private String requeueKey(UseridEntry entry) {
+		return coalesceByIp ? entry.ip : entry.userName+"\n"+entry.ip;
+	}
+	
+	/**
+	 * Builds the PANOS user-id XML message for the given entries. User names and IP addresses are escaped, so a
+	 * name coming from any source can't break the message nor add entries to it.
+	 * The dynamic address object tags are sent apart by {@link UseridPanosInterface#flushTags}
+	 * 
+	 * @param loginEntries		Entries to be included in the login section
+	 * @param logoutEntries		Entries to be included in the logout section
+	 * @return					The user-id XML message
+	 */
+	protected String buildUidMessage(List<UseridEntry> loginEntries, List<UseridEntry> logoutEntries) {
+		StringBuilder xmlMessage = new StringBuilder(128 + 80 * (loginEntries.size() + logoutEntries.size()));
+		xmlMessage.append("<uid-message><version>1.0</version><type>update</type><payload><login>");
+		for (UseridEntry entry : loginEntries)
+			xmlMessage.append("<entry name=\"").append(escapeXml(entry.userName)).append("\" ip=\"").append(escapeXml(entry.ip))
+					.append("\" timeout=\"").append(useridTimeout).append("\" />");
+		xmlMessage.append("</login><logout>");
+		for (UseridEntry entry : logoutEntries)
+			xmlMessage.append("<entry name=\"").append(escapeXml(entry.userName)).append("\" ip=\"").append(escapeXml(entry.ip)).append("\" />");
+		xmlMessage.append("</logout></payload></uid-message>");
+		return xmlMessage.toString();
+	}
+	
+	/**
+	 * Records the tags an IP address should have after this entry. Logins without tags don't change them.
+	 * The caller must hold the buffer semaphore
+	 */
+	private void updateDesiredTags(String AcctStatusType, UseridEntry entry) {
+		if (AcctStatusType.equals("2"))
+			desiredTags.put(entry.ip, TagRules.NONE);
+		else {
+			String[] tags = entry.tags != null ? entry.tags : TagRules.fromNasIdentifier(entry.nasIdentifier);
+			if (tags.length > 0)
+				desiredTags.put(entry.ip, tags);
+		}
+	}
+	
+	/**
+	 * Sends the dynamic address object tag changes to the first available PANOS device. Only the differences between
+	 * the tags an IP address should have and the ones already registered are sent, so logins and interim updates
+	 * that don't change the tags cost nothing. Unregisters are always sent, registers as far as the rate limiter allows it.
+	 * The changes are taken holding the buffer semaphore and applied once acknowledged, so tags changed while the
+	 * API call is in flight are sent by the next flush. The caller must hold the turn of the API calls
+	 * 
+	 * @throws IOException
+	 */
+	protected void flushTags() throws IOException {
+		PANOSApiConnector target;
+		ArrayList<String> registerIps = new ArrayList<String>();
+		ArrayList<String> unregisterIps = new ArrayList<String>();
+		HashMap<String, String[]> sentDesired = new HashMap<String, String[]>();
+		HashMap<String, String[]> sentRegistered = new HashMap<String, String[]>();
+		int granted;
+		StringBuilder xmlMessage;
+		acquireBuffer("tagFlush");
+		try {
+			target = PA1.ready ? PA1 : (PA2.ready ? PA2 : null);
+			if (target == null)
+				return;
+			if (tagsResync) {
+				tagsResync = false;
+				for (Map.Entry<String, String[]> registered : registeredTags.entrySet())
+					if (!desiredTags.containsKey(registered.getKey()))
+						desiredTags.put(registered.getKey(), registered.getValue());
+				registeredTags.clear();
+			}
+			Iterator<Map.Entry<String, String[]>> pending = desiredTags.entrySet().iterator();
+			while (pending.hasNext()) {
+				Map.Entry<String, String[]> desired = pending.next();
+				String[] current = registeredTags.get(desired.getKey());
+				if (current == null)
+					current = TagRules.NONE;
+				boolean register = missingTags(desired.getValue(), current);
+				boolean unregister = missingTags(current, desired.getValue());
+				if (!register && !unregister) {
+					Metrics.tagsUnchanged.increment();
+					pending.remove();
+					continue;
+				}
+				if (register)
+					registerIps.add(desired.getKey());
+				if (unregister)
+					unregisterIps.add(desired.getKey());
+			}
+			if (registerIps.isEmpty() && unregisterIps.isEmpty())
+				return;
+			granted = target.grantEntries(unregisterIps.size(), registerIps.size());
+			if (granted < 0)
+				return;
+			registerIps.subList(granted, registerIps.size()).clear();
+			for (List<String> ips : Arrays.asList(registerIps, unregisterIps))
+				for (String ip : ips) {
+					sentDesired.put(ip, desiredTags.get(ip));
+					sentRegistered.put(ip, registeredTags.get(ip));
+				}
+			xmlMessage = new StringBuilder(128 + 96 * (granted + unregisterIps.size()));
+			xmlMessage.append("<uid-message><version>1.0</version><type>update</type><payload><register>");
+			for (String ip : registerIps)
+				appendTagEntry(xmlMessage, ip, sentDesired.get(ip), sentRegistered.get(ip));
+			xmlMessage.append("</register><unregister>");
+			for (String ip : unregisterIps)
+				appendTagEntry(xmlMessage, ip, sentRegistered.get(ip), sentDesired.get(ip));
+			xmlMessage.append("</unregister></payload></uid-message>");
+		} finally {
+			suTurno.release();
+		}
+		logHandler.fine("Flushing tag changes ("+granted+";"+unregisterIps.size()+")");
+		String returnMessage = target.sendUserIdMessage(xmlMessage.toString(), granted + unregisterIps.size());
+		if (returnMessage.equals(""))
+			return;
+		if (!panosXmlResponse.panosResponseParse(returnMessage)) {
+			target.getMetrics().errors.increment();
+			logHandler.warning("PANOS API response to the tag update includes an error message");
+			logHandler.fine(returnMessage);
+			return;
+		}
+		Metrics.tagRegisters.add(granted);
+		Metrics.tagUnregisters.add(unregisterIps.size());
+		acquireBuffer("tagFlush");
+		try {
+			for (String ip : registerIps)
+				applySentTags(ip, sentDesired.get(ip));
+			for (String ip : unregisterIps) {
+				if (registerIps.contains(ip))	// already applied together with its register
+					continue;
+				String[] desired = sentDesired.get(ip);
+				String[] kept = intersection(sentRegistered.get(ip), desired);
+				if (!missingTags(desired, kept))
+					applySentTags(ip, desired);
+				else if (kept.length == 0)	// only the unregister part was sent
+					registeredTags.remove(ip);
+				else
+					registeredTags.put(ip, kept);
+			}
+		} finally {
+			suTurno.release();
+		}
+	}
+	
+	/**
+	 * Records the tags sent for an IP address as registered. They are no longer pending unless they changed while the
+	 * API call was in flight
+	 */
+	private void applySentTags(String ip, String[] tags) {
+		if (desiredTags.get(ip) == tags)
+			desiredTags.remove(ip);
+		if (tags.length == 0)
+			registeredTags.remove(ip);
+		else
+			registeredTags.put(ip, tags);
+	}
+	
+	/**
+	 * Appends an entry with the tags in "tags" that are not in "except"
+	 */
+	private static void appendTagEntry(StringBuilder xmlMessage, String ip, String[] tags, String[] except) {
+		xmlMessage.append("<entry ip=\"").append(escapeXml(ip)).append("\"><tag>");
+		for (String tag : tags)
+			if (except == null || !TagRules.contains(except, tag))
+				xmlMessage.append("<member>").append(escapeXml(tag)).append("</member>");
+		xmlMessage.append("</tag></entry>");
+	}
+	
+	/**
+	 * @return	TRUE if any tag in "tags" is not in "other"
+	 */
+	private static boolean missingTags(String[] tags, String[] other) {
+		for (String tag : tags)
+			if (!TagRules.contains(other, tag))
+				return true;
+		return false;
+	}
+	
+	private static String[] intersection(String[] tags, String[] other) {
+		ArrayList<String> result = new ArrayList<String>();
+		for (String tag : tags)
+			if (TagRules.contains(other, tag))
+				result.add(tag);
+		return result.toArray(new String[result.size()]);
+	}
+	
+	/**
+	 * Pushes the groups whose membership has changed, with their full member list, to the first available PANOS device.
+	 * PANOS replaces the members of a group with the list received, so a group is never split across API calls.
+	 * Every API call carries up to {@link UseridPanosInterface#groupsPerMessage} groups, as many as the rate limiter grants
+	 * whole (see {@link PANOSApiConnector#grantWhole}). The rest stay dirty for the next flush. The caller must hold the turn of the API calls
+	 * 
+	 * @throws IOException
+	 */
+	protected void flushGroups() throws IOException {
+		PANOSApiConnector target = PA1.ready ? PA1 : (PA2.ready ? PA2 : null);
+		ArrayList<String> groups = new ArrayList<String>();
+		ArrayList<String[]> members = new ArrayList<String[]>();
+		while (target != null && target.ready) {
+			groups.clear();
+			members.clear();
+			groupMembership.dirty(groupsPerMessage, groups, members);
+			if (groups.isEmpty())
+				return;
+			int count = groups.size();
+			while (count > 1 && groupEntries(members, count) > target.burstEntries())
+				count = (count + 1) / 2;
+			while (!target.grantWhole(groupEntries(members, count))) {
+				if (count == 1) {
+					logHandler.finest("Rate limit reached for "+target.getUrl()+". Keeping the groups for the next flush");
+					return;
+				}
+				count = (count + 1) / 2;
+			}
+			groups.subList(count, groups.size()).clear();
+			members.subList(count, members.size()).clear();
+			int memberCount = 0;
+			StringBuilder xmlMessage = new StringBuilder(4096);
+			xmlMessage.append("<uid-message><version>1.0</version><type>update</type><payload><groups>");
+			for (int a = 0; a < groups.size(); a++) {
+				xmlMessage.append("<entry name=\"").append(escapeXml(groups.get(a))).append("\"><members>");
+				for (String member : members.get(a))
+					xmlMessage.append("<entry name=\"").append(escapeXml(member)).append("\"/>");
+				xmlMessage.append("</members></entry>");
+				memberCount += members.get(a).length;
+			}
+			xmlMessage.append("</groups></payload></uid-message>");
+			logHandler.fine("Pushing "+groups.size()+" groups with "+memberCount+" members");
+			String returnMessage = target.sendUserIdMessage(xmlMessage.toString(), memberCount);
+			if (returnMessage.equals(""))
+				return;
+			if (!panosXmlResponse.panosResponseParse(returnMessage)) {
+				target.getMetrics().errors.increment();
+				logHandler.warning("PANOS API response to the group mapping includes an error message");
+				logHandler.fine(returnMessage);
+				return;
+			}
+			groupMembership.markClean(groups);
+			Metrics.groupUpdates.add(groups.size());
+		}
+	}
+	
+	/**
+	 * @return	Rate limiter entries taken by the first "count" groups: one per group plus one per member
+	 */
+	private static int groupEntries(List<String[]> members, int count) {
+		int entries = 0;
+		for (int a = 0; a < count; a++)
+			entries += 1 + members.get(a).length;
+		return entries;
+	}
+	
+	/**
+	 * @return	The value escaped to be used as an XML attribute value. Control characters, not allowed in XML, are dropped
+	 */
+	protected static String escapeXml(String value) {
+		StringBuilder escaped = null;
+		for (int a = 0; a < value.length(); a++) {
+			char c = value.charAt(a);
+			String replacement;
+			if (c == '&')
+				replacement = "&amp;";
+			else if (c == '<')
+				replacement = "&lt;";
+			else if (c == '>')
+				replacement = "&gt;";
+			else if (c == '"')
+				replacement = "&quot;";
+			else if (c < 0x20)
+				replacement = "";
+			else {
+				if (escaped != null)
+					escaped.append(c);
+				continue;
+			}
+			if (escaped == null)
+				escaped = new StringBuilder(value.length() + 16).append(value, 0, a);
+			escaped.append(replacement);
+		}
+		return escaped == null ? value : escaped.toString();
+	}
+	
+	/**
+	 * Forgets the last event of IP addresses that have been idle for longer than the user-id timeout. Their mappings
+	 * have already expired in the PANOS devices, so there is no state left to protect from stale events
+	 */
+	protected void purgeEventOrder() {
+		acquireBuffer("eventOrderPurge");
+		try {
+			eventOrder.purge(System.currentTimeMillis() - useridTimeout * 60000L);
+		} finally {
+			suTurno.release();
+		}
+	}
+	
+	/**
+	 * Queues the unregister of the tags of IP addresses whose mapping has expired in the {@link MappingStore}
+	 */
+	protected void unregisterExpiredTags() {
+		acquireBuffer("tagExpiry");
+		try {
+			for (String ip : registeredTags.keySet())
+				if (!desiredTags.containsKey(ip) && mappingStore.lookup(ip) == null)
+					desiredTags.put(ip, TagRules.NONE);
+		} finally {
+			suTurno.release();
+		}
 	}
 	
 	/**
 	 * Parses the XML response received by the PANOS device after we've called the user-id message
 	 * 
-	 * @param response		The XML PANOS response message
+	 * @param batch		The batch sent, with the XML PANOS response message
+	 * @return				TRUE if the batch has been acknowledged by a PANOS device
 	 * @throws IOException
 	 */
-	protected void parseUserIdApiResponse(String response) throws IOException {
+	private boolean parseUserIdApiResponse(Batch batch) throws IOException {
+		String response = batch.response;
 		if ( !response.equals(""))
 			if (!panosXmlResponse.panosResponseParse(response)) {
+				if (batch.target != null)
+					batch.target.getMetrics().errors.increment();
 				logHandler.warning("PANOS API response includes an error message");
 				logHandler.fine(response);
 			}
+			else if (batch.target != null) {
+				recordFreshness(batch.target, batch.entries);
+				mappingStore.update(batch.entries, batch.loginCount, useridTimeout * 60000L);
+				if (groupMappingFeature)
+					forgetDepartedUsers();
+				return true;
+			}
+		return false;
+	}
+	
+	/**
+	 * Records, for every entry acknowledged by a PANOS device, the lag from the originating event time to now.
+	 * A warning is logged (at most once per minute) if the lag exceeds {@link UseridPanosInterface#freshnessAlertMs}
+	 * 
+	 * @param target	The PANOS device that acknowledged the entries
+	 * @param batch		The acknowledged entries
+	 */
+	protected void recordFreshness(PANOSApiConnector target, List<UseridEntry> batch) {
+		long now = System.currentTimeMillis();
+		long worst = 0;
+		for (UseridEntry entry : batch) {
+			long lag = now - entry.eventTime;
+			target.getMetrics().freshness.record(lag);
+			if (lag > worst)
+				worst = lag;
+		}
+		if (freshnessAlertMs > 0 && worst > freshnessAlertMs) {
+			target.getMetrics().freshnessAlerts.increment();
+			if (now - lastFreshnessAlert > 60000) {
+				lastFreshnessAlert = now;
+				logHandler.warning("Mappings reaching "+target.getUrl()+" are "+worst+" ms old (alert threshold is "+freshnessAlertMs+" ms)");
+			}
+		}
 	}
 
 }
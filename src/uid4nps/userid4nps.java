@@ -1,27 +1,18 @@
 package uid4nps;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.file.DirectoryStream;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.file.attribute.FileTime;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -119,9 +110,20 @@ public class userid4nps {
 	 * Path to the directory where the DTS-compliant log entries from the NPS are stored.
 	 * This directory must be used EXCLUSIVELLY for NPS DTS-compliant file storage.
 	 * The log files must have a ".log" extension.
-	 * It equals the "npsLogDir" in the configuration file and defaults to "C:/Windows/System32/LogFiles" 
+	 * It equals the "npsLogDir" in the configuration file and defaults to "C:/Windows/System32/LogFiles".
+	 * It is only used when no "source.N.dir" is configured (see {@link userid4nps#initSources})
 	 */
 	protected static String npsLogDir;
+	/**
+	 * Directory where the {@link NpsLogTailer} of every source saves its checkpoint ("&lt;name&gt;.checkpoint").
+	 * It equals the "checkpointDir" in the configuration file and defaults to "" (no checkpoints)
+	 */
+	protected static String checkpointDir;
+	/**
+	 * Milliseconds without new data after which a rolled over log file is closed (see {@link NpsLogTailer#setRotationGrace}).
+	 * It equals the "rotationGraceMs" in the configuration file and defaults to 10000. 0 closes it on the roll over
+	 */
+	protected static long rotationGraceMs;
 	/**
 	 * Target vsys for the PANOS user-id messages. If vsys = "none" we'll not send the vsys attribute
 	 * in the PANOS call. Otherwise we'll append vsys=<vsys> in the attribute chain
@@ -137,31 +139,185 @@ public class userid4nps {
 	 * objects tagged with the string provided by the NAS device in the DTS field named "NAS-Identifier"
 	 */
 	protected static boolean dynAddressFeature;
+	/**
+	 * Maximum number of user-id API calls per second sent to each PANOS device.
+	 * It equals the "panosMaxRequestsPerSecond" in the configuration file and defaults to 0 (unlimited)
+	 */
+	protected static double panosMaxRequestsPerSecond;
+	/**
+	 * Maximum number of user-id entries per second sent to each PANOS device. Logouts and IP reassignments
+	 * are always sent, bulk logins and interim refreshes wait for the next flush if the limit is reached.
+	 * It equals the "panosMaxEntriesPerSecond" in the configuration file and defaults to 0 (unlimited)
+	 */
+	protected static double panosMaxEntriesPerSecond;
+	/**
+	 * Number of threads of the {@link SharedScheduler} running all periodic tasks (connection checks and buffer flushes).
+	 * It equals the "schedulerThreads" in the configuration file and defaults to 2
+	 */
+	protected static int schedulerThreads;
+	/**
+	 * Number of threads of the {@link SharedScheduler} pool running the PANOS API calls.
+	 * It equals the "apiThreads" in the configuration file and defaults to 3
+	 */
+	protected static int apiThreads;
+	/**
+	 * TCP port of the local HTTP server hosting the Prometheus "/metrics" endpoint.
+	 * It equals the "httpPort" in the configuration file and defaults to 0 (disabled)
+	 */
+	protected static int httpPort;
+	/**
+	 * Local address the HTTP server listens on.
+	 * It equals the "httpBindAddress" in the configuration file and defaults to "127.0.0.1"
+	 */
+	protected static String httpBindAddress;
+	/**
+	 * Lag, in milliseconds, from the NPS event time to the PANOS acknowledge above which we'll log a warning.
+	 * It equals the "freshnessAlertMs" in the configuration file and defaults to 60000. 0 disables the alert
+	 */
+	protected static long freshnessAlertMs;
+	/**
+	 * UDP port of the {@link RadiusAccountingListener} receiving Accounting-Request packets forwarded by NPS.
+	 * It equals the "radiusPort" in the configuration file and defaults to 0 (disabled)
+	 */
+	protected static int radiusPort;
+	/**
+	 * Local address the RADIUS accounting listener binds to.
+	 * It equals the "radiusBindAddress" in the configuration file and defaults to "0.0.0.0"
+	 */
+	protected static String radiusBindAddress;
+	/**
+	 * RADIUS shared secret used to validate the Accounting-Request packets.
+	 * It equals the "radiusSecret" in the configuration file. The listener is not started without one
+	 */
+	protected static String radiusSecret;
+	private static RadiusAccountingListener radiusListener;
+	/**
+	 * UDP and TCP port of the {@link SyslogReceiver} receiving NPS events forwarded over syslog.
+	 * It equals the "syslogPort" in the configuration file and defaults to 0 (disabled)
+	 */
+	protected static int syslogPort;
+	/**
+	 * Local address the syslog receiver binds to.
+	 * It equals the "syslogBindAddress" in the configuration file and defaults to "0.0.0.0"
+	 */
+	protected static String syslogBindAddress;
+	private static SyslogReceiver syslogReceiver;
+	/**
+	 * Flag to publish the {@link HttpIngestHandler} at "/ingest" in the local HTTP server.
+	 * It equals the "ingestEnabled" in the configuration file and defaults to false
+	 */
+	protected static boolean ingestEnabled;
+	/**
+	 * Bearer token required by the ingest endpoint. Empty means no authentication.
+	 * It equals the "ingestToken" in the configuration file
+	 */
+	protected static String ingestToken;
+	/**
+	 * Maximum number of events in a single ingest request.
+	 * It equals the "ingestMaxBatch" in the configuration file and defaults to 5000
+	 */
+	protected static int ingestMaxBatch;
+	/**
+	 * Buffered entries above which the ingest endpoint answers 429.
+	 * It equals the "ingestMaxPending" in the configuration file and defaults to 20000
+	 */
+	protected static long ingestMaxPending;
+	/**
+	 * Number of concurrent mappings the local {@link MappingStore} is initially sized for (it grows if needed).
+	 * It equals the "mappingStoreCapacity" in the configuration file and defaults to 100000
+	 */
+	protected static int mappingStoreCapacity;
+	/**
+	 * Maximum number of entries per API call when resyncing a PANOS device that becomes ready. 0 disables the resync.
+	 * It equals the "resyncChunkSize" in the configuration file and defaults to 1000
+	 */
+	protected static int resyncChunkSize;
+	/**
+	 * Delay in milliseconds between two resync API calls.
+	 * It equals the "resyncIntervalMs" in the configuration file and defaults to 50
+	 */
+	protected static long resyncIntervalMs;
+	/**
+	 * Delay in milliseconds between two flushes of the dynamic address object tag changes (see {@link TagRules}).
+	 * It equals the "tagFlushIntervalMs" in the configuration file and defaults to 10000
+	 */
+	protected static long tagFlushIntervalMs;
+	/**
+	 * Flag to push to the PANOS devices the user to group mapping built from the NPS policy attributes (see {@link GroupMembership}).
+	 * It equals the "groupMappingFeature" in the configuration file and defaults to false
+	 */
+	protected static boolean groupMappingFeature;
+	/**
+	 * Delay in milliseconds between two group mapping pushes.
+	 * It equals the "groupFlushIntervalMs" in the configuration file and defaults to 30000
+	 */
+	protected static long groupFlushIntervalMs;
+	/**
+	 * Maximum number of groups per API call.
+	 * It equals the "groupsPerMessage" in the configuration file and defaults to 100
+	 */
+	protected static int groupsPerMessage;
+	/**
+	 * Flag to coalesce the buffered entries by IP address (latest event wins) instead of by user and IP address.
+	 * It equals the "coalesceByIp" in the configuration file and defaults to false
+	 */
+	protected static boolean coalesceByIp;
+	/**
+	 * Flag to drop the events older than the last one accepted for their IP address (see {@link EventOrder}).
+	 * It equals the "staleEventSuppression" in the configuration file and defaults to true
+	 */
+	protected static boolean staleEventSuppression;
+	/**
+	 * Maximum time in milliseconds the shutdown spends stopping the sources and flushing the buffered entries
+	 * (see {@link UseridPanosInterface#drain}). It equals the "shutdownDrainMs" in the configuration file and defaults to 800
+	 */
+	protected static long shutdownDrainMs;
+	/**
+	 * File keeping the entries that couldn't be sent before the shutdown deadline. They are replayed on the next start.
+	 * It equals the "spoolFile" in the configuration file and defaults to "userid4nps.spool". Empty discards them
+	 */
+	protected static String spoolFile;
+	/**
+	 * Connect and read timeout in milliseconds of the PANOS API calls.
+	 * It equals the "panosTimeoutMs" in the configuration file and defaults to 30000. 0 means no timeout
+	 */
+	protected static int panosTimeoutMs;
+	/**
+	 * File keeping the snapshot of the active mappings used to warm start (see {@link MappingStore#writeSnapshot}).
+	 * It equals the "snapshotFile" in the configuration file and defaults to "userid4nps.snapshot". Empty disables it
+	 */
+	protected static String snapshotFile;
+	/**
+	 * Delay in milliseconds between two snapshots of the active mappings. 0 only saves it on shutdown.
+	 * It equals the "snapshotIntervalMs" in the configuration file and defaults to 60000
+	 */
+	protected static long snapshotIntervalMs;
+	/**
+	 * How often, in milliseconds, the configuration file is checked for changes to be applied by {@link RuntimeSettings} (0 disables it).
+	 * It equals the "configReloadIntervalMs" in the configuration file and defaults to 5000
+	 */
+	protected static long configReloadIntervalMs;
+	/**
+	 * Memory budget in megabytes of the buffered entries. Above it the sources are paused (see {@link UseridPanosInterface#isSaturated}).
+	 * It equals the "memoryBudgetMb" in the configuration file and defaults to 64. 0 disables the flow control
+	 */
+	protected static long memoryBudgetMb;
+	private static RuntimeSettings runtimeSettings;
 	private static Logger logHandler;
-	private static int currentState = Const.INIT;
-	private static Path currentNpsLogFile = null;
-	
-	private static HashMap<Path,Long> currentFileSizeDB ;
-	private static HashMap<Path,Long> oldFileSizeDB ;
-
 	/**
-	 * This field will point to the current NPS log file being used
+	 * One {@link NpsLogTailer} per configured log source. All of them feed {@link userid4nps#paInterface}
 	 */
-	protected static FileChannel fcNpsLogFile;
-	private static UseridNpsDtsParser parser;
+	protected static ArrayList<NpsLogTailer> tailers = new ArrayList<NpsLogTailer>();
 	private static UseridPanosInterface paInterface;
-	private static BufferedReader in;
-	private static String xmlElement;
-	private static int readlineTries = 0;
-	private static FileSystem fs;
-	private static Path npsLogPath;
 	/**
 	 * Field that, while true, will keep the FSM running ({@link userid4nps#fsm})
 	 * Calling the class' {@link userid4nps#stop} method clears the value an eventually will break the main loop.
 	 */
 	protected static Boolean keepRunning = true;
-	private static DirectoryStream<Path> npsDirStream;
-	private static ArrayList<Path> unknownFileArray;
+	/**
+	 * Released by {@link userid4nps#stop} so the main loop leaves its wait immediately
+	 */
+	private static CountDownLatch stopSignal = new CountDownLatch(1);
 	
 	/**
 	 * Main method. It is invoked is run as a standalone application. A command line argument must
@@ -212,29 +368,21 @@ public class userid4nps {
 	}
 	
 	/**
-	 * Clears the {@link userid4nps#keepRunning} flag so {@link userid4nps#fsm} can gracefully end
+	 * Clears the {@link userid4nps#keepRunning} flag and wakes up {@link userid4nps#fsm} so it can gracefully end right away:
+	 * sources are stopped, the buffer is drained within "shutdownDrainMs" and what couldn't be sent is spooled
 	 * 
 	 * @param args		Unused
 	 */
 	public static void stop(String[] args) {
 		logHandler.fine("Called stop method. We'll try to graceful shutdown");
 		keepRunning = false;
+		stopSignal.countDown();
 	}
 		
 	/**
-	 * Initializes all class fields either from parsing the configuration file passed as command line argument
-	 * or by initializing its values to their default value.
-	 * In case the configuration file doesn't exist it will be created with default values (template).
-	 * It is called from within the {@link userid4nps#fsm} when entering the INIT state.
-	 * 
-	 * @throws NoSuchAlgorithmException
-	 * @throws KeyManagementException
-	 * @throws IOException
-	 * @throws ParserConfigurationException
-	 * @throws SAXException
-	 * @throws InterruptedException
+	 * @return	The default value of every configuration property. Also used by {@link RuntimeSettings#reload}
 	 */
-	protected static void init () throws NoSuchAlgorithmException, KeyManagementException, IOException, ParserConfigurationException, SAXException, InterruptedException {
+	protected static Properties defaultProperties() {
 		Properties defaultProps = new Properties();
 		defaultProps.put("maxPendingEntries", "100");
 		defaultProps.put("useridTimeout", "1440");
@@ -250,7 +398,59 @@ public class userid4nps {
 		defaultProps.put("logLevel", "INFO");
 		defaultProps.put("npsLogDir", "C:/Windows/System32/LogFiles");
 		defaultProps.put("dynAddressFeature","false");
-		
+		defaultProps.put("panosMaxRequestsPerSecond", "0");
+		defaultProps.put("panosMaxEntriesPerSecond", "0");
+		defaultProps.put("schedulerThreads", "2");
+		defaultProps.put("apiThreads", "3");
+		defaultProps.put("httpPort", "0");
+		defaultProps.put("httpBindAddress", "127.0.0.1");
+		defaultProps.put("freshnessAlertMs", "60000");
+		defaultProps.put("radiusPort", "0");
+		defaultProps.put("radiusBindAddress", "0.0.0.0");
+		defaultProps.put("radiusSecret", "");
+		defaultProps.put("syslogPort", "0");
+		defaultProps.put("syslogBindAddress", "0.0.0.0");
+		defaultProps.put("ingestEnabled", "false");
+		defaultProps.put("ingestToken", "");
+		defaultProps.put("ingestMaxBatch", "5000");
+		defaultProps.put("ingestMaxPending", "20000");
+		defaultProps.put("mappingStoreCapacity", "100000");
+		defaultProps.put("resyncChunkSize", "1000");
+		defaultProps.put("resyncIntervalMs", "50");
+		defaultProps.put("tagFlushIntervalMs", "10000");
+		defaultProps.put("groupMappingFeature", "false");
+		defaultProps.put("groupAttributes", "NP-Policy-Name");
+		defaultProps.put("groupFlushIntervalMs", "30000");
+		defaultProps.put("groupsPerMessage", "100");
+		defaultProps.put("coalesceByIp", "false");
+		defaultProps.put("staleEventSuppression", "true");
+		defaultProps.put("shutdownDrainMs", "800");
+		defaultProps.put("spoolFile", "userid4nps.spool");
+		defaultProps.put("panosTimeoutMs", "30000");
+		defaultProps.put("snapshotFile", "userid4nps.snapshot");
+		defaultProps.put("snapshotIntervalMs", "60000");
+		defaultProps.put("checkpointDir", "");
+		defaultProps.put("rotationGraceMs", "10000");
+		defaultProps.put("configReloadIntervalMs", "5000");
+		defaultProps.put("memoryBudgetMb", "64");
+		return defaultProps;
+	}
+	
+	/**
+	 * Initializes all class fields either from parsing the configuration file passed as command line argument
+	 * or by initializing its values to their default value.
+	 * In case the configuration file doesn't exist it will be created with default values (template).
+	 * It is called from within the {@link userid4nps#fsm} when entering the INIT state.
+	 * 
+	 * @throws NoSuchAlgorithmException
+	 * @throws KeyManagementException
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 * @throws SAXException
+	 * @throws InterruptedException
+	 */
+	protected static void init () throws NoSuchAlgorithmException, KeyManagementException, IOException, ParserConfigurationException, SAXException, InterruptedException {
+		Properties defaultProps = defaultProperties();
 		Properties runningParams = new Properties(defaultProps);
 		FileInputStream configFileIs;
 		try {
@@ -274,7 +474,44 @@ public class userid4nps {
 		vsys = runningParams.getProperty("vsys");
 		includePattern = runningParams.getProperty("includePattern");
 		npsLogDir = runningParams.getProperty("npsLogDir");
+		checkpointDir = runningParams.getProperty("checkpointDir");
+		rotationGraceMs = Long.valueOf(runningParams.getProperty("rotationGraceMs"));
+		configReloadIntervalMs = Long.valueOf(runningParams.getProperty("configReloadIntervalMs"));
+		memoryBudgetMb = Long.valueOf(runningParams.getProperty("memoryBudgetMb"));
 		dynAddressFeature = runningParams.getProperty("dynAddressFeature").equals("true") ? true : false;
+		panosMaxRequestsPerSecond = Double.valueOf(runningParams.getProperty("panosMaxRequestsPerSecond"));
+		panosMaxEntriesPerSecond = Double.valueOf(runningParams.getProperty("panosMaxEntriesPerSecond"));
+		schedulerThreads = Integer.valueOf(runningParams.getProperty("schedulerThreads"));
+		apiThreads = Integer.valueOf(runningParams.getProperty("apiThreads"));
+		httpPort = Integer.valueOf(runningParams.getProperty("httpPort"));
+		httpBindAddress = runningParams.getProperty("httpBindAddress");
+		freshnessAlertMs = Long.valueOf(runningParams.getProperty("freshnessAlertMs"));
+		radiusPort = Integer.valueOf(runningParams.getProperty("radiusPort"));
+		radiusBindAddress = runningParams.getProperty("radiusBindAddress");
+		radiusSecret = runningParams.getProperty("radiusSecret");
+		syslogPort = Integer.valueOf(runningParams.getProperty("syslogPort"));
+		syslogBindAddress = runningParams.getProperty("syslogBindAddress");
+		ingestEnabled = runningParams.getProperty("ingestEnabled").equals("true") ? true : false;
+		ingestToken = runningParams.getProperty("ingestToken");
+		ingestMaxBatch = Integer.valueOf(runningParams.getProperty("ingestMaxBatch"));
+		ingestMaxPending = Long.valueOf(runningParams.getProperty("ingestMaxPending"));
+		mappingStoreCapacity = Integer.valueOf(runningParams.getProperty("mappingStoreCapacity"));
+		resyncChunkSize = Integer.valueOf(runningParams.getProperty("resyncChunkSize"));
+		resyncIntervalMs = Long.valueOf(runningParams.getProperty("resyncIntervalMs"));
+		tagFlushIntervalMs = Long.valueOf(runningParams.getProperty("tagFlushIntervalMs"));
+		TagRules.configure(runningParams);
+		FilterRules.configure(runningParams);
+		groupMappingFeature = runningParams.getProperty("groupMappingFeature").equals("true") ? true : false;
+		groupFlushIntervalMs = Long.valueOf(runningParams.getProperty("groupFlushIntervalMs"));
+		groupsPerMessage = Integer.valueOf(runningParams.getProperty("groupsPerMessage"));
+		GroupMembership.configure(runningParams);
+		coalesceByIp = runningParams.getProperty("coalesceByIp").equals("true") ? true : false;
+		staleEventSuppression = runningParams.getProperty("staleEventSuppression").equals("true") ? true : false;
+		shutdownDrainMs = Long.valueOf(runningParams.getProperty("shutdownDrainMs"));
+		spoolFile = runningParams.getProperty("spoolFile");
+		panosTimeoutMs = Integer.valueOf(runningParams.getProperty("panosTimeoutMs"));
+		snapshotFile = runningParams.getProperty("snapshotFile");
+		snapshotIntervalMs = Long.valueOf(runningParams.getProperty("snapshotIntervalMs"));
 		try {
 			logLevel = Level.parse(runningParams.getProperty("logLevel"));
 		} catch (IllegalArgumentException e) {
@@ -287,13 +524,6 @@ public class userid4nps {
 		logHandler.addHandler(fileHandler);
 		logHandler.setLevel(logLevel);		
 		logHandler.fine("userid4nps starting");
-		currentNpsLogFile = null;
-		fs = FileSystems.getDefault();
-		npsLogPath = fs.getPath(npsLogDir);
-		currentFileSizeDB = new HashMap<Path, Long>();
-		oldFileSizeDB = new HashMap<Path, Long>();
-		unknownFileArray = new ArrayList<Path>();
-		parser = new UseridNpsDtsParser(defaultDomain, includePattern);
 //		This block configures JVM to ignore SSL Cert issues
 		TrustManager[] trustAllCerts = new TrustManager[] {new X509TrustManager() {
 
@@ -326,185 +556,95 @@ public class userid4nps {
 		HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
 		HttpsURLConnection.setDefaultHostnameVerifier(allHostsValid);
 		
+		SharedScheduler.setThreads(schedulerThreads);
+		SharedScheduler.setIoThreads(apiThreads);
+		LocalHttpServer.start(httpBindAddress, httpPort);
+		Metrics.register();
 		paInterface = new UseridPanosInterface(maxPendingEntries, useridTimeout, panosBufferedTime, dynAddressFeature);
+		paInterface.setFreshnessAlert(freshnessAlertMs);
+		paInterface.setMappingStoreCapacity(mappingStoreCapacity);
+		paInterface.setResync(resyncChunkSize, resyncIntervalMs);
+		paInterface.setTagFlushInterval(tagFlushIntervalMs);
+		paInterface.setCoalesceByIp(coalesceByIp);
+		paInterface.setStaleEventSuppression(staleEventSuppression, mappingStoreCapacity);
+		paInterface.setSnapshot(snapshotFile, snapshotIntervalMs);
+		paInterface.setMemoryBudget(memoryBudgetMb * 1024 * 1024);
+		paInterface.loadSnapshot();
+		if (groupMappingFeature)
+			paInterface.setGroupMapping(groupFlushIntervalMs, groupsPerMessage);
+		LocalHttpServer.addContext("/lookup", paInterface.getMappingStore());
 		paInterface.setPanosApiC1(fw1Url, fw1PanosKey, vsys);
 		paInterface.setPanosApiC2(fw2Url, fw2PanosKey, vsys);
+		paInterface.getPanosApiC1().setRateLimit(panosMaxRequestsPerSecond, panosMaxEntriesPerSecond);
+		paInterface.getPanosApiC2().setRateLimit(panosMaxRequestsPerSecond, panosMaxEntriesPerSecond);
+		paInterface.getPanosApiC1().setTimeout(panosTimeoutMs);
+		paInterface.getPanosApiC2().setTimeout(panosTimeoutMs);
+		paInterface.loadSpool(spoolFile);
 		paInterface.getPanosApiC1().startTimer("Initial connection check");
 		paInterface.getPanosApiC2().startTimer("Initial connection check");
 		logHandler.fine("Staring flushing timer");		
 		paInterface.startTimer();
+		runtimeSettings = new RuntimeSettings(paInterface, configFile, runningParams);
+		runtimeSettings.start(configReloadIntervalMs);
+		if (radiusPort > 0 && radiusSecret.isEmpty())
+			logHandler.severe("radiusSecret is empty. The RADIUS accounting listener is not started");
+		else if (radiusPort > 0) {
+			radiusListener = new RadiusAccountingListener(radiusBindAddress, radiusPort, radiusSecret, defaultDomain, paInterface);
+			radiusListener.start();
+		}
+		if (syslogPort > 0) {
+			syslogReceiver = new SyslogReceiver(syslogBindAddress, syslogPort, defaultDomain, includePattern, paInterface);
+			syslogReceiver.start();
+		}
+		if (ingestEnabled)
+			LocalHttpServer.addContext("/ingest", new HttpIngestHandler(paInterface, defaultDomain, ingestToken, ingestMaxBatch, ingestMaxPending));
+		initSources(runningParams);
 	}
 	
 	/**
-	 * A new line has been made available at the end of the {@link userid4nps#fcNpsLogFile} log file.
-	 * We read the line from the file and call the XML parser.
-	 * It is called from within the {@link userid4nps#fsm} each time it enters in the LINEPROC state.
+	 * Creates and starts one {@link NpsLogTailer} per log source. Sources are configured as "source.N.dir" (N = 1, 2, ...)
+	 * with the optional "source.N.name" (defaults to "npsN"), "source.N.includePattern" (defaults to "includePattern")
+	 * and "source.N.checkpoint" (defaults to "&lt;checkpointDir&gt;/&lt;name&gt;.checkpoint" if "checkpointDir" is set).
+	 * Without any "source.N.dir" the "npsLogDir" directory is the only source, named "nps".
 	 * 
+	 * @param runningParams		The running configuration
+	 * @throws ParserConfigurationException
+	 * @throws SAXException
 	 * @throws IOException
+	 * @throws InterruptedException
 	 */
-	protected static void lineProc() throws IOException {
-		if (parser.IMIParser(xmlElement)) {
-			logHandler.finest("Got a valid DTS entry. Sending it to the PanosInterface");
-			paInterface.addEntry(parser.AcctStatusType,parser.UserName, parser.FramedIPAddress, parser.NASIdentifier);
+	protected static void initSources(Properties runningParams) throws ParserConfigurationException, SAXException, IOException, InterruptedException {
+		tailers.clear();
+		for (int n = 1; runningParams.getProperty("source."+n+".dir") != null; n++) {
+			String name = runningParams.getProperty("source."+n+".name", "nps"+n);
+			tailers.add(new NpsLogTailer(name, runningParams.getProperty("source."+n+".dir"),
+					runningParams.getProperty("source."+n+".includePattern", includePattern), defaultDomain,
+					runningParams.getProperty("source."+n+".checkpoint", defaultCheckpoint(name)), paInterface));
 		}
-		else {
-			logHandler.finest("Ignoring DTS entry read from file");
+		if (tailers.isEmpty())
+			tailers.add(new NpsLogTailer("nps", npsLogDir, includePattern, defaultDomain, defaultCheckpoint("nps"), paInterface));
+		for (NpsLogTailer tailer : tailers) {
+			tailer.setRotationGrace(rotationGraceMs);
+			tailer.start();
 		}
+		logHandler.info("Started "+tailers.size()+" log source tailers");
 	}
 	
 	/**
-	 * After ten unsuccessful consecutive tries to read a new line from the {@link userid4nps#fcNpsLogFile}
-	 * we'll review the {@link userid4nps#npsLogDir} directory to see if NPS has rolled up to a new
-	 * log file. In such a case we close the old fine and open {@link userid4nps#fcNpsLogFile} to the newer one.
-	 * 
-	 * We use three different strategies to sense a roll over. So it also works with file systems that do not update the timestamp (NTFS in many Windows Server OS)
-	 * <ul>
-	 * <li>Looking for a newer file (from a timestamp point of view). If it doesn't sense a new file then ...</li>
-	 * <li>Looking if there is one, and only one, new ".log" file in the directory (compared to the list of ".log" files from the previous sample). If it doesn't sense a new file then ...</li>
-	 * <li>Looking for the ".log" file that is growing in size</li>
-	 * </ul> 
-	 * 
-	 * @param oldFile	Pointer to the currently opened log file
-	 * @return		A {@link userid4nps#fsm} OK transition.
-	 * @throws IOException
+	 * @param name	Name of the source
+	 * @return		The checkpoint file of the source inside {@link userid4nps#checkpointDir}. Empty if there is no checkpoint directory
 	 */
-	protected static int tryNewFile(Path oldFile) throws IOException {
-		BasicFileAttributes attrs;
-		FileTime timeLatest = null;
-		Path latest = null;
-		Boolean changeMade = false;
-//		We've been provided an oldFile. Let's start with it.
-		if (oldFile != null) {
-			latest = oldFile;
-			timeLatest = Files.readAttributes(latest, BasicFileAttributes.class).lastModifiedTime();
-		}
-
-//		Now time to get the latest entry in the directory
-		npsDirStream = Files.newDirectoryStream(npsLogPath,"*.log");
-		currentFileSizeDB.clear();
-		for (Path fil: npsDirStream ) {
-			attrs = Files.readAttributes(fil, BasicFileAttributes.class );
-			FileTime entryPathModTime = attrs.lastModifiedTime();
-			currentFileSizeDB.put(fil, attrs.size()); // This creates a database with current paths and sizes
-			if ( timeLatest == null ) {
-				logHandler.finest("First time: we'll start with '"+fil.getFileName()+"'");
-				timeLatest = entryPathModTime;
-				latest = fil;
-				changeMade=true;
-			} else {
-//				I want to ignore the file if it is equal to oldFile
-				if (oldFile != null)
-					if (oldFile.equals(fil))
-						continue;
-				if (entryPathModTime.compareTo(timeLatest) > 0) {
-					logHandler.finest("Newer file found: now evaluating '"+fil.getFileName()+"'");
-					timeLatest = entryPathModTime;
-					latest = fil;
-					changeMade = true;
-				}
-			}
-		}
-		npsDirStream.close();
-
-//		Options:
-//		- oldFile = null : We must open latest file and position the reading pointer at the end of the file
-//		- oldFile != null && changeMade: We must close old file and open new one from the beginning
-		if (changeMade) {
-			if (oldFile != null) {
-				logHandler.info("New log file detected: closing '"+currentNpsLogFile.getFileName()+"'");
-				in.close();
-				fcNpsLogFile.close();
-			}
-			logHandler.info("Opening log file '"+latest.getFileName()+"'");
-			currentNpsLogFile = latest;
-			fcNpsLogFile = FileChannel.open(currentNpsLogFile, StandardOpenOption.READ);
-			in = new BufferedReader(Channels.newReader(fcNpsLogFile, "UTF-8"));
-			if (oldFile == null) {
-				logHandler.info("Positioning at the end of the log file '"+latest.getFileName()+"'");
-				fcNpsLogFile.position(fcNpsLogFile.size());
-			}
-			oldFileSizeDB.clear();
-			oldFileSizeDB.putAll(currentFileSizeDB);
-			return Const.OK;
-		}
-		else {
-			if (oldFile == null) {
-				logHandler.warning("No log files available in the directory. Will wait 30 seconds");
-				return Const.SLEEP;
-			}
-			else {
-				logHandler.fine("Unable to sense changes by file timestamp. Let's try strategy 2: previously unknown .log file in the directory");
-				unknownFileArray.clear();
-				for (Path fil: currentFileSizeDB.keySet() ) {
-					if(!oldFileSizeDB.containsKey(fil))
-						unknownFileArray.add(fil);
-				}
-				if (unknownFileArray.size() == 1) {
-					logHandler.info("Found a unique new .log file in the directory. This must be the newest one");
-					logHandler.info("New log file detected: closing '"+currentNpsLogFile.getFileName()+"'");
-					in.close();
-					fcNpsLogFile.close();
-					latest=unknownFileArray.get(0);
-					currentNpsLogFile = latest;
-					fcNpsLogFile = FileChannel.open(currentNpsLogFile, StandardOpenOption.READ);
-					in = new BufferedReader(Channels.newReader(fcNpsLogFile, "UTF-8"));
-					logHandler.info("Opening log file '"+latest.getFileName()+"'");
-					oldFileSizeDB.clear();
-					oldFileSizeDB.putAll(currentFileSizeDB);
-					return Const.OK;
-				}
-				else {
-					if (unknownFileArray.size() > 1) {
-						logHandler.warning("Too many changes in the directory for us to sense what's new. Will try again in 30 seconds");
-						oldFileSizeDB.clear();
-						oldFileSizeDB.putAll(currentFileSizeDB);
-						return Const.SLEEP;					
-					}
-					else {
-						logHandler.fine("Unable to sense changes by new file. Let's try strategy 3: what file is growing in size?");
-						unknownFileArray.clear();
-						for (Path fil: currentFileSizeDB.keySet() )
-							if (!fil.equals(latest))
-								if(oldFileSizeDB.containsKey(fil))
-									if(oldFileSizeDB.get(fil) < currentFileSizeDB.get(fil))
-										unknownFileArray.add(fil);
-						if (unknownFileArray.size() == 1) {
-							logHandler.info("Found a unique new .log file growing in the directory. This must be the newest one");
-							logHandler.info("New log file detected: closing '"+currentNpsLogFile.getFileName()+"'");
-							in.close();
-							fcNpsLogFile.close();
-							latest=unknownFileArray.get(0);
-							currentNpsLogFile = latest;
-							fcNpsLogFile = FileChannel.open(currentNpsLogFile, StandardOpenOption.READ);
-							in = new BufferedReader(Channels.newReader(fcNpsLogFile, "UTF-8"));
-							logHandler.info("Opening log file '"+latest.getFileName()+"'");
-							oldFileSizeDB.clear();
-							oldFileSizeDB.putAll(currentFileSizeDB);
-							return Const.OK;
-						}	
-						else {
-							if (unknownFileArray.size() > 1) {
-								logHandler.warning("Too many files growing in the directory for us to sense what's new. Will try again in 30 seconds");
-								oldFileSizeDB.clear();
-								oldFileSizeDB.putAll(currentFileSizeDB);
-								return Const.SLEEP;					
-							}
-						}
-					}
-				}
-			}
-		}
-		oldFileSizeDB.clear();
-		oldFileSizeDB.putAll(currentFileSizeDB);
-		logHandler.fine("Current log file keeps being the latest one");
-		return Const.OK;
+	private static String defaultCheckpoint(String name) {
+		if (checkpointDir == null || checkpointDir.isEmpty())
+			return "";
+		return new File(checkpointDir, name+".checkpoint").getPath();
 	}
 	
-	
 	/**
-	 * Main loop. Will keep running while {@link userid4nps#keepRunning} is set to true.
+	 * Main loop. Will keep running while {@link userid4nps#keepRunning} is set to true and at least one
+	 * log source tailer is alive. The log reader FSM of every source runs in its {@link NpsLogTailer} thread.
 	 * Calling the class' {@link userid4nps#stop} method will set {@link userid4nps#keepRunning} to FALSE and
-	 * will allow the FSM to gracefull terminate
+	 * will allow the application to gracefull terminate
 	 * 
 	 * @param trans		a valid FSM transition
 	 * @throws IOException
@@ -513,39 +653,23 @@ public class userid4nps {
 		while ( keepRunning ) {
 			try {
 				if (trans == Const.INIT) {
-					currentState = Const.INIT;
 					init();
 					trans = Const.OK;
 					continue;
 				}
-				if ( (currentState == Const.TRYNEWFILE && trans == Const.OK) ||
-						(currentState == Const.LINEPROC && trans == Const.OK) ||
-						(currentState == Const.SLEEP05 && trans == Const.OK)) {
-					logHandler.finest("FSM New State: TRYREADLINE");
-					currentState = Const.TRYREADLINE;
-					if (in.ready()) {
-						xmlElement = in.readLine();
-						if (xmlElement == null)
-							trans = Const.NOK;
-						else
-							trans = Const.OK;
-					}
-					else
-						trans = Const.NOK;
-					continue;
-				}
-				if (currentState == Const.TRYREADLINE && trans == Const.OK) {
-					logHandler.finest("FSM New State: LINEPROC");
-					currentState = Const.LINEPROC;
-					lineProc();
-					readlineTries = 0;
-					trans = Const.OK;
-					continue;
+				boolean alive = false;
+				for (NpsLogTailer tailer : tailers)
+					alive |= tailer.isAlive();
+				if (!alive) {
+					logHandler.severe("All the log source tailers have stopped");
+					break;
 				}
-			} catch (IOException e1) {
-				logHandler.severe("Unhandled Generic IO error");
-				logHandler.severe(e1.getStackTrace()[0].toString());
-				e1.printStackTrace();
+				if (stopSignal.await(500, TimeUnit.MILLISECONDS))
+					break;
+			} catch (InterruptedException e) {
+				logHandler.severe("Unhandled generic thread error");
+				logHandler.severe(e.getStackTrace()[0].toString());
+				e.printStackTrace();
 				break;
 			} catch (Exception e) {
 				logHandler.severe("Unhandled Generic library error");
@@ -553,63 +677,39 @@ public class userid4nps {
 				e.printStackTrace();
 				break;
 			}
-			if ((currentState == Const.INIT && trans == Const.OK) ||
-					(currentState == Const.SLEEP30 && trans == Const.OK) ||
-					(currentState == Const.SLEEP05 && trans == Const.POLL) ) {
-				logHandler.finest("FSM New State: TRYNEWFILE");
-				currentState = Const.TRYNEWFILE;
-				try {
-					trans = tryNewFile(currentNpsLogFile);
-				} catch (Exception e) {
-					logHandler.severe("Error opening the NPS log directory");
-					logHandler.severe(e.getStackTrace()[0].toString());
-					e.printStackTrace();
-					break;
-				}
-				continue;
-			}
-			try {
-				if (currentState == Const.TRYNEWFILE && trans == Const.SLEEP) {
-					logHandler.finest("FSM New State: SLEEP30");
-					currentState = Const.SLEEP30;
-					Thread.sleep(30000);
-					trans = Const.OK;
-					continue;
-				}
-				if (currentState == Const.TRYREADLINE && trans == Const.NOK) {
-					logHandler.finest("FSM New State: SLEEP05, "+String.valueOf(readlineTries));
-					currentState = Const.SLEEP05;
-					Thread.sleep(500);
-					readlineTries++;
-					if (readlineTries == Const.pollNeeded) {
-						readlineTries = 0;
-						trans = Const.POLL;
-					}
-					else
-						trans = Const.OK;
+		}
+		logHandler.info("userid4nps graceful shutdown requested");
+		long shutdownStart = System.currentTimeMillis();
+		long deadline = shutdownStart + shutdownDrainMs;
+//		Every source is asked to stop first, so they all wind down at the same time
+		if (radiusListener != null)
+			radiusListener.signalStop();
+		if (syslogReceiver != null)
+			syslogReceiver.signalStop();
+		for (NpsLogTailer tailer : tailers)
+			tailer.signalStop();
+		LocalHttpServer.stop();
+		if (runtimeSettings != null)
+			runtimeSettings.stop();
+		if (radiusListener != null)
+			radiusListener.join(deadline);
+		if (syslogReceiver != null)
+			syslogReceiver.join(deadline);
+		for (NpsLogTailer tailer : tailers)
+			tailer.join(deadline);
+		if (paInterface != null) {
+			paInterface.drain(Math.max(0, deadline - System.currentTimeMillis()), spoolFile);
+			paInterface.saveSnapshot();
+			for (PANOSApiConnector connector : new PANOSApiConnector[] { paInterface.getPanosApiC1(), paInterface.getPanosApiC2() }) {
+				if (connector == null)
 					continue;
-				}
-			} catch (InterruptedException e) {
-				logHandler.severe("Unhandled generic thread error");
-				logHandler.severe(e.getStackTrace()[0].toString());
-				e.printStackTrace();
-				break;
+				if (connector.ready)
+					connector.close();
+				else
+					connector.giveUp=true;
 			}
-			logHandler.severe("Reached the end of the FSM without any action");
-			break;
 		}
-		logHandler.info("userid4nps graceful shutdown requested");
-		paInterface.stopTimer();
-		if (paInterface.getPanosApiC1().ready) 
-			paInterface.getPanosApiC1().close();
-		else
-			paInterface.getPanosApiC1().giveUp=true;
-		if (paInterface.getPanosApiC2().ready)
-			paInterface.getPanosApiC2().close();
-		else
-			paInterface.getPanosApiC2().giveUp=true;
-		in.close();
-		fcNpsLogFile.close();
-		logHandler.info("userid4nps graceful shutdown completed");
+		SharedScheduler.shutdown();
+		logHandler.info("userid4nps graceful shutdown completed in "+(System.currentTimeMillis() - shutdownStart)+" ms");
 	}
 }
\ No newline at end of file